@@ -0,0 +1,84 @@
+package com.mrg.aws.benchmark;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.mrg.aws.cache.ImageCache;
+import com.mrg.aws.cache.MetadataCache;
+import com.mrg.aws.index.TagIndex;
+import com.mrg.aws.metrics.StorageMetrics;
+import com.mrg.aws.service.AWSServiceImpl;
+import com.mrg.aws.service.ContentStore;
+import com.mrg.aws.service.DerivativeService;
+import com.mrg.aws.service.MetadataOutbox;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/*
+ * Wires AWSServiceImpl by hand, the way the Spring context would, on top of the
+ * in-memory stand-ins. Variant generation is disabled (empty width list) so the only
+ * background work while operations are measured is the metadata outbox flush.
+ * */
+public class BenchmarkServices implements AutoCloseable {
+
+    public final InMemoryObjectStorage objectStorage;
+    public final InMemoryMetadataStorage metadataStorage = new InMemoryMetadataStorage();
+    public final TagIndex tagIndex = new TagIndex();
+    public final AWSServiceImpl service;
+
+    private final ExecutorService executor = Executors.newFixedThreadPool(2);
+    private final MetadataOutbox outbox;
+
+    /*
+     * heapCacheBytes=0 disables ImageCache, downloads then always reach the object storage.
+     * */
+    public BenchmarkServices(boolean retainBytes, long heapCacheBytes) throws IOException {
+        objectStorage = new InMemoryObjectStorage(retainBytes);
+        final ImageCache imageCache = new ImageCache();
+        ReflectionTestUtils.setField(imageCache, "heapMaxBytes", heapCacheBytes);
+        ReflectionTestUtils.setField(imageCache, "heapMaxEntryBytes", heapCacheBytes);
+        ReflectionTestUtils.setField(imageCache, "diskMaxBytes", 0L);
+        imageCache.init();
+
+        final MetadataCache metadataCache = new MetadataCache();
+        ReflectionTestUtils.setField(metadataCache, "maxEntries", 10000);
+        ReflectionTestUtils.setField(metadataCache, "ttlMillis", 60000L);
+        ReflectionTestUtils.setField(metadataCache, "negativeTtlMillis", 5000L);
+
+        final ContentStore contentStore = new ContentStore(objectStorage, metadataStorage, imageCache);
+
+        // not synced, the journal write is measured without the disk's sync latency
+        outbox = new MetadataOutbox(metadataStorage, new ObjectMapper(), new SimpleMeterRegistry(),
+                Executors.newSingleThreadScheduledExecutor());
+        ReflectionTestUtils.setField(outbox, "directoryName", Files.createTempDirectory("outbox-").toString());
+        ReflectionTestUtils.setField(outbox, "fsync", false);
+        ReflectionTestUtils.setField(outbox, "batchSize", 100);
+        ReflectionTestUtils.setField(outbox, "flushIntervalMillis", 200L);
+        ReflectionTestUtils.setField(outbox, "backoffMillis", 500L);
+        ReflectionTestUtils.setField(outbox, "maxBackoffMillis", 30000L);
+        ReflectionTestUtils.setField(outbox, "maxAttempts", 3);
+        outbox.init();
+
+        final DerivativeService derivativeService = new DerivativeService(objectStorage, metadataStorage, tagIndex,
+                metadataCache, outbox, executor);
+        ReflectionTestUtils.setField(derivativeService, "widths", new int[0]);
+
+        service = new AWSServiceImpl(objectStorage, metadataStorage, tagIndex, imageCache, metadataCache, executor, executor,
+                derivativeService, contentStore, outbox, new StorageMetrics(new SimpleMeterRegistry()));
+        ReflectionTestUtils.setField(service, "exportReadAhead", 2);
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+        try {
+            outbox.close();
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+}
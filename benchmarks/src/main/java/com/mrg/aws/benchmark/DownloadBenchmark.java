@@ -0,0 +1,98 @@
+package com.mrg.aws.benchmark;
+
+import com.mrg.aws.model.Image;
+import com.mrg.aws.model.ImageStream;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.http.HttpRange;
+import org.springframework.mock.web.MockMultipartFile;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * AWSServiceImpl.downloadImage, whole objects and a 64 KB range, written to a sink
+ * through ImageStream.writeTo like the controller does. cached=true serves them
+ * from the ImageCache heap tier after the first read.
+ * */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+@State(Scope.Benchmark)
+public class DownloadBenchmark {
+
+    private static final int IMAGES = 32;
+    private static final long CACHE_BYTES = 512L * 1024 * 1024;
+    private static final HttpRange RANGE = HttpRange.createByteRange(0, 65535);
+
+    @Param({"16384", "1048576", "8388608"})
+    int imageSize;
+
+    @Param({"false", "true"})
+    boolean cached;
+
+    private BenchmarkServices services;
+    private UUID[] imageIds;
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        private int next = ThreadLocalRandom.current().nextInt(IMAGES);
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        services = new BenchmarkServices(true, cached ? CACHE_BYTES : 0);
+        for (int i = 0; i < IMAGES; i++) {
+            final byte[] content = new byte[imageSize];
+            ThreadLocalRandom.current().nextBytes(content);
+            services.service.uploadImage(new MockMultipartFile("image", "image.jpg", "image/jpeg", content),
+                    "benchmark image", "benchmark,jmh");
+        }
+        imageIds = services.metadataStorage.findAll()
+                .map(Image::getImageId)
+                .map(UUID::fromString)
+                .toArray(UUID[]::new);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        services.close();
+    }
+
+    @Benchmark
+    public long downloadImage(Cursor cursor) throws IOException {
+        return download(imageIds[cursor.next++ % IMAGES], null);
+    }
+
+    @Benchmark
+    public long downloadRange(Cursor cursor) throws IOException {
+        return download(imageIds[cursor.next++ % IMAGES], RANGE);
+    }
+
+    private long download(final UUID imageId, final HttpRange range) throws IOException {
+        final CountingOutputStream sink = new CountingOutputStream();
+        try (ImageStream image = services.service.downloadImage(imageId, range)) {
+            image.writeTo(sink);
+        }
+        return sink.count;
+    }
+
+    private static final class CountingOutputStream extends OutputStream {
+
+        private long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package com.mrg.aws.benchmark;
+
+import com.mrg.aws.model.Image;
+import com.mrg.aws.model.ImagePage;
+import com.mrg.aws.storage.MetadataStorage;
+import com.mrg.aws.util.CursorUtils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.stream.Stream;
+
+/*
+ * In-process stand-in for DynamoDB: records in a sorted map, reference counts in a
+ * hash map. Records are stored as given, the service never mutates them after a put.
+ * */
+public class InMemoryMetadataStorage implements MetadataStorage {
+
+    private final ConcurrentSkipListMap<String, Image> images = new ConcurrentSkipListMap<>();
+    private final Map<String, Long> references = new ConcurrentHashMap<>();
+
+    @Override
+    public void put(Image image) {
+        images.put(image.getImageId(), image);
+    }
+
+    @Override
+    public List<Image> putAll(List<Image> batch) {
+        batch.forEach(this::put);
+        return Collections.emptyList();
+    }
+
+    @Override
+    public Image get(String imageId) {
+        return images.get(imageId);
+    }
+
+    @Override
+    public Image delete(String imageId) {
+        return images.remove(imageId);
+    }
+
+    @Override
+    public boolean update(Image image) {
+        final Image stored = images.get(image.getImageId());
+        if (stored != null && image.getVariants() != null) {
+            stored.setVariants(image.getVariants());
+        }
+        return stored != null;
+    }
+
+    @Override
+    public Stream<Image> findAll() {
+        return images.values().stream();
+    }
+
+    @Override
+    public ImagePage findPage(int pageSize, String cursor) {
+        final String after = CursorUtils.decodeImageId(cursor);
+        final NavigableMap<String, Image> remaining = after == null ? images : images.tailMap(after, false);
+        final List<Image> items = new ArrayList<>(pageSize);
+        for (Image image : remaining.values()) {
+            if (items.size() == pageSize) {
+                return new ImagePage(items, CursorUtils.encode(items.get(pageSize - 1).getImageId()));
+            }
+            items.add(image);
+        }
+        return new ImagePage(items, null);
+    }
+
+    @Override
+    public long addReferences(String contentHash, long delta) {
+        return references.merge(contentHash, delta, Long::sum);
+    }
+
+    @Override
+    public boolean removeReferences(String contentHash) {
+        return references.computeIfPresent(contentHash, (hash, count) -> count > 0 ? count : null) == null;
+    }
+
+    public int size() {
+        return images.size();
+    }
+
+    public void clear() {
+        images.clear();
+        references.clear();
+    }
+}
@@ -0,0 +1,92 @@
+package com.mrg.aws.benchmark;
+
+import com.mrg.aws.model.ImageStream;
+import com.mrg.aws.model.StoredObject;
+import com.mrg.aws.storage.ObjectStorage;
+import com.mrg.aws.util.RangeUtils;
+import org.springframework.http.HttpRange;
+import org.springframework.http.HttpStatus;
+import org.springframework.util.StreamUtils;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.Instant;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+/*
+ * In-process stand-in for S3. Every put reads the whole stream like the SDK does;
+ * with retainBytes=false the bytes are dropped afterwards so upload benchmarks can
+ * run for millions of operations without filling the heap.
+ * */
+public class InMemoryObjectStorage implements ObjectStorage {
+
+    private static final byte[] DROPPED = new byte[0];
+
+    private final Map<String, byte[]> objects = new ConcurrentHashMap<>();
+    private final Map<String, Instant> lastModified = new ConcurrentHashMap<>();
+    private final boolean retainBytes;
+
+    public InMemoryObjectStorage(boolean retainBytes) {
+        this.retainBytes = retainBytes;
+    }
+
+    @Override
+    public void put(String key, InputStream content, long contentLength, String contentType) throws IOException {
+        if (retainBytes) {
+            objects.put(key, StreamUtils.copyToByteArray(content));
+        } else {
+            StreamUtils.drain(content);
+            objects.put(key, DROPPED);
+        }
+        lastModified.put(key, Instant.now());
+    }
+
+    @Override
+    public ImageStream get(String key, HttpRange range) {
+        final byte[] bytes = objects.get(key);
+        if (bytes == null) {
+            throw new ResponseStatusException(HttpStatus.NOT_FOUND, "Image not found [" + key + "]");
+        }
+        if (range == null) {
+            return new ImageStream(new ByteArrayInputStream(bytes), bytes.length, null, null);
+        }
+        final long[] bounds = RangeUtils.resolve(key, range, bytes.length);
+        final int length = (int) (bounds[1] - bounds[0] + 1);
+        return new ImageStream(new ByteArrayInputStream(bytes, (int) bounds[0], length), length, null,
+                RangeUtils.contentRange(bounds, bytes.length));
+    }
+
+    @Override
+    public boolean exists(String key) {
+        return objects.containsKey(key);
+    }
+
+    @Override
+    public long size(String key) {
+        final byte[] bytes = objects.get(key);
+        if (bytes == null) {
+            throw new ResponseStatusException(HttpStatus.NOT_FOUND, "Image not found [" + key + "]");
+        }
+        return bytes.length;
+    }
+
+    @Override
+    public void delete(String key) {
+        objects.remove(key);
+        lastModified.remove(key);
+    }
+
+    @Override
+    public Stream<StoredObject> list() {
+        return lastModified.entrySet().stream().map(entry -> new StoredObject(entry.getKey(), entry.getValue()));
+    }
+
+    public void clear() {
+        objects.clear();
+        lastModified.clear();
+    }
+}
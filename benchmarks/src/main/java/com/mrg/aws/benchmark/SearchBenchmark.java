@@ -0,0 +1,92 @@
+package com.mrg.aws.benchmark;
+
+import com.mrg.aws.index.TagIndex;
+import com.mrg.aws.model.Image;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/*
+ * AWSServiceImpl.findAll and findBySearchTerm over tables of tableSize records with
+ * three tags each, out of a vocabulary of TAGS tags. Searches are served from the
+ * tag index, or by a full scan of the metadata storage with consistent=true.
+ * */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+@State(Scope.Benchmark)
+public class SearchBenchmark {
+
+    private static final int TAGS = 200;
+
+    @Param({"1000", "100000"})
+    int tableSize;
+
+    private BenchmarkServices services;
+
+    @State(Scope.Thread)
+    public static class Terms {
+        private int next = ThreadLocalRandom.current().nextInt(TAGS);
+
+        String next() {
+            return tag(next++ % TAGS);
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        services = new BenchmarkServices(false, 0);
+        // same table on every run
+        final Random random = new Random(42);
+        for (int i = 0; i < tableSize; i++) {
+            final Image image = new Image();
+            image.setImageId(UUID.randomUUID().toString());
+            image.setFileName("image-" + i + ".jpg");
+            image.setFileType("image/jpeg");
+            image.setFileSize(1048576L);
+            image.setTags(tag(random.nextInt(TAGS)) + "," + tag(random.nextInt(TAGS)) + "," + tag(random.nextInt(TAGS)));
+            services.metadataStorage.put(image);
+        }
+        services.service.rebuildTagIndex();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        services.close();
+    }
+
+    @Benchmark
+    public void findAll(Blackhole blackhole) {
+        try (Stream<Image> images = services.service.findAll()) {
+            images.forEach(blackhole::consume);
+        }
+    }
+
+    @Benchmark
+    public List<Image> findBySearchTermIndexed(Terms terms) {
+        return services.service.findBySearchTerm(terms.next(), TagIndex.Match.ANY, false, false);
+    }
+
+    @Benchmark
+    public List<Image> findBySearchTermPrefix(Terms terms) {
+        // "tag1" also matches tag10..tag19, tag100..tag199
+        return services.service.findBySearchTerm(terms.next(), TagIndex.Match.ANY, true, false);
+    }
+
+    @Benchmark
+    public List<Image> findBySearchTermScan(Terms terms) {
+        return services.service.findBySearchTerm(terms.next(), TagIndex.Match.ANY, false, true);
+    }
+
+    private static String tag(final int index) {
+        return "tag" + index;
+    }
+}
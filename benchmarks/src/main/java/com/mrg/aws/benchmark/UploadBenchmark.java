@@ -0,0 +1,71 @@
+package com.mrg.aws.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import org.springframework.mock.web.MockMultipartFile;
+import org.springframework.web.multipart.MultipartFile;
+
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * AWSServiceImpl.uploadImage: hashing, metadata put, content reference and object put.
+ * Every upload carries distinct bytes, identical ones would be deduplicated and skip
+ * the object put. Stored bytes are dropped, the stores are emptied every iteration.
+ * */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+@State(Scope.Benchmark)
+public class UploadBenchmark {
+
+    private BenchmarkServices services;
+
+    @State(Scope.Thread)
+    public static class Payload {
+
+        @Param({"16384", "1048576", "8388608"})
+        int imageSize;
+
+        private byte[] content;
+        private long salt;
+        private long sequence;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            content = new byte[imageSize];
+            ThreadLocalRandom.current().nextBytes(content);
+            salt = ThreadLocalRandom.current().nextLong();
+        }
+
+        MultipartFile next() {
+            ByteBuffer.wrap(content).putLong(0, salt + sequence++);
+            return new MockMultipartFile("image", "image.jpg", "image/jpeg", content);
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        services = new BenchmarkServices(false, 0);
+    }
+
+    @Setup(Level.Iteration)
+    public void reset() {
+        services.objectStorage.clear();
+        services.metadataStorage.clear();
+        services.tagIndex.rebuild(Collections.emptyList());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        services.close();
+    }
+
+    @Benchmark
+    public void uploadImage(Payload payload) throws Exception {
+        services.service.uploadImage(payload.next(), "benchmark image", "benchmark,jmh");
+    }
+}
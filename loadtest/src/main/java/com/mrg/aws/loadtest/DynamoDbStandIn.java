@@ -0,0 +1,359 @@
+package com.mrg.aws.loadtest;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.sun.net.httpserver.HttpExchange;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/*
+ * In-memory DynamoDB for the requests this service sends: GetItem, PutItem, DeleteItem,
+ * UpdateItem, BatchWriteItem and Scan (segments, limits, projections). Tables have a
+ * string partition key only. Expressions are limited to what the service writes:
+ * SET / REMOVE / ADD updates and "name <op> :value" or attribute_(not_)exists conditions.
+ * Requests are not authenticated, responses carry no CRC32.
+ * */
+public class DynamoDbStandIn extends StandInServer {
+
+    private static final String CONTENT_TYPE = "application/x-amz-json-1.0";
+    private static final String ERROR_PREFIX = "com.amazonaws.dynamodb.v20120810#";
+    // a page is up to 1 MB on DynamoDB, approximated by an item count
+    private static final int MAX_PAGE_ITEMS = 1000;
+    private static final Pattern CLAUSE = Pattern.compile("\\b(SET|REMOVE|ADD|DELETE)\\s+");
+    private static final Pattern COMPARISON = Pattern.compile("\\s*(\\S+)\\s*(<=|>=|<>|=|<|>)\\s*(:\\S+)\\s*");
+    private static final Pattern FUNCTION = Pattern.compile("\\s*(attribute_exists|attribute_not_exists)\\s*\\(\\s*(\\S+?)\\s*\\)\\s*");
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    // table name -> partition key attribute
+    private final Map<String, String> keyAttributes;
+    // table name -> items by partition key value, sorted for scans
+    private final Map<String, TreeMap<String, ObjectNode>> tables = new HashMap<>();
+
+    public DynamoDbStandIn(FaultInjection faults, Map<String, String> keyAttributes) {
+        super(faults);
+        this.keyAttributes = keyAttributes;
+        keyAttributes.keySet().forEach(table -> tables.put(table, new TreeMap<>()));
+    }
+
+    public synchronized int size(final String table) {
+        return tables.get(table).size();
+    }
+
+    @Override
+    protected void serve(final HttpExchange exchange) throws IOException {
+        final String target = exchange.getRequestHeaders().getFirst("X-Amz-Target");
+        final String operation = target == null ? "" : target.substring(target.indexOf('.') + 1);
+        final ObjectNode request = (ObjectNode) objectMapper.readTree(readBody(exchange));
+        final ObjectNode response;
+        try {
+            synchronized (this) {
+                response = dispatch(operation, request);
+            }
+        } catch (DynamoDbError error) {
+            send(exchange, error.status, CONTENT_TYPE, error(error.type, error.getMessage()));
+            return;
+        }
+        send(exchange, 200, CONTENT_TYPE, objectMapper.writeValueAsBytes(response));
+    }
+
+    @Override
+    protected void fail(final HttpExchange exchange) throws IOException {
+        send(exchange, 500, CONTENT_TYPE, error("InternalServerError", "Injected failure"));
+    }
+
+    private ObjectNode dispatch(final String operation, final ObjectNode request) {
+        switch (operation) {
+            case "GetItem":
+                return getItem(request);
+            case "PutItem":
+                return putItem(request);
+            case "DeleteItem":
+                return deleteItem(request);
+            case "UpdateItem":
+                return updateItem(request);
+            case "BatchWriteItem":
+                return batchWriteItem(request);
+            case "Scan":
+                return scan(request);
+            default:
+                throw new DynamoDbError(400, "UnknownOperationException", "Operation " + operation + " is not supported");
+        }
+    }
+
+    private ObjectNode getItem(final ObjectNode request) {
+        final String table = request.get("TableName").asText();
+        final ObjectNode item = table(table).get(keyOf(table, request.get("Key")));
+        final ObjectNode response = objectMapper.createObjectNode();
+        if (item != null) {
+            response.set("Item", project(item, request));
+        }
+        return response;
+    }
+
+    private ObjectNode putItem(final ObjectNode request) {
+        final String table = request.get("TableName").asText();
+        final ObjectNode item = (ObjectNode) request.get("Item");
+        final String key = keyOf(table, item);
+        final ObjectNode old = table(table).get(key);
+        check(old, request);
+        table(table).put(key, item);
+        return returnValues(request, old, item, null);
+    }
+
+    private ObjectNode deleteItem(final ObjectNode request) {
+        final String table = request.get("TableName").asText();
+        final String key = keyOf(table, request.get("Key"));
+        final ObjectNode old = table(table).get(key);
+        check(old, request);
+        table(table).remove(key);
+        return returnValues(request, old, null, null);
+    }
+
+    private ObjectNode updateItem(final ObjectNode request) {
+        final String table = request.get("TableName").asText();
+        final String key = keyOf(table, request.get("Key"));
+        final ObjectNode old = table(table).get(key);
+        check(old, request);
+        final ObjectNode item = old != null ? old.deepCopy() : ((ObjectNode) request.get("Key")).deepCopy();
+        final Set<String> updated = new LinkedHashSet<>();
+        final String expression = text(request, "UpdateExpression");
+        if (expression != null) {
+            final Matcher matcher = CLAUSE.matcher(expression);
+            final List<int[]> clauses = new ArrayList<>();
+            while (matcher.find()) {
+                clauses.add(new int[]{matcher.start(1), matcher.end()});
+            }
+            for (int i = 0; i < clauses.size(); i++) {
+                final String action = expression.substring(clauses.get(i)[0], clauses.get(i)[1]).trim();
+                final int end = i + 1 < clauses.size() ? clauses.get(i + 1)[0] : expression.length();
+                for (String part : expression.substring(clauses.get(i)[1], end).split(",")) {
+                    if (!part.trim().isEmpty()) {
+                        updated.add(apply(item, action, part.trim(), request));
+                    }
+                }
+            }
+        }
+        table(table).put(key, item);
+        return returnValues(request, old, item, updated);
+    }
+
+    private String apply(final ObjectNode item, final String action, final String part, final ObjectNode request) {
+        switch (action) {
+            case "SET": {
+                final String[] assignment = part.split("=", 2);
+                final String name = name(assignment[0].trim(), request);
+                item.set(name, value(assignment[1].trim(), request));
+                return name;
+            }
+            case "REMOVE": {
+                final String name = name(part, request);
+                item.remove(name);
+                return name;
+            }
+            case "ADD": {
+                final String[] operands = part.split("\\s+", 2);
+                final String name = name(operands[0], request);
+                final JsonNode delta = value(operands[1].trim(), request);
+                final JsonNode current = item.get(name);
+                if (current != null && current.has("N") && delta.has("N")) {
+                    final BigDecimal sum = new BigDecimal(current.get("N").asText()).add(new BigDecimal(delta.get("N").asText()));
+                    item.set(name, objectMapper.createObjectNode().put("N", sum.toPlainString()));
+                } else {
+                    item.set(name, delta);
+                }
+                return name;
+            }
+            default:
+                throw new DynamoDbError(400, "ValidationException", action + " updates are not supported");
+        }
+    }
+
+    private ObjectNode batchWriteItem(final ObjectNode request) {
+        final Iterator<Map.Entry<String, JsonNode>> requestItems = request.get("RequestItems").fields();
+        while (requestItems.hasNext()) {
+            final Map.Entry<String, JsonNode> entry = requestItems.next();
+            final String table = entry.getKey();
+            for (JsonNode write : entry.getValue()) {
+                if (write.has("PutRequest")) {
+                    final ObjectNode item = (ObjectNode) write.get("PutRequest").get("Item");
+                    table(table).put(keyOf(table, item), item);
+                } else {
+                    table(table).remove(keyOf(table, write.get("DeleteRequest").get("Key")));
+                }
+            }
+        }
+        final ObjectNode response = objectMapper.createObjectNode();
+        response.putObject("UnprocessedItems");
+        return response;
+    }
+
+    private ObjectNode scan(final ObjectNode request) {
+        final String table = request.get("TableName").asText();
+        final int limit = Math.min(request.has("Limit") ? request.get("Limit").asInt() : MAX_PAGE_ITEMS, MAX_PAGE_ITEMS);
+        final int totalSegments = request.has("TotalSegments") ? request.get("TotalSegments").asInt() : 1;
+        final int segment = request.has("Segment") ? request.get("Segment").asInt() : 0;
+        final NavigableMap<String, ObjectNode> remaining = request.has("ExclusiveStartKey")
+                ? table(table).tailMap(keyOf(table, request.get("ExclusiveStartKey")), false)
+                : table(table);
+        final ArrayNode items = objectMapper.createArrayNode();
+        String lastKey = null;
+        boolean more = false;
+        for (Map.Entry<String, ObjectNode> entry : remaining.entrySet()) {
+            if (Math.floorMod(entry.getKey().hashCode(), totalSegments) != segment) {
+                continue;
+            }
+            if (items.size() == limit) {
+                more = true;
+                break;
+            }
+            items.add(project(entry.getValue(), request));
+            lastKey = entry.getKey();
+        }
+        final ObjectNode response = objectMapper.createObjectNode();
+        response.set("Items", items);
+        response.put("Count", items.size());
+        response.put("ScannedCount", items.size());
+        if (more) {
+            response.putObject("LastEvaluatedKey").putObject(keyAttributes.get(table)).put("S", lastKey);
+        }
+        return response;
+    }
+
+    private ObjectNode returnValues(final ObjectNode request, final ObjectNode old, final ObjectNode item,
+                                    final Set<String> updated) {
+        final ObjectNode response = objectMapper.createObjectNode();
+        final String returnValues = text(request, "ReturnValues");
+        if ("ALL_OLD".equals(returnValues) && old != null) {
+            response.set("Attributes", old);
+        } else if ("ALL_NEW".equals(returnValues) && item != null) {
+            response.set("Attributes", item);
+        } else if ("UPDATED_NEW".equals(returnValues) && item != null && updated != null) {
+            final ObjectNode attributes = response.putObject("Attributes");
+            updated.stream().filter(item::has).forEach(name -> attributes.set(name, item.get(name)));
+        }
+        return response;
+    }
+
+    private void check(final ObjectNode item, final ObjectNode request) {
+        final String condition = text(request, "ConditionExpression");
+        if (condition == null) {
+            return;
+        }
+        final boolean passed;
+        final Matcher function = FUNCTION.matcher(condition);
+        final Matcher comparison = COMPARISON.matcher(condition);
+        if (function.matches()) {
+            final boolean exists = item != null && item.has(name(function.group(2), request));
+            passed = "attribute_exists".equals(function.group(1)) == exists;
+        } else if (comparison.matches()) {
+            final JsonNode current = item == null ? null : item.get(name(comparison.group(1), request));
+            passed = current != null && compare(current, value(comparison.group(3), request), comparison.group(2));
+        } else {
+            throw new DynamoDbError(400, "ValidationException", "Condition " + condition + " is not supported");
+        }
+        if (!passed) {
+            throw new DynamoDbError(400, "ConditionalCheckFailedException", "The conditional request failed");
+        }
+    }
+
+    private static boolean compare(final JsonNode current, final JsonNode value, final String operator) {
+        final int order;
+        if (current.has("N") && value.has("N")) {
+            order = new BigDecimal(current.get("N").asText()).compareTo(new BigDecimal(value.get("N").asText()));
+        } else if (current.has("S") && value.has("S")) {
+            order = current.get("S").asText().compareTo(value.get("S").asText());
+        } else {
+            return false;
+        }
+        switch (operator) {
+            case "<=":
+                return order <= 0;
+            case "<":
+                return order < 0;
+            case ">=":
+                return order >= 0;
+            case ">":
+                return order > 0;
+            case "=":
+                return order == 0;
+            default:
+                return order != 0;
+        }
+    }
+
+    private ObjectNode project(final ObjectNode item, final ObjectNode request) {
+        final String projection = text(request, "ProjectionExpression");
+        if (projection == null) {
+            return item;
+        }
+        final ObjectNode projected = objectMapper.createObjectNode();
+        for (String attribute : projection.split(",")) {
+            final String name = name(attribute.trim(), request);
+            if (item.has(name)) {
+                projected.set(name, item.get(name));
+            }
+        }
+        return projected;
+    }
+
+    private TreeMap<String, ObjectNode> table(final String table) {
+        final TreeMap<String, ObjectNode> items = tables.get(table);
+        if (items == null) {
+            throw new DynamoDbError(400, "ResourceNotFoundException", "Requested resource not found: " + table);
+        }
+        return items;
+    }
+
+    private String keyOf(final String table, final JsonNode key) {
+        table(table);
+        final JsonNode value = key.get(keyAttributes.get(table));
+        if (value == null || !value.has("S")) {
+            throw new DynamoDbError(400, "ValidationException", "Missing partition key " + keyAttributes.get(table));
+        }
+        return value.get("S").asText();
+    }
+
+    private static String name(final String token, final ObjectNode request) {
+        return token.startsWith("#") ? request.get("ExpressionAttributeNames").get(token).asText() : token;
+    }
+
+    private static JsonNode value(final String token, final ObjectNode request) {
+        return request.get("ExpressionAttributeValues").get(token);
+    }
+
+    private static String text(final ObjectNode request, final String field) {
+        return request.has(field) ? request.get(field).asText() : null;
+    }
+
+    private byte[] error(final String type, final String message) throws IOException {
+        return objectMapper.writeValueAsBytes(objectMapper.createObjectNode()
+                .put("__type", ERROR_PREFIX + type)
+                .put("message", message));
+    }
+
+    private static final class DynamoDbError extends RuntimeException {
+
+        private final int status;
+        private final String type;
+
+        private DynamoDbError(int status, String type, String message) {
+            super(message);
+            this.status = status;
+            this.type = type;
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package com.mrg.aws.loadtest;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * What a stand-in does to every request before serving it: waits latency plus a
+ * uniformly random part of jitter, then fails errorRate of the requests with a
+ * retryable server error (the SDK retries them, so they mostly show up as latency).
+ * */
+public class FaultInjection {
+
+    private final long latencyMillis;
+    private final long jitterMillis;
+    private final double errorRate;
+
+    public FaultInjection(long latencyMillis, long jitterMillis, double errorRate) {
+        this.latencyMillis = latencyMillis;
+        this.jitterMillis = jitterMillis;
+        this.errorRate = errorRate;
+    }
+
+    // Returns true when the request is to be failed
+    public boolean apply() throws InterruptedException {
+        final ThreadLocalRandom random = ThreadLocalRandom.current();
+        final long delay = latencyMillis + (jitterMillis > 0 ? random.nextLong(jitterMillis + 1) : 0);
+        if (delay > 0) {
+            TimeUnit.MILLISECONDS.sleep(delay);
+        }
+        return errorRate > 0 && random.nextDouble() < errorRate;
+    }
+
+    @Override
+    public String toString() {
+        return latencyMillis + " ms + up to " + jitterMillis + " ms, " + (errorRate * 100) + "% errors";
+    }
+}
@@ -0,0 +1,67 @@
+package com.mrg.aws.loadtest;
+
+import java.util.Arrays;
+
+/*
+ * Every latency of one operation, kept exactly (8 bytes per request) so percentiles
+ * are exact too; a load test run is minutes, not days.
+ * */
+public class LatencyRecorder {
+
+    private long[] nanos = new long[1024];
+    private int count;
+    private long errors;
+
+    public synchronized void record(final long latencyNanos, final boolean failed) {
+        if (count == nanos.length) {
+            nanos = Arrays.copyOf(nanos, count * 2);
+        }
+        nanos[count++] = latencyNanos;
+        if (failed) {
+            errors++;
+        }
+    }
+
+    public synchronized void reset() {
+        count = 0;
+        errors = 0;
+    }
+
+    public synchronized Snapshot snapshot() {
+        final long[] sorted = Arrays.copyOf(nanos, count);
+        Arrays.sort(sorted);
+        return new Snapshot(sorted, errors);
+    }
+
+    public static final class Snapshot {
+
+        private final long[] sorted;
+        private final long errors;
+
+        private Snapshot(long[] sorted, long errors) {
+            this.sorted = sorted;
+            this.errors = errors;
+        }
+
+        public int count() {
+            return sorted.length;
+        }
+
+        public long errors() {
+            return errors;
+        }
+
+        // Nearest rank, in milliseconds
+        public double percentileMillis(final double percentile) {
+            if (sorted.length == 0) {
+                return 0;
+            }
+            final int rank = (int) Math.ceil(percentile / 100 * sorted.length);
+            return sorted[Math.max(0, rank - 1)] / 1e6;
+        }
+
+        public double maxMillis() {
+            return sorted.length == 0 ? 0 : sorted[sorted.length - 1] / 1e6;
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package com.mrg.aws.loadtest;
+
+import com.mrg.aws.AWSApplication;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.boot.web.context.WebServerApplicationContext;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.nio.file.Files;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/*
+ * Boots the service against in-process S3 and DynamoDB stand-ins that add latency and
+ * errors, drives it over HTTP at a fixed rate and prints latency percentiles, throughput
+ * and heap / GC activity. The service and the load generator share this JVM, so the
+ * heap and GC figures cover both.
+ *
+ *   java -jar loadtest/target/loadtest.jar --rate=300 --duration-seconds=120 --s3-latency-ms=40
+ * */
+public class LoadTestMain {
+
+    public static void main(String[] args) throws Exception {
+        final LoadTestOptions options = new LoadTestOptions(args);
+        final Map<String, String> tables = new LinkedHashMap<>();
+        tables.put("images", "ImageId");
+        tables.put("contents", "ContentHash");
+
+        try (S3StandIn s3 = new S3StandIn(options.faults("s3"));
+             DynamoDbStandIn dynamoDb = new DynamoDbStandIn(options.faults("dynamodb"), tables)) {
+            s3.start();
+            dynamoDb.start();
+
+            final Map<String, String> properties = new LinkedHashMap<>();
+            properties.put("server.port", "0");
+            properties.put("storage.type", "aws");
+            properties.put("aws.access_key_id", "loadtest");
+            properties.put("aws.secret_access_key", "loadtest");
+            properties.put("aws.s3.region", "us-east-1");
+            properties.put("aws.s3.bucket", "images");
+            properties.put("aws.s3.endpoint", s3.endpoint());
+            properties.put("aws.dynamodb.table", "images");
+            properties.put("aws.dynamodb.content-table", "contents");
+            properties.put("aws.dynamodb.endpoint", dynamoDb.endpoint());
+            properties.put("image.outbox.directory", Files.createTempDirectory("loadtest-outbox").toString());
+            properties.put("image.cache.disk.directory", Files.createTempDirectory("loadtest-cache").toString());
+            // no sweeps during a run, and single part uploads (the S3 stand-in has no multipart)
+            properties.put("image.reconciliation.cron", "-");
+            properties.put("aws.s3.multipart.threshold", String.valueOf(Long.MAX_VALUE));
+            properties.putAll(options.getProperties());
+            final String[] applicationArgs = properties.entrySet().stream()
+                    .map(property -> "--" + property.getKey() + "=" + property.getValue())
+                    .toArray(String[]::new);
+
+            try (ConfigurableApplicationContext context = new SpringApplicationBuilder(AWSApplication.class).run(applicationArgs)) {
+                final int port = ((WebServerApplicationContext) context).getWebServer().getPort();
+                final Workload workload = new Workload("http://localhost:" + port, options);
+                try {
+                    System.out.println("Options: " + options);
+                    System.out.println("Upload size: " + workload.imageBytes() + " bytes");
+                    workload.seed();
+                    workload.run(options.getLong("warmup-seconds"), false);
+
+                    final long gcCountBefore = gcCount();
+                    final long gcMillisBefore = gcMillis();
+                    final long seconds = options.getLong("duration-seconds");
+                    workload.run(seconds, true);
+                    report(workload, seconds, gcCount() - gcCountBefore, gcMillis() - gcMillisBefore);
+                } finally {
+                    workload.close();
+                }
+            }
+        }
+    }
+
+    private static void report(final Workload workload, final long seconds, final long gcCount, final long gcMillis) {
+        System.out.println(String.format("%-10s %8s %7s %9s %9s %9s %9s %9s",
+                "operation", "count", "errors", "req/s", "p50 ms", "p99 ms", "p99.9 ms", "max ms"));
+        workload.getRecorders().forEach((operation, recorder) -> {
+            final LatencyRecorder.Snapshot snapshot = recorder.snapshot();
+            System.out.println(String.format("%-10s %8d %7d %9.1f %9.2f %9.2f %9.2f %9.2f",
+                    operation, snapshot.count(), snapshot.errors(), (double) snapshot.count() / seconds,
+                    snapshot.percentileMillis(50), snapshot.percentileMillis(99),
+                    snapshot.percentileMillis(99.9), snapshot.maxMillis()));
+        });
+        System.out.println("Dropped (client backlog full): " + workload.getDropped());
+
+        final MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+        System.out.println(String.format("Heap used %d MB, committed %d MB, max %d MB",
+                heap.getUsed() >> 20, heap.getCommitted() >> 20, heap.getMax() >> 20));
+        System.out.println(String.format("GC %d collections, %d ms (%.2f%% of the run)",
+                gcCount, gcMillis, gcMillis / (seconds * 10.0)));
+    }
+
+    private static long gcCount() {
+        return ManagementFactory.getGarbageCollectorMXBeans().stream()
+                .mapToLong(GarbageCollectorMXBean::getCollectionCount).filter(count -> count > 0).sum();
+    }
+
+    private static long gcMillis() {
+        return ManagementFactory.getGarbageCollectorMXBeans().stream()
+                .mapToLong(GarbageCollectorMXBean::getCollectionTime).filter(time -> time > 0).sum();
+    }
+}
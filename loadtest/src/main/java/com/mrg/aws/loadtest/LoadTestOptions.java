@@ -0,0 +1,79 @@
+package com.mrg.aws.loadtest;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/*
+ * --name=value arguments. The load test options below are consumed here, any other
+ * argument is a property of the service (e.g. --server.tomcat.threads.max=50) and
+ * overrides the load test defaults.
+ * */
+public class LoadTestOptions {
+
+    private static final Map<String, String> DEFAULTS = new LinkedHashMap<>();
+
+    static {
+        // requests started per second, whatever the response times are (open loop)
+        DEFAULTS.put("rate", "200");
+        DEFAULTS.put("duration-seconds", "60");
+        DEFAULTS.put("warmup-seconds", "15");
+        // concurrent client connections
+        DEFAULTS.put("clients", "64");
+        // relative weights of the operations
+        DEFAULTS.put("upload-weight", "10");
+        DEFAULTS.put("download-weight", "70");
+        DEFAULTS.put("search-weight", "20");
+        // images uploaded before the run, downloads pick one of them
+        DEFAULTS.put("seed-images", "200");
+        // uploads are JPEG noise of this size (a few hundred KB at 1024x768)
+        DEFAULTS.put("image-width", "1024");
+        DEFAULTS.put("image-height", "768");
+        DEFAULTS.put("s3-latency-ms", "20");
+        DEFAULTS.put("s3-jitter-ms", "10");
+        DEFAULTS.put("s3-error-rate", "0.001");
+        DEFAULTS.put("dynamodb-latency-ms", "5");
+        DEFAULTS.put("dynamodb-jitter-ms", "5");
+        DEFAULTS.put("dynamodb-error-rate", "0.001");
+    }
+
+    private final Map<String, String> values = new LinkedHashMap<>(DEFAULTS);
+    private final Map<String, String> properties = new LinkedHashMap<>();
+
+    public LoadTestOptions(final String[] args) {
+        for (String arg : args) {
+            if (!arg.startsWith("--") || !arg.contains("=")) {
+                throw new IllegalArgumentException("Expected --name=value, got " + arg);
+            }
+            final String name = arg.substring(2, arg.indexOf('='));
+            final String value = arg.substring(arg.indexOf('=') + 1);
+            (DEFAULTS.containsKey(name) ? values : properties).put(name, value);
+        }
+    }
+
+    public int getInt(final String name) {
+        return Integer.parseInt(values.get(name));
+    }
+
+    public long getLong(final String name) {
+        return Long.parseLong(values.get(name));
+    }
+
+    public double getDouble(final String name) {
+        return Double.parseDouble(values.get(name));
+    }
+
+    public FaultInjection faults(final String service) {
+        return new FaultInjection(getLong(service + "-latency-ms"), getLong(service + "-jitter-ms"),
+                getDouble(service + "-error-rate"));
+    }
+
+    // Service properties given on the command line
+    public Map<String, String> getProperties() {
+        return properties;
+    }
+
+    @Override
+    public String toString() {
+        return values.toString();
+    }
+}
@@ -0,0 +1,280 @@
+package com.mrg.aws.loadtest;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import org.springframework.util.DigestUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/*
+ * In-memory S3 for path style requests (/bucket/key): PutObject, GetObject (with
+ * ranges), HeadObject, DeleteObject, ListObjectsV2 and DeleteObjects. Multipart
+ * uploads are not supported, the load test raises aws.s3.multipart.threshold instead.
+ * Requests are not authenticated.
+ * */
+public class S3StandIn extends StandInServer {
+
+    private static final String NAMESPACE = "http://s3.amazonaws.com/doc/2006-03-01/";
+    private static final String META_PREFIX = "x-amz-meta-";
+    private static final Pattern RANGE = Pattern.compile("bytes=(\\d*)-(\\d*)");
+    private static final Pattern DELETE_KEY = Pattern.compile("<Key>(.*?)</Key>", Pattern.DOTALL);
+
+    // bucket + "/" + key, sorted for listings
+    private final ConcurrentSkipListMap<String, Blob> objects = new ConcurrentSkipListMap<>();
+
+    public S3StandIn(FaultInjection faults) {
+        super(faults);
+    }
+
+    public int size() {
+        return objects.size();
+    }
+
+    @Override
+    protected void serve(final HttpExchange exchange) throws IOException {
+        final String path = decode(exchange.getRequestURI().getRawPath().substring(1));
+        final Map<String, String> query = query(exchange.getRequestURI().getRawQuery());
+        final int slash = path.indexOf('/');
+        final String method = exchange.getRequestMethod();
+        if (slash < 0 || slash == path.length() - 1) {
+            final String bucket = slash < 0 ? path : path.substring(0, slash);
+            if ("GET".equals(method) && "2".equals(query.get("list-type"))) {
+                list(exchange, bucket, query);
+            } else if ("POST".equals(method) && query.containsKey("delete")) {
+                deleteAll(exchange, bucket);
+            } else {
+                error(exchange, 501, "NotImplemented", method + " on a bucket is not supported");
+            }
+            return;
+        }
+        if (!query.isEmpty() && !"GET".equals(method)) {
+            // uploads, uploadId, tagging, acl...
+            error(exchange, 501, "NotImplemented", method + " " + query.keySet() + " is not supported");
+            return;
+        }
+        switch (method) {
+            case "PUT":
+                put(exchange, path);
+                break;
+            case "GET":
+            case "HEAD":
+                get(exchange, path);
+                break;
+            case "DELETE":
+                objects.remove(path);
+                send(exchange, 204, null, new byte[0]);
+                break;
+            default:
+                error(exchange, 405, "MethodNotAllowed", method + " is not allowed");
+        }
+    }
+
+    @Override
+    protected void fail(final HttpExchange exchange) throws IOException {
+        error(exchange, 503, "SlowDown", "Injected failure");
+    }
+
+    private void put(final HttpExchange exchange, final String path) throws IOException {
+        final Headers headers = exchange.getRequestHeaders();
+        byte[] content = readBody(exchange);
+        final String contentSha256 = headers.getFirst("x-amz-content-sha256");
+        if (contentSha256 != null && contentSha256.startsWith("STREAMING-")) {
+            content = decodeChunked(content);
+        }
+        final Map<String, String> metadata = new HashMap<>();
+        headers.forEach((name, values) -> {
+            if (name.toLowerCase().startsWith(META_PREFIX)) {
+                metadata.put(name.toLowerCase(), values.get(0));
+            }
+        });
+        final Blob blob = new Blob(content, headers.getFirst("Content-Type"), metadata);
+        objects.put(path, blob);
+        exchange.getResponseHeaders().set("ETag", blob.entityTag);
+        send(exchange, 200, null, new byte[0]);
+    }
+
+    private void get(final HttpExchange exchange, final String path) throws IOException {
+        final Blob blob = objects.get(path);
+        if (blob == null) {
+            error(exchange, 404, "NoSuchKey", "The specified key does not exist.");
+            return;
+        }
+        final Headers headers = exchange.getResponseHeaders();
+        headers.set("ETag", blob.entityTag);
+        headers.set("Last-Modified", DateTimeFormatter.RFC_1123_DATE_TIME.format(blob.lastModified.atOffset(ZoneOffset.UTC)));
+        headers.set("Accept-Ranges", "bytes");
+        blob.metadata.forEach(headers::set);
+        final String contentType = blob.contentType != null ? blob.contentType : "binary/octet-stream";
+        if ("HEAD".equals(exchange.getRequestMethod())) {
+            headers.set("Content-Length", String.valueOf(blob.content.length));
+            send(exchange, 200, contentType, new byte[0]);
+            return;
+        }
+        final String range = exchange.getRequestHeaders().getFirst("Range");
+        if (range == null) {
+            send(exchange, 200, contentType, blob.content);
+            return;
+        }
+        final Matcher matcher = RANGE.matcher(range);
+        final int length = blob.content.length;
+        long first;
+        long last;
+        if (!matcher.matches() || (matcher.group(1).isEmpty() && matcher.group(2).isEmpty())) {
+            first = -1;
+            last = -1;
+        } else if (matcher.group(1).isEmpty()) {
+            first = Math.max(0, length - Long.parseLong(matcher.group(2)));
+            last = length - 1;
+        } else {
+            first = Long.parseLong(matcher.group(1));
+            last = matcher.group(2).isEmpty() ? length - 1 : Math.min(length - 1, Long.parseLong(matcher.group(2)));
+        }
+        if (first < 0 || first >= length || last < first) {
+            headers.set("Content-Range", "bytes */" + length);
+            error(exchange, 416, "InvalidRange", "The requested range is not satisfiable");
+            return;
+        }
+        final byte[] part = new byte[(int) (last - first + 1)];
+        System.arraycopy(blob.content, (int) first, part, 0, part.length);
+        headers.set("Content-Range", "bytes " + first + "-" + last + "/" + length);
+        send(exchange, 206, contentType, part);
+    }
+
+    private void list(final HttpExchange exchange, final String bucket, final Map<String, String> query) throws IOException {
+        final String prefix = bucket + "/" + query.getOrDefault("prefix", "");
+        final int maxKeys = Integer.parseInt(query.getOrDefault("max-keys", "1000"));
+        final String token = query.get("continuation-token");
+        final NavigableMap<String, Blob> remaining = token == null
+                ? objects.tailMap(prefix, true)
+                : objects.tailMap(bucket + "/" + token, false);
+        final StringBuilder xml = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?>")
+                .append("<ListBucketResult xmlns=\"").append(NAMESPACE).append("\">")
+                .append("<Name>").append(escape(bucket)).append("</Name>");
+        int count = 0;
+        String lastKey = null;
+        boolean truncated = false;
+        for (Map.Entry<String, Blob> entry : remaining.entrySet()) {
+            if (!entry.getKey().startsWith(prefix)) {
+                break;
+            }
+            if (count == maxKeys) {
+                truncated = true;
+                break;
+            }
+            lastKey = entry.getKey().substring(bucket.length() + 1);
+            final Blob blob = entry.getValue();
+            xml.append("<Contents><Key>").append(escape(lastKey)).append("</Key>")
+                    .append("<LastModified>").append(blob.lastModified).append("</LastModified>")
+                    .append("<ETag>").append(escape(blob.entityTag)).append("</ETag>")
+                    .append("<Size>").append(blob.content.length).append("</Size>")
+                    .append("<StorageClass>STANDARD</StorageClass></Contents>");
+            count++;
+        }
+        xml.append("<KeyCount>").append(count).append("</KeyCount>")
+                .append("<MaxKeys>").append(maxKeys).append("</MaxKeys>")
+                .append("<IsTruncated>").append(truncated).append("</IsTruncated>");
+        if (truncated) {
+            xml.append("<NextContinuationToken>").append(escape(lastKey)).append("</NextContinuationToken>");
+        }
+        xml.append("</ListBucketResult>");
+        send(exchange, 200, "application/xml", xml.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    // Quiet mode only, nothing is reported for deleted keys
+    private void deleteAll(final HttpExchange exchange, final String bucket) throws IOException {
+        final Matcher matcher = DELETE_KEY.matcher(new String(readBody(exchange), StandardCharsets.UTF_8));
+        while (matcher.find()) {
+            objects.remove(bucket + "/" + unescape(matcher.group(1)));
+        }
+        send(exchange, 200, "application/xml", ("<?xml version=\"1.0\" encoding=\"UTF-8\"?><DeleteResult xmlns=\""
+                + NAMESPACE + "\"></DeleteResult>").getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void error(final HttpExchange exchange, final int status, final String code,
+                              final String message) throws IOException {
+        send(exchange, status, "application/xml", ("<?xml version=\"1.0\" encoding=\"UTF-8\"?><Error><Code>" + code
+                + "</Code><Message>" + escape(message) + "</Message></Error>").getBytes(StandardCharsets.UTF_8));
+    }
+
+    /*
+     * Payloads signed chunk by chunk (aws-chunked, sent over plain HTTP):
+     *   hex-size;chunk-signature=...\r\n data \r\n ... 0;chunk-signature=...\r\n\r\n
+     * */
+    private static byte[] decodeChunked(final byte[] body) {
+        final ByteArrayOutputStream content = new ByteArrayOutputStream(body.length);
+        int position = 0;
+        while (position < body.length) {
+            int lineEnd = position;
+            while (body[lineEnd] != '\r') {
+                lineEnd++;
+            }
+            final String header = new String(body, position, lineEnd - position, StandardCharsets.US_ASCII);
+            final int size = Integer.parseInt(header.substring(0, header.indexOf(';') < 0 ? header.length() : header.indexOf(';')), 16);
+            if (size == 0) {
+                break;
+            }
+            content.write(body, lineEnd + 2, size);
+            position = lineEnd + 2 + size + 2;
+        }
+        return content.toByteArray();
+    }
+
+    private static Map<String, String> query(final String rawQuery) {
+        final Map<String, String> query = new LinkedHashMap<>();
+        if (rawQuery == null || rawQuery.isEmpty()) {
+            return query;
+        }
+        for (String parameter : rawQuery.split("&")) {
+            final int equals = parameter.indexOf('=');
+            query.put(decode(equals < 0 ? parameter : parameter.substring(0, equals)),
+                    equals < 0 ? "" : decode(parameter.substring(equals + 1)));
+        }
+        return query;
+    }
+
+    private static String decode(final String value) {
+        try {
+            return URLDecoder.decode(value, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String escape(final String value) {
+        return value.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\"", "&quot;");
+    }
+
+    private static String unescape(final String value) {
+        return value.replace("&lt;", "<").replace("&gt;", ">").replace("&quot;", "\"").replace("&amp;", "&");
+    }
+
+    private static final class Blob {
+
+        private final byte[] content;
+        private final String contentType;
+        private final Map<String, String> metadata;
+        private final Instant lastModified = Instant.now();
+        private final String entityTag;
+
+        private Blob(byte[] content, String contentType, Map<String, String> metadata) {
+            this.content = content;
+            this.contentType = contentType;
+            this.metadata = metadata;
+            this.entityTag = "\"" + DigestUtils.md5DigestAsHex(content) + "\"";
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package com.mrg.aws.loadtest;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.springframework.util.StreamUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/*
+ * Local HTTP server standing in for an AWS service, on an ephemeral port of the
+ * loopback interface. Every request goes through the FaultInjection first and is
+ * served on its own thread, so injected latency never delays other requests.
+ * */
+public abstract class StandInServer implements HttpHandler, AutoCloseable {
+
+    private final FaultInjection faults;
+    private HttpServer server;
+    private ExecutorService executor;
+
+    protected StandInServer(FaultInjection faults) {
+        this.faults = faults;
+    }
+
+    public void start() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 1024);
+        executor = Executors.newCachedThreadPool();
+        server.setExecutor(executor);
+        server.createContext("/", this);
+        server.start();
+    }
+
+    public String endpoint() {
+        return "http://localhost:" + server.getAddress().getPort();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    @Override
+    public void handle(final HttpExchange exchange) throws IOException {
+        try {
+            if (faults.apply()) {
+                // the body would not be read otherwise, the client waits for it to be consumed
+                StreamUtils.drain(exchange.getRequestBody());
+                fail(exchange);
+            } else {
+                serve(exchange);
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException ex) {
+            send(exchange, 500, "text/plain", String.valueOf(ex).getBytes());
+        } finally {
+            exchange.close();
+        }
+    }
+
+    protected abstract void serve(HttpExchange exchange) throws IOException;
+
+    // Answers with the service's own retryable server error
+    protected abstract void fail(HttpExchange exchange) throws IOException;
+
+    protected static byte[] readBody(final HttpExchange exchange) throws IOException {
+        try (InputStream body = exchange.getRequestBody()) {
+            return StreamUtils.copyToByteArray(body);
+        }
+    }
+
+    protected static void send(final HttpExchange exchange, final int status, final String contentType,
+                               final byte[] body) throws IOException {
+        if (contentType != null) {
+            exchange.getResponseHeaders().set("Content-Type", contentType);
+        }
+        if ("HEAD".equals(exchange.getRequestMethod()) || body.length == 0) {
+            exchange.sendResponseHeaders(status, -1);
+            return;
+        }
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream outputStream = exchange.getResponseBody()) {
+            outputStream.write(body);
+        }
+    }
+}
@@ -0,0 +1,218 @@
+package com.mrg.aws.loadtest;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.springframework.util.StreamUtils;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Mixed upload / download / search traffic at a fixed rate. Requests are started on
+ * schedule whether or not earlier ones have completed (open loop), and a latency is
+ * measured from the scheduled start, so time spent waiting for a free client counts
+ * (no coordinated omission). Requests are dropped, not queued, once every client is
+ * busy and a second worth of requests is waiting; drops are reported separately.
+ * */
+public class Workload {
+
+    private static final String[] TAGS = {"cat", "dog", "bird", "beach", "city", "night", "snow", "forest"};
+    private static final String BOUNDARY = "----loadtest-boundary";
+
+    private final String baseUrl;
+    private final LoadTestOptions options;
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final byte[] image;
+    private final List<String> imageIds = new ArrayList<>();
+    private final ThreadPoolExecutor clients;
+    private final Map<String, LatencyRecorder> recorders = new LinkedHashMap<>();
+    private final AtomicLong dropped = new AtomicLong();
+
+    public Workload(String baseUrl, LoadTestOptions options) throws IOException {
+        this.baseUrl = baseUrl;
+        this.options = options;
+        this.image = jpeg(options.getInt("image-width"), options.getInt("image-height"));
+        this.clients = new ThreadPoolExecutor(options.getInt("clients"), options.getInt("clients"),
+                0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>());
+        recorders.put("upload", new LatencyRecorder());
+        recorders.put("download", new LatencyRecorder());
+        recorders.put("search", new LatencyRecorder());
+    }
+
+    public int imageBytes() {
+        return image.length;
+    }
+
+    /*
+     * Uploads the images downloads will pick from, then reads their ids back from the
+     * listing once the metadata outbox has written them.
+     * */
+    public void seed() throws Exception {
+        final int count = options.getInt("seed-images");
+        final List<Future<?>> uploads = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            uploads.add(clients.submit(() -> {
+                if (upload() >= 300) {
+                    throw new IllegalStateException("Seed upload failed");
+                }
+                return null;
+            }));
+        }
+        for (Future<?> upload : uploads) {
+            upload.get();
+        }
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+        while (imageIds.size() < count && System.nanoTime() < deadline) {
+            TimeUnit.MILLISECONDS.sleep(500);
+            imageIds.clear();
+            String cursor = null;
+            do {
+                final JsonNode page = objectMapper.readTree(new URL(baseUrl + "/image/list?pageSize=1000"
+                        + (cursor == null ? "" : "&cursor=" + URLEncoder.encode(cursor, "UTF-8"))));
+                page.get("items").forEach(item -> imageIds.add(item.get("imageId").asText()));
+                cursor = page.get("nextCursor").isNull() ? null : page.get("nextCursor").asText();
+            } while (cursor != null);
+        }
+        if (imageIds.isEmpty()) {
+            throw new IllegalStateException("No seeded image was listed");
+        }
+    }
+
+    // Sends requests at the target rate for the given time, recording only when asked to
+    public void run(final long seconds, final boolean record) throws InterruptedException {
+        recorders.values().forEach(LatencyRecorder::reset);
+        dropped.set(0);
+        final double rate = options.getDouble("rate");
+        final long interval = (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+        final long start = System.nanoTime();
+        final long end = start + TimeUnit.SECONDS.toNanos(seconds);
+        final int backlog = (int) Math.max(1, rate);
+        final int uploadWeight = options.getInt("upload-weight");
+        final int downloadWeight = options.getInt("download-weight");
+        final int totalWeight = uploadWeight + downloadWeight + options.getInt("search-weight");
+        for (long scheduled = start; scheduled < end; scheduled += interval) {
+            final long wait = scheduled - System.nanoTime();
+            if (wait > 0) {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            }
+            if (clients.getQueue().size() >= backlog) {
+                dropped.incrementAndGet();
+                continue;
+            }
+            final int pick = ThreadLocalRandom.current().nextInt(totalWeight);
+            final String operation = pick < uploadWeight ? "upload" : pick < uploadWeight + downloadWeight ? "download" : "search";
+            final long intendedStart = scheduled;
+            clients.execute(() -> {
+                boolean failed;
+                try {
+                    failed = call(operation) >= 400;
+                } catch (IOException | RuntimeException ex) {
+                    failed = true;
+                }
+                if (record) {
+                    recorders.get(operation).record(System.nanoTime() - intendedStart, failed);
+                }
+            });
+        }
+        // requests still in flight belong to this phase
+        while (clients.getActiveCount() > 0 || !clients.getQueue().isEmpty()) {
+            TimeUnit.MILLISECONDS.sleep(10);
+        }
+    }
+
+    public Map<String, LatencyRecorder> getRecorders() {
+        return recorders;
+    }
+
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    public void close() {
+        clients.shutdownNow();
+    }
+
+    private int call(final String operation) throws IOException {
+        switch (operation) {
+            case "upload":
+                return upload();
+            case "download":
+                return get("/image/download/" + imageIds.get(ThreadLocalRandom.current().nextInt(imageIds.size())));
+            default:
+                return get("/image/search/" + URLEncoder.encode(TAGS[ThreadLocalRandom.current().nextInt(TAGS.length)], "UTF-8"));
+        }
+    }
+
+    private int get(final String path) throws IOException {
+        final HttpURLConnection connection = (HttpURLConnection) new URL(baseUrl + path).openConnection();
+        return consume(connection);
+    }
+
+    // Distinct bytes on every upload (trailing random bytes after the JPEG), so deduplication never skips the put
+    private int upload() throws IOException {
+        final ThreadLocalRandom random = ThreadLocalRandom.current();
+        final byte[] suffix = new byte[16];
+        random.nextBytes(suffix);
+        final String tags = TAGS[random.nextInt(TAGS.length)] + "," + TAGS[random.nextInt(TAGS.length)];
+        final ByteArrayOutputStream body = new ByteArrayOutputStream(image.length + 1024);
+        body.write(("--" + BOUNDARY + "\r\nContent-Disposition: form-data; name=\"image\"; filename=\"load.jpg\"\r\n"
+                + "Content-Type: image/jpeg\r\n\r\n").getBytes(StandardCharsets.UTF_8));
+        body.write(image);
+        body.write(suffix);
+        body.write(("\r\n--" + BOUNDARY + "\r\nContent-Disposition: form-data; name=\"description\"\r\n\r\nload test"
+                + "\r\n--" + BOUNDARY + "\r\nContent-Disposition: form-data; name=\"tags\"\r\n\r\n" + tags
+                + "\r\n--" + BOUNDARY + "--\r\n").getBytes(StandardCharsets.UTF_8));
+
+        final HttpURLConnection connection = (HttpURLConnection) new URL(baseUrl + "/image/upload").openConnection();
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        connection.setRequestProperty("Content-Type", "multipart/form-data; boundary=" + BOUNDARY);
+        connection.setFixedLengthStreamingMode(body.size());
+        try (OutputStream outputStream = connection.getOutputStream()) {
+            body.writeTo(outputStream);
+        }
+        return consume(connection);
+    }
+
+    // Reads the whole response, so the connection goes back to the keep-alive pool
+    private static int consume(final HttpURLConnection connection) throws IOException {
+        final int status = connection.getResponseCode();
+        try (InputStream response = status >= 400 ? connection.getErrorStream() : connection.getInputStream()) {
+            if (response != null) {
+                StreamUtils.drain(response);
+            }
+        }
+        return status;
+    }
+
+    private static byte[] jpeg(final int width, final int height) throws IOException {
+        final BufferedImage noise = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        final ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                noise.setRGB(x, y, random.nextInt(0x1000000));
+            }
+        }
+        final ByteArrayOutputStream jpeg = new ByteArrayOutputStream();
+        ImageIO.write(noise, "jpg", jpeg);
+        return jpeg.toByteArray();
+    }
+}
@@ -0,0 +1,113 @@
+package com.mrg.aws.admission;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Admission control on the bytes of uploads and downloads in flight on this node.
+ * A request waits up to image.admission.max-wait-ms for room in image.admission.max-bytes,
+ * then fails with 503 and Retry-After. Waiters are admitted in arrival order, a request
+ * larger than the whole budget is admitted alone.
+ * Meters: image.admission.inflight / image.admission.queued (bytes) and
+ * image.admission.rejections (tagged direction).
+ * */
+@Component
+public class ByteBudget {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ByteBudget.class);
+
+    // the semaphore counts KB, an int of bytes would cap the budget at 2 GB
+    private static final long UNIT = 1024;
+
+    @Value("${image.admission.max-bytes}")
+    private long maxBytes;
+    @Value("${image.admission.max-wait-ms}")
+    private long maxWaitMillis;
+    @Value("${image.admission.retry-after-seconds}")
+    private long retryAfterSeconds;
+
+    private MeterRegistry registry;
+    private Semaphore units;
+    private int maxUnits;
+    private final AtomicLong queuedBytes = new AtomicLong();
+
+    @Autowired
+    public ByteBudget(MeterRegistry registry) {
+        this.registry = registry;
+    }
+
+    @PostConstruct
+    public void init() {
+        maxUnits = (int) Math.min(Integer.MAX_VALUE, maxBytes / UNIT);
+        units = new Semaphore(maxUnits, true);
+        Gauge.builder("image.admission.inflight", this, ByteBudget::inFlightBytes)
+                .baseUnit("bytes")
+                .register(registry);
+        Gauge.builder("image.admission.queued", queuedBytes, AtomicLong::get)
+                .baseUnit("bytes")
+                .register(registry);
+    }
+
+    /*
+     * Reserves the bytes of one transfer, the permit gives them back when closed.
+     * direction is "upload" or "download".
+     * */
+    public Permit acquire(final long bytes, final String direction) {
+        if (maxUnits <= 0) {
+            return Permit.NONE;
+        }
+        final int requested = (int) Math.max(1, Math.min(maxUnits, (bytes + UNIT - 1) / UNIT));
+        if (units.tryAcquire(requested)) {
+            return new Permit(units, requested);
+        }
+        queuedBytes.addAndGet(bytes);
+        try {
+            if (units.tryAcquire(requested, maxWaitMillis, TimeUnit.MILLISECONDS)) {
+                return new Permit(units, requested);
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } finally {
+            queuedBytes.addAndGet(-bytes);
+        }
+        registry.counter("image.admission.rejections", "direction", direction).increment();
+        LOGGER.info("Rejected {} of {} bytes, {} bytes already in flight.", direction, bytes, inFlightBytes());
+        throw new AdmissionRejectedException(retryAfterSeconds);
+    }
+
+    public long inFlightBytes() {
+        return maxUnits <= 0 ? 0 : (maxUnits - units.availablePermits()) * UNIT;
+    }
+
+    public static final class Permit implements AutoCloseable {
+
+        static final Permit NONE = new Permit(null, 0);
+
+        private final Semaphore units;
+        private final int count;
+        private boolean released;
+
+        private Permit(final Semaphore units, final int count) {
+            this.units = units;
+            this.count = count;
+        }
+
+        @Override
+        public synchronized void close() {
+            if (!released && units != null) {
+                released = true;
+                units.release(count);
+            }
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package com.mrg.aws.admission;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/*
+ * Admits multipart uploads on their Content-Length before the container reads and parses
+ * the body, so the bytes are reserved while parts are spooled and not only for the storage
+ * calls. A request without a length reserves spring.servlet.multipart.max-request-size.
+ * The permit is held until the response is complete, past the handler for async uploads.
+ * Resumable chunks are admitted by their controller, they are streamed and never parsed.
+ * Ordered ahead of any filter that might read request parameters, which parses the body.
+ * */
+@Component
+@Order(Ordered.HIGHEST_PRECEDENCE + 10)
+public class UploadAdmissionFilter extends OncePerRequestFilter {
+
+    private static final Set<String> UPLOAD_PATHS = new HashSet<>(Arrays.asList(
+            "/image/upload", "/image/upload/batch", "/image/async/upload"));
+
+    @Value("${spring.servlet.multipart.max-request-size}")
+    private DataSize maxRequestSize;
+
+    private ByteBudget byteBudget;
+
+    @Autowired
+    public UploadAdmissionFilter(ByteBudget byteBudget) {
+        this.byteBudget = byteBudget;
+    }
+
+    @Override
+    protected boolean shouldNotFilter(final HttpServletRequest request) {
+        final String path = request.getRequestURI().substring(request.getContextPath().length());
+        return !HttpMethod.POST.matches(request.getMethod()) || !UPLOAD_PATHS.contains(path);
+    }
+
+    @Override
+    protected void doFilterInternal(final HttpServletRequest request, final HttpServletResponse response,
+                                    final FilterChain filterChain) throws ServletException, IOException {
+        final long contentLength = request.getContentLengthLong();
+        final ByteBudget.Permit permit;
+        try {
+            permit = byteBudget.acquire(contentLength < 0 ? maxRequestSize.toBytes() : contentLength, "upload");
+        } catch (AdmissionRejectedException ex) {
+            // nothing of the body is read, the client retries after the given delay
+            response.setHeader(HttpHeaders.RETRY_AFTER, String.valueOf(ex.getRetryAfterSeconds()));
+            response.sendError(ex.getStatus().value(), ex.getReason());
+            return;
+        }
+        boolean async = false;
+        try {
+            filterChain.doFilter(request, response);
+            if (request.isAsyncStarted()) {
+                request.getAsyncContext().addListener(new Release(permit));
+                async = true;
+            }
+        } finally {
+            if (!async) {
+                permit.close();
+            }
+        }
+    }
+
+    private static final class Release implements AsyncListener {
+
+        private final ByteBudget.Permit permit;
+
+        private Release(final ByteBudget.Permit permit) {
+            this.permit = permit;
+        }
+
+        @Override
+        public void onComplete(final AsyncEvent event) {
+            permit.close();
+        }
+
+        @Override
+        public void onTimeout(final AsyncEvent event) {
+            permit.close();
+        }
+
+        @Override
+        public void onError(final AsyncEvent event) {
+            permit.close();
+        }
+
+        @Override
+        public void onStartAsync(final AsyncEvent event) {
+            // a new async cycle, onComplete still follows
+            event.getAsyncContext().addListener(this);
+        }
+    }
+}
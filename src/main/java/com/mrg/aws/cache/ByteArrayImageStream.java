@@ -0,0 +1,32 @@
+package com.mrg.aws.cache;
+
+import com.mrg.aws.model.ImageStream;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/*
+ * Serves a slice of a cached byte array, written to the client in one call
+ * without any copy buffer.
+ * */
+class ByteArrayImageStream extends ImageStream {
+
+    private final byte[] bytes;
+    private final int offset;
+
+    ByteArrayImageStream(byte[] bytes, int offset, int length, String contentRange) {
+        super(length, null, contentRange);
+        this.bytes = bytes;
+        this.offset = offset;
+    }
+
+    @Override
+    public void writeTo(OutputStream outputStream) throws IOException {
+        outputStream.write(bytes, offset, (int) getContentLength());
+    }
+
+    @Override
+    public void close() {
+        // nothing to release, the array stays in the cache
+    }
+}
@@ -0,0 +1,149 @@
+package com.mrg.aws.cache;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/*
+ * Copies every byte read by the client into the cache tiers. A cache write failure
+ * only disables caching for this download, it never fails the download itself.
+ * */
+class CachingInputStream extends FilterInputStream {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(CachingInputStream.class);
+
+    private final ImageCache cache;
+    private final String key;
+    // generation of the key when the download started, see ImageCache.evict
+    private final long generation;
+    private final long contentLength;
+    private byte[] heapCopy;
+    private Path tempFile;
+    private OutputStream fileCopy;
+    private long position;
+    private boolean finished;
+
+    CachingInputStream(ImageCache cache, String key, long generation, InputStream content, long contentLength,
+                       boolean toHeap, Path tempFile) throws IOException {
+        super(content);
+        this.cache = cache;
+        this.key = key;
+        this.generation = generation;
+        this.contentLength = contentLength;
+        this.heapCopy = toHeap ? new byte[(int) contentLength] : null;
+        this.tempFile = tempFile;
+        this.fileCopy = tempFile != null ? Files.newOutputStream(tempFile) : null;
+    }
+
+    @Override
+    public int read() throws IOException {
+        final int value = super.read();
+        if (value == -1) {
+            finish();
+        } else {
+            copy(new byte[]{(byte) value}, 0, 1);
+        }
+        return value;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        final int read = super.read(buffer, offset, length);
+        if (read == -1) {
+            finish();
+        } else {
+            copy(buffer, offset, read);
+        }
+        return read;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        // skipped bytes would leave a hole in the cached copy
+        abandon();
+        return super.skip(n);
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            super.close();
+        } finally {
+            if (!finished) {
+                abandon();
+            }
+        }
+    }
+
+    private void copy(byte[] buffer, int offset, int length) {
+        if (position + length > contentLength) {
+            abandon();
+            return;
+        }
+        if (heapCopy != null) {
+            System.arraycopy(buffer, offset, heapCopy, (int) position, length);
+        }
+        if (fileCopy != null) {
+            try {
+                fileCopy.write(buffer, offset, length);
+            } catch (IOException ex) {
+                LOGGER.error("Error= {} while writing cache file for key= {}", ex.getMessage(), key);
+                closeFile();
+                cache.deleteQuietly(tempFile);
+                tempFile = null;
+            }
+        }
+        position += length;
+    }
+
+    private void finish() {
+        if (finished) {
+            return;
+        }
+        finished = true;
+        if (position != contentLength) {
+            abandon();
+            return;
+        }
+        if (heapCopy != null) {
+            cache.commitHeap(key, generation, heapCopy);
+            heapCopy = null;
+        }
+        if (fileCopy != null) {
+            if (closeFile()) {
+                cache.commitDisk(key, generation, tempFile, contentLength);
+            } else {
+                cache.deleteQuietly(tempFile);
+            }
+            tempFile = null;
+        }
+    }
+
+    private void abandon() {
+        finished = true;
+        heapCopy = null;
+        if (fileCopy != null) {
+            closeFile();
+            cache.deleteQuietly(tempFile);
+            tempFile = null;
+        }
+    }
+
+    private boolean closeFile() {
+        try {
+            fileCopy.close();
+            return true;
+        } catch (IOException ex) {
+            LOGGER.error("Error= {} while closing cache file for key= {}", ex.getMessage(), key);
+            return false;
+        } finally {
+            fileCopy = null;
+        }
+    }
+}
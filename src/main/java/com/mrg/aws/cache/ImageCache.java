@@ -0,0 +1,280 @@
+package com.mrg.aws.cache;
+
+import com.mrg.aws.model.FileImageStream;
+import com.mrg.aws.model.ImageStream;
+import com.mrg.aws.util.RangeUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpRange;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.stream.Stream;
+
+/*
+ * Two tier cache in front of the S3 read path. Objects are immutable once written
+ * under their key, so entries never need to be invalidated except on delete.
+ *  - heap tier : byte-budget LRU of small objects, hits are written straight from the array
+ *  - disk tier : byte-budget LRU of files in a local directory, hits are streamed from the file
+ * Both tiers are filled while a full (non range) S3 download streams to the client.
+ * A download that started before an eviction must not put the evicted object back, so
+ * evict bumps the generation of the key and commits of an older generation are dropped.
+ * Generations are striped by key hash to stay bounded, an eviction may also drop the
+ * in-flight commit of an unrelated key of the same stripe (a later download caches it).
+ * */
+@Component
+public class ImageCache {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ImageCache.class);
+
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final int GENERATION_STRIPES = 1024;
+
+    @Value("${image.cache.heap.max-bytes}")
+    private long heapMaxBytes;
+    @Value("${image.cache.heap.max-entry-bytes}")
+    private long heapMaxEntryBytes;
+    @Value("${image.cache.disk.directory}")
+    private String diskDirectory;
+    @Value("${image.cache.disk.max-bytes}")
+    private long diskMaxBytes;
+    @Value("${image.cache.disk.max-entry-bytes}")
+    private long diskMaxEntryBytes;
+
+    // access ordered, eldest entry is the least recently used one
+    private final LinkedHashMap<String, byte[]> heapEntries = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<String, Long> diskEntries = new LinkedHashMap<>(16, 0.75f, true);
+    private final AtomicLongArray generations = new AtomicLongArray(GENERATION_STRIPES);
+    private long heapBytes;
+    private long diskBytes;
+    private Path directory;
+
+    private final AtomicLong heapHits = new AtomicLong();
+    private final AtomicLong heapMisses = new AtomicLong();
+    private final AtomicLong heapEvictions = new AtomicLong();
+    private final AtomicLong diskHits = new AtomicLong();
+    private final AtomicLong diskMisses = new AtomicLong();
+    private final AtomicLong diskEvictions = new AtomicLong();
+
+    /*
+     * Files of a previous run are still valid (keys are immutable) so they are
+     * picked up again, only unfinished temp files are removed.
+     * */
+    @PostConstruct
+    public void init() throws IOException {
+        if (!isDiskEnabled()) {
+            return;
+        }
+        directory = Files.createDirectories(Paths.get(diskDirectory));
+        try (Stream<Path> files = Files.list(directory)) {
+            files.forEach(file -> {
+                try {
+                    if (file.getFileName().toString().endsWith(TEMP_SUFFIX)) {
+                        Files.deleteIfExists(file);
+                    } else {
+                        addDiskEntry(file.getFileName().toString(), Files.size(file));
+                    }
+                } catch (IOException ex) {
+                    LOGGER.error("Error= {} while loading cached file {}", ex.getMessage(), file);
+                }
+            });
+        }
+        LOGGER.info("Disk cache loaded with {} files, {} bytes.", diskEntries.size(), diskBytes);
+    }
+
+    /*
+     * Returns the cached object (or the requested range of it), null on a miss.
+     * */
+    public ImageStream get(final String key, final HttpRange range) {
+        final byte[] bytes;
+        synchronized (heapEntries) {
+            bytes = heapEntries.get(key);
+        }
+        if (bytes != null) {
+            heapHits.incrementAndGet();
+            if (range == null) {
+                return new ByteArrayImageStream(bytes, 0, bytes.length, null);
+            }
+            final long[] bounds = RangeUtils.resolve(key, range, bytes.length);
+            return new ByteArrayImageStream(bytes, (int) bounds[0], (int) (bounds[1] - bounds[0] + 1),
+                    RangeUtils.contentRange(bounds, bytes.length));
+        }
+        heapMisses.incrementAndGet();
+
+        if (!isDiskEnabled()) {
+            return null;
+        }
+        final boolean cached;
+        synchronized (diskEntries) {
+            cached = diskEntries.get(fileName(key)) != null;
+        }
+        if (cached) {
+            try {
+                final FileChannel channel = FileChannel.open(directory.resolve(fileName(key)), StandardOpenOption.READ);
+                final long size = channel.size();
+                diskHits.incrementAndGet();
+                if (range == null) {
+                    return new FileImageStream(channel, 0, size, null);
+                }
+                try {
+                    final long[] bounds = RangeUtils.resolve(key, range, size);
+                    return new FileImageStream(channel, bounds[0], bounds[1] - bounds[0] + 1, RangeUtils.contentRange(bounds, size));
+                } catch (RuntimeException ex) {
+                    channel.close();
+                    throw ex;
+                }
+            } catch (NoSuchFileException ex) {
+                // evicted between the lookup and the open
+                LOGGER.debug("Cached file for key= {} is gone.", key);
+            } catch (IOException ex) {
+                LOGGER.error("Error= {} while reading cached file for key= {}", ex.getMessage(), key);
+            }
+        }
+        diskMisses.incrementAndGet();
+        return null;
+    }
+
+    /*
+     * Wraps an object stream being served from S3 so that its bytes are written to the
+     * cache as the client consumes them. Entries are only committed once the whole
+     * object has been read, an aborted download leaves nothing behind.
+     * */
+    public InputStream tee(final String key, final InputStream content, final long contentLength) {
+        final boolean toHeap = contentLength <= heapMaxEntryBytes && heapMaxBytes > 0;
+        final boolean toDisk = isDiskEnabled() && contentLength <= diskMaxEntryBytes;
+        if (!toHeap && !toDisk) {
+            return content;
+        }
+        try {
+            final Path tempFile = toDisk ? Files.createTempFile(directory, fileName(key), TEMP_SUFFIX) : null;
+            return new CachingInputStream(this, key, generation(key), content, contentLength, toHeap, tempFile);
+        } catch (IOException ex) {
+            LOGGER.error("Error= {} while preparing cache entry for key= {}", ex.getMessage(), key);
+            return content;
+        }
+    }
+
+    public void evict(final String key) {
+        // before the removal, a commit that checks its generation later is then dropped
+        generations.incrementAndGet(stripe(key));
+        synchronized (heapEntries) {
+            final byte[] bytes = heapEntries.remove(key);
+            if (bytes != null) {
+                heapBytes -= bytes.length;
+            }
+        }
+        if (isDiskEnabled()) {
+            synchronized (diskEntries) {
+                final Long size = diskEntries.remove(fileName(key));
+                if (size != null) {
+                    diskBytes -= size;
+                }
+                deleteQuietly(directory.resolve(fileName(key)));
+            }
+        }
+    }
+
+    public Map<String, Long> stats() {
+        final Map<String, Long> stats = new LinkedHashMap<>();
+        synchronized (heapEntries) {
+            stats.put("heap.entries", (long) heapEntries.size());
+            stats.put("heap.bytes", heapBytes);
+        }
+        stats.put("heap.hits", heapHits.get());
+        stats.put("heap.misses", heapMisses.get());
+        stats.put("heap.evictions", heapEvictions.get());
+        synchronized (diskEntries) {
+            stats.put("disk.entries", (long) diskEntries.size());
+            stats.put("disk.bytes", diskBytes);
+        }
+        stats.put("disk.hits", diskHits.get());
+        stats.put("disk.misses", diskMisses.get());
+        stats.put("disk.evictions", diskEvictions.get());
+        return stats;
+    }
+
+    void commitHeap(final String key, final long generation, final byte[] bytes) {
+        synchronized (heapEntries) {
+            if (generation(key) != generation) {
+                return;
+            }
+            final byte[] previous = heapEntries.put(key, bytes);
+            heapBytes += bytes.length - (previous == null ? 0 : previous.length);
+            final Iterator<Map.Entry<String, byte[]>> eldest = heapEntries.entrySet().iterator();
+            while (heapBytes > heapMaxBytes && eldest.hasNext()) {
+                heapBytes -= eldest.next().getValue().length;
+                eldest.remove();
+                heapEvictions.incrementAndGet();
+            }
+        }
+    }
+
+    // The move happens under the lock evict deletes under, so it cannot land after the delete
+    void commitDisk(final String key, final long generation, final Path tempFile, final long size) {
+        try {
+            synchronized (diskEntries) {
+                if (generation(key) != generation) {
+                    deleteQuietly(tempFile);
+                    return;
+                }
+                Files.move(tempFile, directory.resolve(fileName(key)),
+                        StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                addDiskEntry(fileName(key), size);
+            }
+        } catch (IOException ex) {
+            LOGGER.error("Error= {} while committing cached file for key= {}", ex.getMessage(), key);
+            deleteQuietly(tempFile);
+        }
+    }
+
+    void deleteQuietly(final Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException ex) {
+            LOGGER.error("Error= {} while deleting cached file {}", ex.getMessage(), file);
+        }
+    }
+
+    private void addDiskEntry(final String fileName, final long size) {
+        synchronized (diskEntries) {
+            final Long previous = diskEntries.put(fileName, size);
+            diskBytes += size - (previous == null ? 0 : previous);
+            final Iterator<Map.Entry<String, Long>> eldest = diskEntries.entrySet().iterator();
+            while (diskBytes > diskMaxBytes && eldest.hasNext()) {
+                final Map.Entry<String, Long> entry = eldest.next();
+                diskBytes -= entry.getValue();
+                eldest.remove();
+                diskEvictions.incrementAndGet();
+                // readers holding the file open keep serving it, the space is freed when they close
+                deleteQuietly(directory.resolve(entry.getKey()));
+            }
+        }
+    }
+
+    private long generation(final String key) {
+        return generations.get(stripe(key));
+    }
+
+    private static int stripe(final String key) {
+        return (key.hashCode() & Integer.MAX_VALUE) % GENERATION_STRIPES;
+    }
+
+    private boolean isDiskEnabled() {
+        return diskMaxBytes > 0;
+    }
+
+    // keys are ids or hashes, anything else is replaced to keep file names safe
+    private static String fileName(final String key) {
+        return key.replaceAll("[^A-Za-z0-9._-]", "_");
+    }
+}
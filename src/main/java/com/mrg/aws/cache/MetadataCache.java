@@ -0,0 +1,110 @@
+package com.mrg.aws.cache;
+
+import com.mrg.aws.model.Image;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/*
+ * Bounded read-through cache of image records by id, in front of the metadata storage.
+ *  - entries expire after image.metadata-cache.ttl-ms, the LRU one is dropped when full
+ *  - unknown ids are cached too (for negative-ttl-ms), repeated misses stay off the table
+ *  - uploads and variant updates write through, deletes invalidate
+ * The TTL bounds how long a change made by another node can go unseen.
+ * */
+@Component
+public class MetadataCache {
+
+    @Value("${image.metadata-cache.max-entries}")
+    private int maxEntries;
+    @Value("${image.metadata-cache.ttl-ms}")
+    private long ttlMillis;
+    @Value("${image.metadata-cache.negative-ttl-ms}")
+    private long negativeTtlMillis;
+
+    // access ordered, eldest entry is the least recently used one
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    // bumped by every write, a load that overlapped one is returned but not cached
+    private long generation;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /*
+     * Returns the cached record, or loads it (null for an unknown id) and caches the result.
+     * The loader runs outside the lock, concurrent misses on one id may load it twice.
+     * */
+    public Image get(final String imageId, final Function<String, Image> loader) {
+        final long loadGeneration;
+        synchronized (entries) {
+            final Entry entry = entries.get(imageId);
+            if (entry != null && entry.expiresAt - System.nanoTime() > 0) {
+                hits.incrementAndGet();
+                return entry.image;
+            }
+            loadGeneration = generation;
+        }
+        misses.incrementAndGet();
+        final Image image = loader.apply(imageId);
+        synchronized (entries) {
+            if (generation == loadGeneration) {
+                store(imageId, image);
+            }
+        }
+        return image;
+    }
+
+    public void put(final Image image) {
+        synchronized (entries) {
+            generation++;
+            store(image.getImageId(), image);
+        }
+    }
+
+    public void evict(final String imageId) {
+        synchronized (entries) {
+            generation++;
+            entries.remove(imageId);
+        }
+    }
+
+    public Map<String, Long> stats() {
+        final Map<String, Long> stats = new LinkedHashMap<>();
+        synchronized (entries) {
+            stats.put("entries", (long) entries.size());
+        }
+        stats.put("hits", hits.get());
+        stats.put("misses", misses.get());
+        stats.put("evictions", evictions.get());
+        return stats;
+    }
+
+    private void store(final String imageId, final Image image) {
+        final long ttl = image == null ? negativeTtlMillis : ttlMillis;
+        if (maxEntries <= 0 || ttl <= 0) {
+            entries.remove(imageId);
+            return;
+        }
+        entries.put(imageId, new Entry(image, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(ttl)));
+        while (entries.size() > maxEntries) {
+            entries.remove(entries.keySet().iterator().next());
+            evictions.incrementAndGet();
+        }
+    }
+
+    private static final class Entry {
+        private final Image image;
+        private final long expiresAt;
+
+        private Entry(final Image image, final long expiresAt) {
+            this.image = image;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
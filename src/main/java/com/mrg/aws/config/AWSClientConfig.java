@@ -1,18 +1,32 @@
 package com.mrg.aws.config;
 
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.util.StringUtils;
 import software.amazon.awssdk.auth.credentials.AwsBasicCredentials;
 import software.amazon.awssdk.auth.credentials.AwsCredentials;
 import software.amazon.awssdk.auth.credentials.StaticCredentialsProvider;
+import software.amazon.awssdk.awscore.client.builder.AwsClientBuilder;
 import software.amazon.awssdk.regions.Region;
+import software.amazon.awssdk.services.dynamodb.DynamoDbAsyncClient;
 import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
+import software.amazon.awssdk.services.s3.S3BaseClientBuilder;
 import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.S3Configuration;
+import software.amazon.awssdk.services.s3.presigner.S3Presigner;
 
 import javax.annotation.PostConstruct;
+import java.net.URI;
 
+/*
+ * With aws.s3.endpoint / aws.dynamodb.endpoint set, the clients talk to that endpoint
+ * instead of AWS (S3 with path style requests), e.g. the load test stand-ins.
+ * */
 @Configuration
+@ConditionalOnProperty(name = "storage.type", havingValue = "aws", matchIfMissing = true)
 public class AWSClientConfig {
 
     @Value("${aws.access_key_id}")
@@ -21,6 +35,10 @@ public class AWSClientConfig {
     private String secretAccessKey;
     @Value("${aws.s3.region}")
     private String region;
+    @Value("${aws.s3.endpoint}")
+    private String s3Endpoint;
+    @Value("${aws.dynamodb.endpoint}")
+    private String dynamoDbEndpoint;
 
     private AwsCredentials credentials;
     @PostConstruct
@@ -30,18 +48,54 @@ public class AWSClientConfig {
 
     @Bean
     public S3Client getAmazonS3Client() {
-        return S3Client.builder()
-                .region(Region.of(region))
-                .credentialsProvider(StaticCredentialsProvider.create(credentials))
-                .build();
+        return s3(S3Client.builder()).build();
     }
     @Bean
     public DynamoDbClient getDynamoDbClient(){
-        return DynamoDbClient.builder()
+        return dynamoDb(DynamoDbClient.builder()).build();
+    }
+
+    // Non-blocking clients for AWSAsyncService, backed by the Netty event loop
+    @Bean
+    public S3AsyncClient getAmazonS3AsyncClient() {
+        return s3(S3AsyncClient.builder()).build();
+    }
+    @Bean
+    public DynamoDbAsyncClient getDynamoDbAsyncClient(){
+        return dynamoDb(DynamoDbAsyncClient.builder()).build();
+    }
+
+    // Signs URLs for direct transfers locally, no request is sent
+    @Bean(destroyMethod = "close")
+    public S3Presigner getS3Presigner() {
+        final S3Presigner.Builder builder = S3Presigner.builder()
                 .region(Region.of(region))
-                .credentialsProvider(StaticCredentialsProvider.create(credentials))
-                .build();
+                .credentialsProvider(StaticCredentialsProvider.create(credentials));
+        if (StringUtils.hasText(s3Endpoint)) {
+            builder.endpointOverride(URI.create(s3Endpoint))
+                    .serviceConfiguration(S3Configuration.builder().pathStyleAccessEnabled(true).build());
+        }
+        return builder.build();
+    }
+
+    // A local endpoint has no per bucket host names, bucket names go in the path
+    private <B extends S3BaseClientBuilder<B, ?>> B s3(final B builder) {
+        if (StringUtils.hasText(s3Endpoint)) {
+            builder.endpointOverride(URI.create(s3Endpoint))
+                    .serviceConfiguration(S3Configuration.builder().pathStyleAccessEnabled(true).build());
+        }
+        return configured(builder);
     }
 
+    private <B extends AwsClientBuilder<B, ?>> B dynamoDb(final B builder) {
+        if (StringUtils.hasText(dynamoDbEndpoint)) {
+            builder.endpointOverride(URI.create(dynamoDbEndpoint));
+        }
+        return configured(builder);
+    }
 
+    private <B extends AwsClientBuilder<B, ?>> B configured(final B builder) {
+        return builder.region(Region.of(region))
+                .credentialsProvider(StaticCredentialsProvider.create(credentials));
+    }
 }
@@ -0,0 +1,74 @@
+package com.mrg.aws.config;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+@Configuration
+public class ExecutorConfig {
+
+    @Value("${aws.s3.multipart.concurrency}")
+    private int multipartConcurrency;
+    @Value("${aws.s3.batch.concurrency}")
+    private int batchConcurrency;
+    @Value("${image.export.read-ahead}")
+    private int exportReadAhead;
+    @Value("${image.derivatives.concurrency}")
+    private int derivativeConcurrency;
+    @Value("${aws.dynamodb.scan.segments}")
+    private int scanSegments;
+    @Value("${aws.dynamodb.scan.concurrent-scans}")
+    private int concurrentScans;
+    @Value("${image.async.prepare-concurrency}")
+    private int asyncPrepareConcurrency;
+
+    @Bean(destroyMethod = "shutdown")
+    public ExecutorService multipartUploadExecutor() {
+        return Executors.newFixedThreadPool(multipartConcurrency, new CustomizableThreadFactory("s3-multipart-"));
+    }
+
+    // Copies and hashes /image/async uploads off the servlet thread
+    @Bean(destroyMethod = "shutdown")
+    public ExecutorService asyncPrepareExecutor() {
+        return Executors.newFixedThreadPool(asyncPrepareConcurrency, new CustomizableThreadFactory("async-prepare-"));
+    }
+
+    @Bean(destroyMethod = "shutdown")
+    public ExecutorService batchUploadExecutor() {
+        return Executors.newFixedThreadPool(batchConcurrency, new CustomizableThreadFactory("s3-batch-"));
+    }
+
+    @Bean(destroyMethod = "shutdown")
+    public ExecutorService exportReadAheadExecutor() {
+        return Executors.newFixedThreadPool(exportReadAhead, new CustomizableThreadFactory("zip-export-"));
+    }
+
+    @Bean(destroyMethod = "shutdown")
+    public ExecutorService derivativeExecutor() {
+        return Executors.newFixedThreadPool(derivativeConcurrency, new CustomizableThreadFactory("derivative-"));
+    }
+
+    @Bean(destroyMethod = "shutdownNow")
+    public ScheduledExecutorService outboxFlushExecutor() {
+        return Executors.newSingleThreadScheduledExecutor(new CustomizableThreadFactory("metadata-outbox-"));
+    }
+
+    // Room for the segments of concurrent-scans full scans, DynamoDbParallelScanner admits scans by free threads
+    @Bean(destroyMethod = "shutdownNow")
+    public ExecutorService scanExecutor() {
+        return Executors.newFixedThreadPool(Math.max(1, scanSegments) * Math.max(1, concurrentScans),
+                new CustomizableThreadFactory("dynamodb-scan-"));
+    }
+
+    // The bucket listing and the table scan of a reconciliation sweep
+    @Bean(destroyMethod = "shutdownNow")
+    public ExecutorService reconciliationExecutor() {
+        return Executors.newFixedThreadPool(2, new CustomizableThreadFactory("reconciliation-"));
+    }
+
+}
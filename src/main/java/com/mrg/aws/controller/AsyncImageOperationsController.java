@@ -0,0 +1,60 @@
+package com.mrg.aws.controller;
+
+import com.mrg.aws.model.ImagePage;
+import com.mrg.aws.service.AWSAsyncService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.util.concurrent.CompletableFuture;
+
+/*
+ * Upload and listing on the non-blocking service. Other operations are only served by
+ * ImageOperationsController.
+ * An upload still blocks the servlet thread for a bounded prefix: UploadAdmissionFilter waits
+ * for byte budget admission (at most image.admission.max-wait-ms), then the container reads and
+ * parses the multipart body before the handler is called. The thread is released once the
+ * service is called, writing the part to disk, hashing and the AWS calls run off it.
+ * */
+@RestController
+@ConditionalOnProperty(name = "storage.type", havingValue = "aws", matchIfMissing = true)
+@RequestMapping(value = "/image/async")
+@CrossOrigin("*")
+public class AsyncImageOperationsController {
+
+    private AWSAsyncService service;
+
+    @Autowired
+    AsyncImageOperationsController(AWSAsyncService service) {
+        this.service = service;
+    }
+
+    @PostMapping(value = "/upload")
+    public CompletableFuture<ResponseEntity<String>> uploadImage(@RequestPart(value = "image") final MultipartFile multipartFile,
+                                                                 @RequestPart(value = "description") final String description,
+                                                                 @RequestPart(value = "tags") final String tags) {
+        final String response = "[" + multipartFile.getOriginalFilename() + "] uploaded successfully.";
+        try {
+            return service.uploadImage(multipartFile, description, tags)
+                    .thenApply(image -> new ResponseEntity<>(response, HttpStatus.CREATED))
+                    .exceptionally(ex -> new ResponseEntity<>(HttpStatus.INTERNAL_SERVER_ERROR));
+        } catch (Exception ex) {
+            return CompletableFuture.completedFuture(new ResponseEntity<>(HttpStatus.INTERNAL_SERVER_ERROR));
+        }
+    }
+
+    @GetMapping(value = "/list")
+    public CompletableFuture<ImagePage> listImages(@RequestParam(value = "pageSize", defaultValue = "100") int pageSize,
+                                                   @RequestParam(value = "cursor", required = false) String cursor) {
+        if (pageSize < 1 || pageSize > ImageOperationsController.MAX_PAGE_SIZE) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST,
+                    "pageSize must be between 1 and " + ImageOperationsController.MAX_PAGE_SIZE);
+        }
+        return service.findPage(pageSize, cursor);
+    }
+
+}
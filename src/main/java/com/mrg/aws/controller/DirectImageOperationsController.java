@@ -0,0 +1,58 @@
+package com.mrg.aws.controller;
+
+import com.mrg.aws.model.DirectUpload;
+import com.mrg.aws.model.Image;
+import com.mrg.aws.service.DirectTransferService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.http.CacheControl;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Presigned transfers, the bytes go between the client and S3 directly (see
+ * DirectTransferService). Nothing here holds a byte budget permit.
+ * */
+@RestController
+@ConditionalOnProperty(name = "storage.type", havingValue = "aws", matchIfMissing = true)
+@RequestMapping(value = "/image/direct")
+@CrossOrigin("*")
+public class DirectImageOperationsController {
+
+    private DirectTransferService service;
+
+    @Autowired
+    DirectImageOperationsController(DirectTransferService service) {
+        this.service = service;
+    }
+
+    @PostMapping(value = "/upload")
+    public ResponseEntity<DirectUpload> initiateUpload(@RequestParam(value = "fileName") final String fileName,
+                                                       @RequestParam(value = "contentType") final String contentType,
+                                                       @RequestParam(value = "contentLength") final long contentLength,
+                                                       @RequestParam(value = "description", required = false) final String description,
+                                                       @RequestParam(value = "tags", required = false) final String tags) {
+        return new ResponseEntity<>(service.initiateUpload(fileName, contentType, contentLength, description, tags),
+                HttpStatus.CREATED);
+    }
+
+    // Completion callback, once the presigned PUT succeeded
+    @PostMapping(value = "/upload/{imageId}/complete")
+    public ResponseEntity<Image> completeUpload(@PathVariable("imageId") UUID imageId) {
+        return new ResponseEntity<>(service.completeUpload(imageId), HttpStatus.CREATED);
+    }
+
+    // Redirects to a presigned GET, clients may reuse it for half of its lifetime
+    @GetMapping("/download/{imageId}")
+    public ResponseEntity<Void> downloadImage(@PathVariable("imageId") UUID imageId,
+                                              @RequestParam(value = "w", required = false) Integer width) {
+        return ResponseEntity.status(HttpStatus.TEMPORARY_REDIRECT)
+                .location(service.downloadUrl(imageId, width))
+                .cacheControl(CacheControl.maxAge(service.getUrlTtlSeconds() / 2, TimeUnit.SECONDS).cachePrivate())
+                .build();
+    }
+}
@@ -1,28 +1,71 @@
 package com.mrg.aws.controller;
 
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.mrg.aws.admission.ByteBudget;
+import com.mrg.aws.cache.ImageCache;
+import com.mrg.aws.cache.MetadataCache;
+import com.mrg.aws.index.TagIndex;
 import com.mrg.aws.model.Image;
+import com.mrg.aws.model.ImagePage;
+import com.mrg.aws.model.ImageStream;
+import com.mrg.aws.model.ImageVersion;
+import com.mrg.aws.model.UploadResult;
 import com.mrg.aws.service.AWSService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.ContentDisposition;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpRange;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.InvalidMediaTypeException;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
+import org.springframework.util.StringUtils;
 import org.springframework.web.bind.annotation.*;
 import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.server.ResponseStatusException;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 @RestController
 @RequestMapping(value = "/image")
 @CrossOrigin("*")
 public class ImageOperationsController {
 
+    private static final Logger LOGGER = LoggerFactory.getLogger(ImageOperationsController.class);
+
+    // DynamoDB returns at most 1 MB per scan page anyway
+    static final int MAX_PAGE_SIZE = 1000;
+
+    @Value("${image.download.cache-max-age-seconds}")
+    private long cacheMaxAge;
+
     private AWSService service;
+    private ObjectMapper objectMapper;
+    private ImageCache imageCache;
+    private MetadataCache metadataCache;
+    private ByteBudget byteBudget;
 
     @Autowired
-    ImageOperationsController(AWSService service) {
+    ImageOperationsController(AWSService service, ObjectMapper objectMapper, ImageCache imageCache,
+                              MetadataCache metadataCache, ByteBudget byteBudget) {
         this.service = service;
+        this.objectMapper = objectMapper;
+        this.imageCache = imageCache;
+        this.metadataCache = metadataCache;
+        this.byteBudget = byteBudget;
     }
 
+    // Admitted by UploadAdmissionFilter before the body was read
     @PostMapping(value = "/upload")
     public ResponseEntity<String> uploadImage(@RequestPart(value = "image") final MultipartFile multipartFile,
                                               @RequestPart(value = "description") final String description,
@@ -36,18 +79,256 @@ public class ImageOperationsController {
         }
     }
 
+    /*
+     * Many files in one request. description and tags hold either a single value for all
+     * files or one value per file, in file order. Answers 207 when some files failed.
+     * Admitted by UploadAdmissionFilter before the body was read.
+     * */
+    @PostMapping(value = "/upload/batch")
+    public ResponseEntity<List<UploadResult>> uploadImages(@RequestPart(value = "images") final List<MultipartFile> multipartFiles,
+                                                           @RequestParam(value = "description", required = false) final List<String> descriptions,
+                                                           @RequestParam(value = "tags", required = false) final List<String> tags) {
+        final List<UploadResult> results = service.uploadImages(multipartFiles, descriptions, tags);
+        final boolean allCreated = results.stream().allMatch(result -> result.getStatus() == UploadResult.Status.CREATED);
+        return new ResponseEntity<>(results, allCreated ? HttpStatus.CREATED : HttpStatus.MULTI_STATUS);
+    }
+
+    /*
+     * Content never changes under an id (and width), so responses carry a strong ETag and
+     * may be cached forever. A matching If-None-Match is answered with 304 from the
+     * metadata alone, the object storage is not contacted and no variant is generated.
+     * */
     @GetMapping("/download/{imageId}")
-    public byte[] downloadImage(@PathVariable("imageId") UUID imageId) {
-        return service.downloadImage(imageId);
+    public ResponseEntity<StreamingResponseBody> downloadImage(@PathVariable("imageId") UUID imageId,
+                                                               @RequestParam(value = "w", required = false) Integer width,
+                                                               @RequestHeader(value = HttpHeaders.RANGE, required = false) String range,
+                                                               @RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch) {
+        final ImageVersion version = service.describe(imageId, width);
+        if (matches(ifNoneMatch, version.getEntityTag())) {
+            return validators(ResponseEntity.status(HttpStatus.NOT_MODIFIED), version).build();
+        }
+        // a real read, a variant not generated yet is generated now
+        final ImageVersion resolved = service.resolve(version);
+        final HttpRange httpRange = parseRange(range);
+        // admitted before the object is opened, a rejected download holds no storage connection
+        final ByteBudget.Permit permit = byteBudget.acquire(transferLength(resolved, httpRange), "download");
+        final ImageStream image;
+        try {
+            image = service.download(resolved, httpRange);
+        } catch (RuntimeException ex) {
+            permit.close();
+            throw ex;
+        }
+        // the bytes stay reserved until the body has been written
+        final StreamingResponseBody body = outputStream -> {
+            try (ByteBudget.Permit reserved = permit; ImageStream content = image) {
+                content.writeTo(outputStream);
+            }
+        };
+        final ResponseEntity.BodyBuilder response = validators(ResponseEntity
+                .status(image.isPartial() ? HttpStatus.PARTIAL_CONTENT : HttpStatus.OK), version)
+                .header(HttpHeaders.ACCEPT_RANGES, "bytes")
+                .contentType(mediaType(resolved.getContentType()))
+                .contentLength(image.getContentLength());
+        if (image.isPartial()) {
+            response.header(HttpHeaders.CONTENT_RANGE, image.getContentRange());
+        }
+        return response.body(body);
+    }
+
+    /*
+     * Headers of the download, the length of a variant costs a HEAD request on the object
+     * storage. A variant not generated yet is not generated for a HEAD, its length is left out.
+     * */
+    @RequestMapping(value = "/download/{imageId}", method = RequestMethod.HEAD)
+    public ResponseEntity<Void> headImage(@PathVariable("imageId") UUID imageId,
+                                          @RequestParam(value = "w", required = false) Integer width,
+                                          @RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch) {
+        final ImageVersion version = service.describe(imageId, width);
+        if (matches(ifNoneMatch, version.getEntityTag())) {
+            return validators(ResponseEntity.status(HttpStatus.NOT_MODIFIED), version).build();
+        }
+        final ResponseEntity.BodyBuilder response = validators(ResponseEntity.ok(), version)
+                .header(HttpHeaders.ACCEPT_RANGES, "bytes")
+                .contentType(mediaType(version.getContentType()));
+        final Long contentLength = service.contentLength(version);
+        if (contentLength != null) {
+            response.contentLength(contentLength);
+        }
+        return response.build();
+    }
+
+    private ResponseEntity.BodyBuilder validators(final ResponseEntity.BodyBuilder response, final ImageVersion version) {
+        return response
+                .eTag(version.getEntityTag())
+                .header(HttpHeaders.CACHE_CONTROL, "public, max-age=" + cacheMaxAge + ", immutable");
+    }
+
+    // Weak comparison (RFC 7232), W/"x" matches "x"
+    private static boolean matches(final String ifNoneMatch, final String entityTag) {
+        if (!StringUtils.hasText(ifNoneMatch)) {
+            return false;
+        }
+        for (String candidate : ifNoneMatch.split(",")) {
+            final String tag = candidate.trim();
+            if (tag.equals("*") || tag.equals(entityTag) || tag.equals("W/" + entityTag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static MediaType mediaType(final String contentType) {
+        if (!StringUtils.hasText(contentType)) {
+            return MediaType.APPLICATION_OCTET_STREAM;
+        }
+        try {
+            return MediaType.parseMediaType(contentType);
+        } catch (InvalidMediaTypeException ex) {
+            return MediaType.APPLICATION_OCTET_STREAM;
+        }
+    }
+
+
+    /*
+     * Streams a ZIP archive of the given image ids, or of the images matching a search
+     * (same parameters as /search/{searchTerm}).
+     * */
+    @GetMapping("/export")
+    public ResponseEntity<StreamingResponseBody> exportImages(@RequestParam(value = "ids", required = false) List<UUID> imageIds,
+                                                              @RequestParam(value = "searchTerm", required = false) String searchTerm,
+                                                              @RequestParam(value = "match", defaultValue = "ANY") TagIndex.Match match,
+                                                              @RequestParam(value = "prefix", defaultValue = "false") boolean prefix) {
+        final List<UUID> ids;
+        if (imageIds != null && !imageIds.isEmpty()) {
+            ids = imageIds;
+        } else if (StringUtils.hasText(searchTerm)) {
+            ids = service.findBySearchTerm(searchTerm, match, prefix, false).stream()
+                    .map(image -> UUID.fromString(image.getImageId()))
+                    .collect(Collectors.toList());
+        } else {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Either ids or searchTerm is required");
+        }
+        final StreamingResponseBody body = outputStream -> service.exportImages(ids, outputStream);
+        return ResponseEntity.ok()
+                .contentType(MediaType.parseMediaType("application/zip"))
+                .header(HttpHeaders.CONTENT_DISPOSITION, ContentDisposition.builder("attachment")
+                        .filename("images.zip")
+                        .build()
+                        .toString())
+                .body(body);
     }
 
+    @GetMapping("/cache/stats")
+    public Map<String, Long> cacheStats() {
+        final Map<String, Long> stats = imageCache.stats();
+        metadataCache.stats().forEach((name, value) -> stats.put("metadata." + name, value));
+        return stats;
+    }
 
+    // Metadata of one image, 404 when the id is unknown
+    @GetMapping("/{imageId}")
+    public Image getImage(@PathVariable("imageId") UUID imageId) {
+        return service.findImage(imageId);
+    }
+
+    @DeleteMapping("/{imageId}")
+    public ResponseEntity<String> deleteImage(@PathVariable("imageId") UUID imageId) {
+        service.deleteImage(imageId);
+        return new ResponseEntity<>(HttpStatus.NO_CONTENT);
+    }
+
+
+    /*
+     * Streams the whole table as a JSON array, images are written as the scan pages
+     * arrive so memory stays bounded by one page whatever the table size is.
+     * */
+    @GetMapping(value = "/search/all")
+    public ResponseEntity<StreamingResponseBody> searchAllImages() {
+        final StreamingResponseBody body = outputStream -> {
+            try (JsonGenerator generator = objectMapper.getFactory().createGenerator(outputStream)
+                    // closing must not complete the array of a failed scan
+                    .disable(JsonGenerator.Feature.AUTO_CLOSE_JSON_CONTENT);
+                 Stream<Image> images = service.findAll()) {
+                generator.writeStartArray();
+                final Iterator<Image> iterator = images.iterator();
+                while (iterator.hasNext()) {
+                    generator.writeObject(iterator.next());
+                }
+                generator.writeEndArray();
+            } catch (RuntimeException ex) {
+                /*
+                 * The 200 is already sent. Rethrowing makes the container close the connection
+                 * without the final chunk, so clients see a broken transfer rather than a
+                 * shorter array.
+                 * */
+                LOGGER.error("Error= {} while streaming all images, aborting the response.", ex.getMessage());
+                throw new IllegalStateException("Failed to stream all images", ex);
+            }
+        };
+        return ResponseEntity.ok()
+                .contentType(MediaType.APPLICATION_JSON)
+                .body(body);
+    }
+
+    @GetMapping(value = "/list")
+    public ImagePage listImages(@RequestParam(value = "pageSize", defaultValue = "100") int pageSize,
+                                @RequestParam(value = "cursor", required = false) String cursor) {
+        if (pageSize < 1 || pageSize > MAX_PAGE_SIZE) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "pageSize must be between 1 and " + MAX_PAGE_SIZE);
+        }
+        return service.findPage(pageSize, cursor);
+    }
+
+    /*
+     * searchTerm may hold several tags separated by comma, semicolon, # or whitespace, matched
+     * with ANY (or) / ALL (and), case-insensitively. prefix=true matches tags starting with
+     * each term and consistent=true bypasses the local index and reads DynamoDB.
+     * match=SUBSTRING matches each term as a case-sensitive substring of one of the tags
+     * ("cat" matches "tomcat"), prefix does not apply. Unlike earlier versions it does not
+     * match across tags, tags are stored as a set and not as the entered string.
+     * */
     @GetMapping(value = "/search/{searchTerm}")
-    public List<Image> searchImage(@PathVariable("searchTerm") String searchTerm) {
-        if (searchTerm.equals("all"))
-            return service.findAll();
-        else
-            return service.findBySearchTerm(searchTerm);
+    public List<Image> searchImage(@PathVariable("searchTerm") String searchTerm,
+                                   @RequestParam(value = "match", defaultValue = "ANY") TagIndex.Match match,
+                                   @RequestParam(value = "prefix", defaultValue = "false") boolean prefix,
+                                   @RequestParam(value = "consistent", defaultValue = "false") boolean consistent) {
+        return service.findBySearchTerm(searchTerm, match, prefix, consistent);
+    }
+
+    /*
+     * Only a single byte range is served. Multiple ranges would need a multipart/byteranges
+     * response, so like an invalid header they fall back to the whole image (RFC 7233).
+     * */
+    /*
+     * Bytes a download will send: the length recorded in the metadata, a HEAD request for
+     * a variant. An unsatisfiable range is answered with 416 later, the whole length is reserved.
+     * */
+    private long transferLength(final ImageVersion version, final HttpRange range) {
+        final Long contentLength = service.contentLength(version);
+        if (contentLength == null) {
+            return 0;
+        }
+        if (range == null) {
+            return contentLength;
+        }
+        try {
+            return range.getRangeEnd(contentLength) - range.getRangeStart(contentLength) + 1;
+        } catch (IllegalArgumentException ex) {
+            return contentLength;
+        }
+    }
+
+    private static HttpRange parseRange(final String range) {
+        if (!StringUtils.hasText(range)) {
+            return null;
+        }
+        try {
+            final List<HttpRange> ranges = HttpRange.parseRanges(range);
+            return ranges.size() == 1 ? ranges.get(0) : null;
+        } catch (IllegalArgumentException ex) {
+            return null;
+        }
     }
 
 }
\ No newline at end of file
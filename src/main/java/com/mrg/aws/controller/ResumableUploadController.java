@@ -0,0 +1,81 @@
+package com.mrg.aws.controller;
+
+import com.mrg.aws.admission.ByteBudget;
+import com.mrg.aws.model.Image;
+import com.mrg.aws.model.ResumableUpload;
+import com.mrg.aws.service.ResumableUploadService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.server.ResponseStatusException;
+
+import javax.servlet.http.HttpServletRequest;
+import java.io.IOException;
+import java.util.UUID;
+
+/*
+ * Resumable uploads (see ResumableUploadService):
+ *   POST   /image/uploads                          create, answers the chunk layout
+ *   PUT    /image/uploads/{imageId}/chunks/{n}     raw chunk bytes, any order, in parallel
+ *   GET    /image/uploads/{imageId}                missing chunks, to resume
+ *   POST   /image/uploads/{imageId}/complete       record the image
+ *   DELETE /image/uploads/{imageId}                abort
+ * */
+@RestController
+@ConditionalOnProperty(name = "storage.type", havingValue = "aws", matchIfMissing = true)
+@RequestMapping(value = "/image/uploads")
+@CrossOrigin("*")
+public class ResumableUploadController {
+
+    private ResumableUploadService service;
+    private ByteBudget byteBudget;
+
+    @Autowired
+    ResumableUploadController(ResumableUploadService service, ByteBudget byteBudget) {
+        this.service = service;
+        this.byteBudget = byteBudget;
+    }
+
+    @PostMapping
+    public ResponseEntity<ResumableUpload> createUpload(@RequestParam(value = "fileName") final String fileName,
+                                                        @RequestParam(value = "contentType") final String contentType,
+                                                        @RequestParam(value = "contentLength") final long contentLength,
+                                                        @RequestParam(value = "description", required = false) final String description,
+                                                        @RequestParam(value = "tags", required = false) final String tags) {
+        return new ResponseEntity<>(service.createUpload(fileName, contentType, contentLength, description, tags),
+                HttpStatus.CREATED);
+    }
+
+    @GetMapping("/{imageId}")
+    public ResumableUpload getUpload(@PathVariable("imageId") UUID imageId) {
+        return service.getUpload(imageId);
+    }
+
+    @PutMapping("/{imageId}/chunks/{chunkNumber}")
+    public ResponseEntity<Void> uploadChunk(@PathVariable("imageId") UUID imageId,
+                                            @PathVariable("chunkNumber") int chunkNumber,
+                                            @RequestHeader(value = "Content-MD5", required = false) String contentMd5,
+                                            HttpServletRequest request) throws IOException {
+        final long contentLength = request.getContentLengthLong();
+        if (contentLength < 0) {
+            throw new ResponseStatusException(HttpStatus.LENGTH_REQUIRED, "Content-Length is required");
+        }
+        try (ByteBudget.Permit permit = byteBudget.acquire(contentLength, "upload")) {
+            service.uploadChunk(imageId, chunkNumber, request.getInputStream(), contentLength, contentMd5);
+        }
+        return ResponseEntity.noContent().build();
+    }
+
+    @PostMapping("/{imageId}/complete")
+    public ResponseEntity<Image> completeUpload(@PathVariable("imageId") UUID imageId) {
+        return new ResponseEntity<>(service.completeUpload(imageId), HttpStatus.CREATED);
+    }
+
+    @DeleteMapping("/{imageId}")
+    public ResponseEntity<Void> abortUpload(@PathVariable("imageId") UUID imageId) {
+        service.abortUpload(imageId);
+        return ResponseEntity.noContent().build();
+    }
+}
@@ -0,0 +1,259 @@
+package com.mrg.aws.index;
+
+import com.mrg.aws.model.Image;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+import org.springframework.util.StringUtils;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/*
+ * In-process inverted index from tag token to image ids, so tag searches are
+ * answered from memory instead of a DynamoDB Scan. Tokens are kept sorted which
+ * makes prefix searches a range lookup.
+ * Reads are lock free, writes (uploads, deletes and rebuilds) are serialized.
+ * Writes that happen while a rebuild is scanning the table are replayed on top of
+ * the rebuilt index, so they are not lost when it is swapped in.
+ * Tags are split into tokens one way everywhere (SEPARATORS), for storing and for matching.
+ * Tag matching is by lower-cased token (ANY / ALL, optionally by prefix). SUBSTRING is
+ * case-sensitive and matches within tags: every token of the search term is a substring of
+ * one of the stored tags ("cat" matches "tomcat", "dog cat" matches tags "cat,dog"). Tags are
+ * stored as a set, so it no longer matches across the separators of the entered string.
+ * It is answered by a pass over the indexed images.
+ * The index holds its own copies of the images and hands out copies, callers may
+ * change what they get without changing the index.
+ * Uploads store Tags in the canonical form of canonicalTags, the form DynamoDB reads its
+ * tag set back in, so the index, the caches and the outbox agree with a rebuilt index.
+ * */
+@Component
+public class TagIndex {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(TagIndex.class);
+
+    // between tags, in entered tags and in search terms
+    private static final String SEPARATORS = "[,;#\\s]+";
+
+    public enum Match {
+        // image has at least one of the tags
+        ANY,
+        // image has every tag
+        ALL,
+        // every token of the search term is a case-sensitive substring of a tag
+        SUBSTRING
+    }
+
+    private volatile ConcurrentSkipListMap<String, Set<String>> idsByTag = new ConcurrentSkipListMap<>();
+    private volatile ConcurrentHashMap<String, Image> imagesById = new ConcurrentHashMap<>();
+    private volatile boolean ready;
+
+    private final Object writeLock = new Object();
+    private List<Runnable> pendingWrites;
+
+    /*
+     * The stored form of entered tags: the tags split at SEPARATORS, distinct, sorted,
+     * joined with commas, case kept. Null without tags. Sorted because a DynamoDB string
+     * set has no order.
+     * */
+    public static String canonicalTags(final String tags) {
+        if (tags == null) {
+            return null;
+        }
+        final Set<String> canonical = new TreeSet<>();
+        for (String tag : tags.split(SEPARATORS)) {
+            if (!tag.isEmpty()) {
+                canonical.add(tag);
+            }
+        }
+        return canonical.isEmpty() ? null : String.join(",", canonical);
+    }
+
+    public static Set<String> tokenize(final String tags) {
+        final Set<String> tokens = new LinkedHashSet<>();
+        if (StringUtils.hasText(tags)) {
+            for (String token : tags.split(SEPARATORS)) {
+                if (!token.isEmpty()) {
+                    tokens.add(token.toLowerCase(Locale.ROOT));
+                }
+            }
+        }
+        return tokens;
+    }
+
+    public static boolean matches(final Image image, final Set<String> tokens, final Match match, final boolean prefix) {
+        if (match == Match.SUBSTRING) {
+            throw new IllegalArgumentException("SUBSTRING matches the search term, not tokens");
+        }
+        final Set<String> imageTokens = tokenize(image.getTags());
+        for (String token : tokens) {
+            boolean found = prefix
+                    ? imageTokens.stream().anyMatch(imageToken -> imageToken.startsWith(token))
+                    : imageTokens.contains(token);
+            if (found && match == Match.ANY) {
+                return true;
+            }
+            if (!found && match == Match.ALL) {
+                return false;
+            }
+        }
+        return match == Match.ALL && !tokens.isEmpty();
+    }
+
+    public boolean isReady() {
+        return ready;
+    }
+
+    public int size() {
+        return imagesById.size();
+    }
+
+    public static boolean containsSubstring(final Image image, final String searchTerm) {
+        if (image.getTags() == null) {
+            return false;
+        }
+        final List<String> tags = Arrays.asList(image.getTags().split(SEPARATORS));
+        boolean matched = false;
+        for (String token : searchTerm.split(SEPARATORS)) {
+            if (token.isEmpty()) {
+                continue;
+            }
+            if (tags.stream().noneMatch(tag -> tag.contains(token))) {
+                return false;
+            }
+            matched = true;
+        }
+        return matched;
+    }
+
+    public Image get(final String imageId) {
+        final Image image = imagesById.get(imageId);
+        return image == null ? null : new Image(image);
+    }
+
+    public void add(final Image added) {
+        final Image image = new Image(added);
+        synchronized (writeLock) {
+            put(idsByTag, imagesById, image);
+            if (pendingWrites != null) {
+                pendingWrites.add(() -> put(idsByTag, imagesById, image));
+            }
+        }
+    }
+
+    public void remove(final String imageId) {
+        synchronized (writeLock) {
+            delete(idsByTag, imagesById, imageId);
+            if (pendingWrites != null) {
+                pendingWrites.add(() -> delete(idsByTag, imagesById, imageId));
+            }
+        }
+    }
+
+    /*
+     * Replaces the whole index with the given images. Searches keep being served
+     * from the current index until the new one is swapped in.
+     * */
+    public void rebuild(final Iterable<Image> images) {
+        synchronized (writeLock) {
+            pendingWrites = new ArrayList<>();
+        }
+        final ConcurrentSkipListMap<String, Set<String>> newIdsByTag = new ConcurrentSkipListMap<>();
+        final ConcurrentHashMap<String, Image> newImagesById = new ConcurrentHashMap<>();
+        try {
+            images.forEach(image -> put(newIdsByTag, newImagesById, new Image(image)));
+        } catch (RuntimeException ex) {
+            synchronized (writeLock) {
+                pendingWrites = null;
+            }
+            throw ex;
+        }
+        synchronized (writeLock) {
+            idsByTag = newIdsByTag;
+            imagesById = newImagesById;
+            pendingWrites.forEach(Runnable::run);
+            pendingWrites = null;
+            ready = true;
+        }
+        LOGGER.info("Tag index is rebuilt with {} images and {} tags.", newImagesById.size(), newIdsByTag.size());
+    }
+
+    public List<Image> search(final Set<String> tokens, final Match match, final boolean prefix) {
+        final ConcurrentSkipListMap<String, Set<String>> tags = idsByTag;
+        final Map<String, Image> images = imagesById;
+        Set<String> result = null;
+        for (String token : tokens) {
+            final Set<String> ids = lookup(tags, token, prefix);
+            if (result == null) {
+                result = new HashSet<>(ids);
+            } else if (match == Match.ANY) {
+                result.addAll(ids);
+            } else {
+                result.retainAll(ids);
+            }
+            if (match == Match.ALL && result.isEmpty()) {
+                break;
+            }
+        }
+        if (result == null) {
+            return Collections.emptyList();
+        }
+        final List<Image> imageList = new ArrayList<>(result.size());
+        for (String imageId : result) {
+            final Image image = images.get(imageId);
+            if (image != null) {
+                imageList.add(new Image(image));
+            }
+        }
+        return imageList;
+    }
+
+    public List<Image> searchSubstring(final String searchTerm) {
+        final List<Image> imageList = new ArrayList<>();
+        for (Image image : imagesById.values()) {
+            if (containsSubstring(image, searchTerm)) {
+                imageList.add(new Image(image));
+            }
+        }
+        return imageList;
+    }
+
+    private static Set<String> lookup(ConcurrentSkipListMap<String, Set<String>> tags, String token, boolean prefix) {
+        if (!prefix) {
+            return tags.getOrDefault(token, Collections.emptySet());
+        }
+        final Set<String> ids = new HashSet<>();
+        tags.subMap(token, true, token + Character.MAX_VALUE, true).values().forEach(ids::addAll);
+        return ids;
+    }
+
+    private static void put(ConcurrentSkipListMap<String, Set<String>> tags, Map<String, Image> images, Image image) {
+        final Image previous = images.put(image.getImageId(), image);
+        if (previous != null) {
+            unindex(tags, previous);
+        }
+        for (String token : tokenize(image.getTags())) {
+            tags.computeIfAbsent(token, key -> ConcurrentHashMap.newKeySet()).add(image.getImageId());
+        }
+    }
+
+    private static void delete(ConcurrentSkipListMap<String, Set<String>> tags, Map<String, Image> images, String imageId) {
+        final Image previous = images.remove(imageId);
+        if (previous != null) {
+            unindex(tags, previous);
+        }
+    }
+
+    private static void unindex(ConcurrentSkipListMap<String, Set<String>> tags, Image image) {
+        for (String token : tokenize(image.getTags())) {
+            final Set<String> ids = tags.get(token);
+            if (ids != null) {
+                ids.remove(image.getImageId());
+                if (ids.isEmpty()) {
+                    tags.remove(token, ids);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,211 @@
+package com.mrg.aws.metrics;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+import org.springframework.web.server.ResponseStatusException;
+import software.amazon.awssdk.core.exception.SdkServiceException;
+
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/*
+ * Micrometer meters of the storage layer, scraped from /actuator/prometheus.
+ *  - image.storage.requests : timer of every storage call, tagged backend (s3, dynamodb, local),
+ *                             operation, outcome (success, not_found, error) and exception
+ *  - image.upload.size / image.download.size : bytes per image uploaded / served
+ *  - image.scan.items       : records read per full scan
+ *  - image.rollbacks / image.rollback.failures : compensations of failed uploads, tagged target
+ * Timers and summaries publish histogram buckets so percentiles can be aggregated across nodes.
+ * */
+@Component
+public class StorageMetrics {
+
+    public static final String REQUESTS = "image.storage.requests";
+
+    private static final String SUCCESS = "success";
+
+    private final MeterRegistry registry;
+    private final DistributionSummary uploadSize;
+    private final DistributionSummary downloadSize;
+
+    @Autowired
+    public StorageMetrics(MeterRegistry registry) {
+        this.registry = registry;
+        this.uploadSize = DistributionSummary.builder("image.upload.size")
+                .baseUnit("bytes")
+                .publishPercentileHistogram()
+                .register(registry);
+        this.downloadSize = DistributionSummary.builder("image.download.size")
+                .baseUnit("bytes")
+                .publishPercentileHistogram()
+                .register(registry);
+    }
+
+    public <T> T record(final String backend, final String operation, final Supplier<T> call) {
+        final Timer.Sample sample = Timer.start(registry);
+        try {
+            final T result = call.get();
+            stop(sample, backend, operation, null);
+            return result;
+        } catch (RuntimeException ex) {
+            stop(sample, backend, operation, ex);
+            throw ex;
+        }
+    }
+
+    public void run(final String backend, final String operation, final Runnable call) {
+        record(backend, operation, () -> {
+            call.run();
+            return null;
+        });
+    }
+
+    // For calls throwing checked exceptions (object puts)
+    public <T> T recordChecked(final String backend, final String operation, final Callable<T> call) throws Exception {
+        final Timer.Sample sample = Timer.start(registry);
+        try {
+            final T result = call.call();
+            stop(sample, backend, operation, null);
+            return result;
+        } catch (Exception ex) {
+            stop(sample, backend, operation, ex);
+            throw ex;
+        }
+    }
+
+    // The timer stops when the future completes, not when the call returns
+    public <T> CompletableFuture<T> recordAsync(final String backend, final String operation,
+                                                final Supplier<CompletableFuture<T>> call) {
+        final Timer.Sample sample = Timer.start(registry);
+        final CompletableFuture<T> result;
+        try {
+            result = call.get();
+        } catch (RuntimeException ex) {
+            stop(sample, backend, operation, ex);
+            throw ex;
+        }
+        return result.whenComplete((value, failure) -> stop(sample, backend, operation, unwrap(failure)));
+    }
+
+    /*
+     * Scans are lazy, the timer covers the stream from open until the last item was read,
+     * a read failed or the stream was closed, whichever comes first, and the items consumed
+     * meanwhile are counted. A failure thrown by the underlying iterator tags the scan as
+     * failed, a stream closed before its end counts as a success of the items read.
+     * */
+    public <T> Stream<T> recordScan(final String backend, final Stream<T> items) {
+        final Scan<T> scan = new Scan<>(backend, items.spliterator());
+        return StreamSupport.stream(scan, false)
+                .onClose(() -> {
+                    try {
+                        items.close();
+                    } finally {
+                        scan.finish(null);
+                    }
+                });
+    }
+
+    public void uploaded(final long bytes) {
+        uploadSize.record(bytes);
+    }
+
+    public void downloaded(final long bytes) {
+        downloadSize.record(bytes);
+    }
+
+    // target is what is being undone: "record" or "content"
+    public void rollback(final String target) {
+        registry.counter("image.rollbacks", "target", target).increment();
+    }
+
+    public void rollbackFailed(final String target) {
+        registry.counter("image.rollback.failures", "target", target).increment();
+    }
+
+    private void stop(final Timer.Sample sample, final String backend, final String operation, final Throwable failure) {
+        sample.stop(Timer.builder(REQUESTS)
+                .tag("backend", backend)
+                .tag("operation", operation)
+                .tag("outcome", outcome(failure))
+                .tag("exception", failure == null ? "none" : failure.getClass().getSimpleName())
+                .publishPercentileHistogram()
+                .register(registry));
+    }
+
+    private static String outcome(final Throwable failure) {
+        if (failure == null) {
+            return SUCCESS;
+        }
+        if (failure instanceof ResponseStatusException
+                && ((ResponseStatusException) failure).getStatus() == HttpStatus.NOT_FOUND) {
+            return "not_found";
+        }
+        if (failure instanceof SdkServiceException
+                && ((SdkServiceException) failure).statusCode() == HttpStatus.NOT_FOUND.value()) {
+            return "not_found";
+        }
+        return "error";
+    }
+
+    private final class Scan<T> extends Spliterators.AbstractSpliterator<T> {
+
+        private final String backend;
+        private final Spliterator<T> items;
+        private final Timer.Sample sample = Timer.start(registry);
+        private final AtomicBoolean finished = new AtomicBoolean();
+        private long count;
+
+        private Scan(final String backend, final Spliterator<T> items) {
+            super(items.estimateSize(), items.characteristics() & ~Spliterator.SIZED);
+            this.backend = backend;
+            this.items = items;
+        }
+
+        @Override
+        public boolean tryAdvance(final Consumer<? super T> action) {
+            final boolean advanced;
+            try {
+                advanced = items.tryAdvance(item -> {
+                    count++;
+                    action.accept(item);
+                });
+            } catch (RuntimeException | Error ex) {
+                finish(ex);
+                throw ex;
+            }
+            if (!advanced) {
+                finish(null);
+            }
+            return advanced;
+        }
+
+        // Records the scan once, later calls (close after the end or after a failure) are ignored
+        private void finish(final Throwable failure) {
+            if (!finished.compareAndSet(false, true)) {
+                return;
+            }
+            stop(sample, backend, "scan", failure);
+            DistributionSummary.builder("image.scan.items")
+                    .tag("backend", backend)
+                    .publishPercentileHistogram()
+                    .register(registry)
+                    .record(count);
+        }
+    }
+
+    private static Throwable unwrap(final Throwable failure) {
+        return failure instanceof CompletionException && failure.getCause() != null ? failure.getCause() : failure;
+    }
+}
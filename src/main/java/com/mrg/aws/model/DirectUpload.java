@@ -0,0 +1,46 @@
+package com.mrg.aws.model;
+
+import java.time.Instant;
+import java.util.Map;
+
+/*
+ * A presigned upload: the client sends the bytes with `method` to `url` along with
+ * every header in `headers` (they are part of the signature), before expiresAt, then
+ * calls the completion endpoint with imageId.
+ * */
+public class DirectUpload {
+
+    private final String imageId;
+    private final String url;
+    private final String method;
+    private final Map<String, String> headers;
+    private final Instant expiresAt;
+
+    public DirectUpload(String imageId, String url, String method, Map<String, String> headers, Instant expiresAt) {
+        this.imageId = imageId;
+        this.url = url;
+        this.method = method;
+        this.headers = headers;
+        this.expiresAt = expiresAt;
+    }
+
+    public String getImageId() {
+        return imageId;
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    public String getMethod() {
+        return method;
+    }
+
+    public Map<String, String> getHeaders() {
+        return headers;
+    }
+
+    public Instant getExpiresAt() {
+        return expiresAt;
+    }
+}
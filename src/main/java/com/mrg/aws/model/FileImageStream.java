@@ -0,0 +1,43 @@
+package com.mrg.aws.model;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/*
+ * Serves a region of a local file (disk cache or local storage) with FileChannel.transferTo.
+ * This is not zero-copy: the servlet output stream exposes no socket channel, so the JDK
+ * copies from the page cache through a transfer buffer into the stream. It still avoids
+ * holding the object in memory and reads the file in large sequential chunks.
+ * */
+public class FileImageStream extends ImageStream {
+
+    private final FileChannel channel;
+    private final long position;
+
+    public FileImageStream(FileChannel channel, long position, long length, String contentRange) {
+        super(length, null, contentRange);
+        this.channel = channel;
+        this.position = position;
+    }
+
+    @Override
+    public void writeTo(OutputStream outputStream) throws IOException {
+        final WritableByteChannel target = Channels.newChannel(outputStream);
+        long transferred = 0;
+        while (transferred < getContentLength()) {
+            long count = channel.transferTo(position + transferred, getContentLength() - transferred, target);
+            if (count <= 0) {
+                throw new IOException("File is shorter than expected");
+            }
+            transferred += count;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
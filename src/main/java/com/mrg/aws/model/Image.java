@@ -1,22 +1,46 @@
 package com.mrg.aws.model;
 
+import java.util.ArrayList;
+import java.util.List;
 
-import software.amazon.awssdk.enhanced.dynamodb.mapper.annotations.DynamoDbAttribute;
-import software.amazon.awssdk.enhanced.dynamodb.mapper.annotations.DynamoDbBean;
-import software.amazon.awssdk.enhanced.dynamodb.mapper.annotations.DynamoDbPartitionKey;
-
-@DynamoDbBean
+// Mapped to DynamoDB by com.mrg.aws.storage.ImageTableSchema
 public class Image {
 
     private String imageId;
     private String fileName;
     private String fileDesc;
-    private String fileSize;
+    // bytes
+    private Long fileSize;
     private String fileType;
     private String tags;
+    // SHA-256 of the bytes, identical uploads share the object stored under objectKey
+    private String contentHash;
+    private String objectKey;
+    // widths (px) of the resized variants stored next to the original, null until generated
+    private List<Integer> variants;
+    // epoch millis the upload built the record, null for records older than the attribute
+    private Long createdAt;
+    // S3 ETag of a directly uploaded object when it was recorded, its URL could still overwrite it
+    private String objectETag;
+
+    public Image() {
+    }
+
+    // Copy, for holders that must not see (or cause) changes made through another reference
+    public Image(Image image) {
+        this.imageId = image.imageId;
+        this.fileName = image.fileName;
+        this.fileDesc = image.fileDesc;
+        this.fileSize = image.fileSize;
+        this.fileType = image.fileType;
+        this.tags = image.tags;
+        this.contentHash = image.contentHash;
+        this.objectKey = image.objectKey;
+        this.variants = image.variants == null ? null : new ArrayList<>(image.variants);
+        this.createdAt = image.createdAt;
+        this.objectETag = image.objectETag;
+    }
 
-    @DynamoDbPartitionKey
-    @DynamoDbAttribute(value = "ImageId")
     public String getImageId() {
         return imageId;
     }
@@ -25,7 +49,6 @@ public class Image {
         this.imageId = imageId;
     }
 
-    @DynamoDbAttribute(value = "FileName")
     public String getFileName() {
         return fileName;
     }
@@ -34,7 +57,6 @@ public class Image {
         this.fileName = fileName;
     }
 
-    @DynamoDbAttribute(value = "FileDesc")
     public String getFileDesc() {
         return fileDesc;
     }
@@ -43,16 +65,14 @@ public class Image {
         this.fileDesc = fileDesc;
     }
 
-    @DynamoDbAttribute(value = "FileSize")
-    public String getFileSize() {
+    public Long getFileSize() {
         return fileSize;
     }
 
-    public void setFileSize(String fileSize) {
+    public void setFileSize(Long fileSize) {
         this.fileSize = fileSize;
     }
 
-    @DynamoDbAttribute(value = "FileType")
     public String getFileType() {
         return fileType;
     }
@@ -61,7 +81,6 @@ public class Image {
         this.fileType = fileType;
     }
 
-    @DynamoDbAttribute(value = "Tags")
     public String getTags() {
         return tags;
     }
@@ -70,15 +89,60 @@ public class Image {
         this.tags = tags;
     }
 
+    public String getContentHash() {
+        return contentHash;
+    }
+
+    public void setContentHash(String contentHash) {
+        this.contentHash = contentHash;
+    }
+
+    public String getObjectKey() {
+        return objectKey;
+    }
+
+    public void setObjectKey(String objectKey) {
+        this.objectKey = objectKey;
+    }
+
+    public List<Integer> getVariants() {
+        return variants;
+    }
+
+    public void setVariants(List<Integer> variants) {
+        this.variants = variants;
+    }
+
+    public Long getCreatedAt() {
+        return createdAt;
+    }
+
+    public void setCreatedAt(Long createdAt) {
+        this.createdAt = createdAt;
+    }
+
+    public String getObjectETag() {
+        return objectETag;
+    }
+
+    public void setObjectETag(String objectETag) {
+        this.objectETag = objectETag;
+    }
+
     @Override
     public String toString() {
         return "Image{" +
                 "imageId='" + imageId + '\'' +
                 ", fileName='" + fileName + '\'' +
                 ", fileDesc='" + fileDesc + '\'' +
-                ", fileSize='" + fileSize + '\'' +
+                ", fileSize=" + fileSize +
                 ", fileType='" + fileType + '\'' +
                 ", tags='" + tags + '\'' +
+                ", contentHash='" + contentHash + '\'' +
+                ", objectKey='" + objectKey + '\'' +
+                ", variants=" + variants +
+                ", createdAt=" + createdAt +
+                ", objectETag='" + objectETag + '\'' +
                 '}';
     }
 }
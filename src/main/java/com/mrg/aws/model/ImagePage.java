@@ -0,0 +1,26 @@
+package com.mrg.aws.model;
+
+import java.util.List;
+
+/*
+ * One page of images. nextCursor is an opaque token to pass back for the next
+ * page, it is null on the last page.
+ * */
+public class ImagePage {
+
+    private final List<Image> items;
+    private final String nextCursor;
+
+    public ImagePage(List<Image> items, String nextCursor) {
+        this.items = items;
+        this.nextCursor = nextCursor;
+    }
+
+    public List<Image> getItems() {
+        return items;
+    }
+
+    public String getNextCursor() {
+        return nextCursor;
+    }
+}
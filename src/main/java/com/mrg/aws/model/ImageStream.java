@@ -0,0 +1,63 @@
+package com.mrg.aws.model;
+
+import com.mrg.aws.util.FileUtils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/*
+ * Open handle on image content. The bytes are never held on the heap, they are
+ * copied to the client through a fixed size buffer by writeTo(OutputStream).
+ * contentRange is only set when a byte range of the image is served.
+ * */
+public class ImageStream implements Closeable {
+
+    private final InputStream content;
+    private final long contentLength;
+    private final String contentType;
+    private final String contentRange;
+
+    public ImageStream(InputStream content, long contentLength, String contentType, String contentRange) {
+        this.content = content;
+        this.contentLength = contentLength;
+        this.contentType = contentType;
+        this.contentRange = contentRange;
+    }
+
+    // For subclasses serving content without an InputStream, they override writeTo and close
+    protected ImageStream(long contentLength, String contentType, String contentRange) {
+        this(null, contentLength, contentType, contentRange);
+    }
+
+    // null for subclasses serving content without an InputStream
+    public InputStream getContent() {
+        return content;
+    }
+
+    public long getContentLength() {
+        return contentLength;
+    }
+
+    public String getContentType() {
+        return contentType;
+    }
+
+    public String getContentRange() {
+        return contentRange;
+    }
+
+    public boolean isPartial() {
+        return contentRange != null;
+    }
+
+    public void writeTo(OutputStream outputStream) throws IOException {
+        FileUtils.copy(content, outputStream);
+    }
+
+    @Override
+    public void close() throws IOException {
+        content.close();
+    }
+}
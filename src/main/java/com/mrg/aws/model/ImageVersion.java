@@ -0,0 +1,78 @@
+package com.mrg.aws.model;
+
+/*
+ * What a download request resolves to before any byte is read: the object key (the
+ * original or a variant) and the HTTP validators of its content. Objects never change
+ * under their key, so entityTag is a strong ETag. contentLength is null when only the
+ * object storage knows it (variants).
+ * A variant not generated yet is described by its planned width (pendingWidth) with the
+ * ETag it will have, the key is only final once AWSService.resolve generated it.
+ * objectETag is the storage ETag the object was recorded with (direct uploads), reads
+ * of other content under the key are refused.
+ * */
+public class ImageVersion {
+
+    private final String key;
+    private final String entityTag;
+    private final String contentType;
+    private final Long contentLength;
+    private final String imageId;
+    private final Integer pendingWidth;
+    private final String objectETag;
+
+    public ImageVersion(String key, String entityTag, String contentType, Long contentLength) {
+        this(key, entityTag, contentType, contentLength, null, null, null);
+    }
+
+    public ImageVersion(String key, String entityTag, String contentType, Long contentLength, String objectETag) {
+        this(key, entityTag, contentType, contentLength, null, null, objectETag);
+    }
+
+    public ImageVersion(String key, String entityTag, String contentType, Long contentLength,
+                        String imageId, Integer pendingWidth) {
+        this(key, entityTag, contentType, contentLength, imageId, pendingWidth, null);
+    }
+
+    private ImageVersion(String key, String entityTag, String contentType, Long contentLength,
+                         String imageId, Integer pendingWidth, String objectETag) {
+        this.key = key;
+        this.entityTag = entityTag;
+        this.contentType = contentType;
+        this.contentLength = contentLength;
+        this.imageId = imageId;
+        this.pendingWidth = pendingWidth;
+        this.objectETag = objectETag;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public String getEntityTag() {
+        return entityTag;
+    }
+
+    public String getContentType() {
+        return contentType;
+    }
+
+    public Long getContentLength() {
+        return contentLength;
+    }
+
+    public String getImageId() {
+        return imageId;
+    }
+
+    public Integer getPendingWidth() {
+        return pendingWidth;
+    }
+
+    public String getObjectETag() {
+        return objectETag;
+    }
+
+    public boolean isPending() {
+        return pendingWidth != null;
+    }
+}
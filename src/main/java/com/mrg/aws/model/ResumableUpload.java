@@ -0,0 +1,53 @@
+package com.mrg.aws.model;
+
+import java.time.Instant;
+import java.util.List;
+
+/*
+ * State of a resumable upload as clients see it: chunks are numbered from 1 to
+ * chunkCount, each chunkSize bytes except the last. missingChunks are the ones still
+ * to PUT; the session expires when nothing arrives until expiresAt.
+ * */
+public class ResumableUpload {
+
+    private final String imageId;
+    private final long contentLength;
+    private final int chunkSize;
+    private final int chunkCount;
+    private final List<Integer> missingChunks;
+    private final Instant expiresAt;
+
+    public ResumableUpload(String imageId, long contentLength, int chunkSize, int chunkCount,
+                           List<Integer> missingChunks, Instant expiresAt) {
+        this.imageId = imageId;
+        this.contentLength = contentLength;
+        this.chunkSize = chunkSize;
+        this.chunkCount = chunkCount;
+        this.missingChunks = missingChunks;
+        this.expiresAt = expiresAt;
+    }
+
+    public String getImageId() {
+        return imageId;
+    }
+
+    public long getContentLength() {
+        return contentLength;
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    public int getChunkCount() {
+        return chunkCount;
+    }
+
+    public List<Integer> getMissingChunks() {
+        return missingChunks;
+    }
+
+    public Instant getExpiresAt() {
+        return expiresAt;
+    }
+}
@@ -0,0 +1,25 @@
+package com.mrg.aws.model;
+
+import java.time.Instant;
+
+/*
+ * One entry of an object storage listing, the content is not read.
+ * */
+public class StoredObject {
+
+    private final String key;
+    private final Instant lastModified;
+
+    public StoredObject(String key, Instant lastModified) {
+        this.key = key;
+        this.lastModified = lastModified;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public Instant getLastModified() {
+        return lastModified;
+    }
+}
@@ -0,0 +1,49 @@
+package com.mrg.aws.model;
+
+/*
+ * Outcome of one file of a batch upload.
+ * */
+public class UploadResult {
+
+    public enum Status {
+        CREATED,
+        FAILED
+    }
+
+    private final String fileName;
+    private String imageId;
+    private Status status;
+    private String error;
+
+    public UploadResult(String fileName) {
+        this.fileName = fileName;
+    }
+
+    public void created(String imageId) {
+        this.imageId = imageId;
+        this.status = Status.CREATED;
+        this.error = null;
+    }
+
+    public void failed(String error) {
+        this.imageId = null;
+        this.status = Status.FAILED;
+        this.error = error;
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    public String getImageId() {
+        return imageId;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    public String getError() {
+        return error;
+    }
+}
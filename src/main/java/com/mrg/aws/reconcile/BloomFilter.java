@@ -0,0 +1,74 @@
+package com.mrg.aws.reconcile;
+
+import java.nio.charset.StandardCharsets;
+
+/*
+ * Set of strings in a fixed bit array: mightContain never misses an added key and
+ * wrongly answers true for about falsePositiveRate of the others while at most
+ * expectedKeys are added (more keys only raise that rate). Ten million keys at 1%
+ * take 12 MB. Indexes are derived from two 64-bit hashes of the UTF-8 bytes
+ * (Kirsch-Mitzenmacher); the seed changes which keys collide.
+ * Not thread safe, add from one thread and publish before reading.
+ * */
+public final class BloomFilter {
+
+    private final long[] bits;
+    private final long bitCount;
+    private final int hashCount;
+    private final long seed;
+
+    public BloomFilter(final long expectedKeys, final double falsePositiveRate, final long seed) {
+        if (expectedKeys < 1 || falsePositiveRate <= 0 || falsePositiveRate >= 1) {
+            throw new IllegalArgumentException("Invalid bloom filter size " + expectedKeys + " / " + falsePositiveRate);
+        }
+        final double ln2 = Math.log(2);
+        final long optimalBits = (long) Math.ceil(-expectedKeys * Math.log(falsePositiveRate) / (ln2 * ln2));
+        this.bits = new long[(int) Math.min(Integer.MAX_VALUE - 8, (Math.max(64, optimalBits) + 63) / 64)];
+        this.bitCount = (long) bits.length * 64;
+        this.hashCount = Math.max(1, (int) Math.round((double) bitCount / expectedKeys * ln2));
+        this.seed = seed;
+    }
+
+    public void add(final String key) {
+        final long hash1 = hash(key);
+        final long hash2 = mix(hash1);
+        for (int i = 0; i < hashCount; i++) {
+            final long index = index(hash1, hash2, i);
+            bits[(int) (index >>> 6)] |= 1L << index;
+        }
+    }
+
+    public boolean mightContain(final String key) {
+        final long hash1 = hash(key);
+        final long hash2 = mix(hash1);
+        for (int i = 0; i < hashCount; i++) {
+            final long index = index(hash1, hash2, i);
+            if ((bits[(int) (index >>> 6)] & (1L << index)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private long index(final long hash1, final long hash2, final int i) {
+        // odd step, so the hashCount indexes differ
+        return Math.floorMod(hash1 + i * (hash2 | 1), bitCount);
+    }
+
+    // FNV-1a, finished with mix for a uniform spread of the high and low bits
+    private long hash(final String key) {
+        long hash = 0xcbf29ce484222325L ^ seed;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        return mix(hash);
+    }
+
+    // finalizer of SplitMix64
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+}
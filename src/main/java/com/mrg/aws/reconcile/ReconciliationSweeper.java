@@ -0,0 +1,295 @@
+package com.mrg.aws.reconcile;
+
+import com.mrg.aws.cache.ImageCache;
+import com.mrg.aws.model.Image;
+import com.mrg.aws.model.StoredObject;
+import com.mrg.aws.service.AWSService;
+import com.mrg.aws.service.ContentStore;
+import com.mrg.aws.service.DerivativeService;
+import com.mrg.aws.storage.MetadataStorage;
+import com.mrg.aws.storage.ObjectStorage;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+/*
+ * Finds what failed uploads and deletes left behind: objects no image record points to
+ * and records whose object is gone. Neither side is held in memory:
+ *  1. the bucket is listed and the table scanned in parallel, each into a Bloom filter
+ *     (keys of the stored objects, keys the records point to)
+ *  2. both are read again in parallel; an object whose key is not in the record filter
+ *     is an orphan, a record whose key is not in the object filter is checked with a
+ *     HEAD request and is an orphan when the object is really missing.
+ * A Bloom filter never misses a key, so a false positive only keeps an orphan until a
+ * later sweep (every sweep uses another seed), nothing referenced is deleted.
+ * Objects modified and records created within image.reconciliation.grace-period-minutes are
+ * left alone: the record of a new object may still be on the way (see MetadataOutbox), and
+ * async uploads write the record while the object is still uploading. Deduplicated content
+ * is only deleted when its reference count is zero as well; it is deleted right after the
+ * count record is claimed and claimed again just before, so an upload referencing the same
+ * bytes meanwhile keeps it (the window left is the one of ContentStore.release). Records
+ * cannot be repaired, their bytes are gone, they are deleted like DELETE /image/{id} does.
+ * Other objects are deleted in batches (one request per batch on S3), all deletes are paced to
+ * image.reconciliation.deletes-per-second. A failed listing or scan in step 1 stops the
+ * sweep before anything is deleted.
+ * */
+@Component
+public class ReconciliationSweeper {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ReconciliationSweeper.class);
+
+    @Value("${image.reconciliation.grace-period-minutes}")
+    private long gracePeriodMinutes;
+    @Value("${image.reconciliation.deletes-per-second}")
+    private double deletesPerSecond;
+    @Value("${image.reconciliation.batch-size}")
+    private int batchSize;
+    @Value("${image.reconciliation.expected-keys}")
+    private long expectedKeys;
+    @Value("${image.reconciliation.false-positive-rate}")
+    private double falsePositiveRate;
+
+    private ObjectStorage objectStorage;
+    private MetadataStorage metadataStorage;
+    private ContentStore contentStore;
+    private ImageCache imageCache;
+    private AWSService service;
+    private MeterRegistry registry;
+    private ExecutorService reconciliationExecutor;
+
+    private final AtomicBoolean running = new AtomicBoolean();
+    private long nextDelete;
+
+    @Autowired
+    public ReconciliationSweeper(ObjectStorage objectStorage, MetadataStorage metadataStorage, ContentStore contentStore,
+                                 ImageCache imageCache, AWSService service, MeterRegistry registry,
+                                 @Qualifier("reconciliationExecutor") ExecutorService reconciliationExecutor) {
+        this.objectStorage = objectStorage;
+        this.metadataStorage = metadataStorage;
+        this.contentStore = contentStore;
+        this.imageCache = imageCache;
+        this.service = service;
+        this.registry = registry;
+        this.reconciliationExecutor = reconciliationExecutor;
+    }
+
+    @Scheduled(cron = "${image.reconciliation.cron}")
+    public void sweepScheduled() {
+        try {
+            sweep();
+        } catch (Exception e) {
+            LOGGER.error("Error= {} while reconciling object and metadata storage.", e.getMessage());
+        }
+    }
+
+    // Returns false when a sweep is already running
+    public boolean sweep() throws InterruptedException {
+        if (!running.compareAndSet(false, true)) {
+            return false;
+        }
+        try {
+            final Instant cutoff = Instant.now().minus(Duration.ofMinutes(gracePeriodMinutes));
+            final long seed = ThreadLocalRandom.current().nextLong();
+            final BloomFilter storedKeys = new BloomFilter(expectedKeys, falsePositiveRate, seed);
+            final BloomFilter referencedKeys = new BloomFilter(expectedKeys, falsePositiveRate, seed);
+            LOGGER.info("Reconciliation started, objects modified before {} are swept.", cutoff);
+            synchronized (this) {
+                nextDelete = System.nanoTime();
+            }
+
+            inParallel(() -> forEachObject(object -> storedKeys.add(object.getKey())),
+                    () -> forEachRecord(image -> referencedKeys(image).forEach(referencedKeys::add)));
+
+            final long[] orphanObjects = new long[1];
+            final long[] orphanRecords = new long[1];
+            inParallel(() -> {
+                final List<String> batch = new ArrayList<>(batchSize);
+                forEachObject(object -> {
+                    if (!object.getLastModified().isBefore(cutoff) || referencedKeys.mightContain(object.getKey())) {
+                        return;
+                    }
+                    final String contentHash = ContentStore.contentHashOf(object.getKey());
+                    if (contentHash == null) {
+                        batch.add(object.getKey());
+                        orphanObjects[0]++;
+                        if (batch.size() == batchSize) {
+                            deleteObjects(batch);
+                        }
+                    } else if (claim(contentHash)) {
+                        orphanObjects[0]++;
+                        deleteContent(contentHash);
+                    }
+                });
+                deleteObjects(batch);
+            }, () -> forEachRecord(image -> {
+                // records without a creation time predate it, they are older than any grace period
+                if (image.getCreatedAt() != null && image.getCreatedAt() >= cutoff.toEpochMilli()) {
+                    return;
+                }
+                if (!storedKeys.mightContain(ContentStore.objectKey(image))
+                        && !objectStorage.exists(ContentStore.objectKey(image))) {
+                    orphanRecords[0]++;
+                    deleteRecord(image);
+                }
+            }));
+            LOGGER.info("Reconciliation is completed, {} orphan objects and {} orphan records found.",
+                    orphanObjects[0], orphanRecords[0]);
+            return true;
+        } finally {
+            running.set(false);
+        }
+    }
+
+    // Both run on the reconciliation pool, the first failure is thrown once both ended
+    private void inParallel(final Runnable first, final Runnable second) throws InterruptedException {
+        final Future<?> firstRun = reconciliationExecutor.submit(first);
+        final Future<?> secondRun = reconciliationExecutor.submit(second);
+        RuntimeException failure = null;
+        for (Future<?> run : new Future<?>[]{firstRun, secondRun}) {
+            try {
+                run.get();
+            } catch (ExecutionException ex) {
+                if (failure == null) {
+                    failure = new IllegalStateException("Failed to reconcile storages", ex.getCause());
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private void forEachObject(final Consumer<StoredObject> action) {
+        try (Stream<StoredObject> objects = objectStorage.list()) {
+            objects.forEach(action);
+        }
+    }
+
+    private void forEachRecord(final Consumer<Image> action) {
+        try (Stream<Image> images = metadataStorage.findAll()) {
+            images.forEach(action);
+        }
+    }
+
+    private static List<String> referencedKeys(final Image image) {
+        final List<String> keys = new ArrayList<>();
+        keys.add(ContentStore.objectKey(image));
+        if (image.getVariants() != null) {
+            image.getVariants().forEach(width -> keys.add(DerivativeService.variantKey(image.getImageId(), width)));
+        }
+        return keys;
+    }
+
+    // Deduplicated content may be referenced by an upload whose record is not written yet
+    private boolean claim(final String contentHash) {
+        try {
+            if (contentStore.claimUnreferenced(contentHash)) {
+                return true;
+            }
+            LOGGER.info("Content {} has no image record but is still referenced, it is kept.", contentHash);
+            count("object", "kept", 1);
+        } catch (RuntimeException ex) {
+            LOGGER.error("Error= {} while checking references of orphan content {}.", ex.getMessage(), contentHash);
+            count("object", "failed", 1);
+        }
+        return false;
+    }
+
+    /*
+     * Not batched: a batch waits for its pace, an upload of the same bytes in the meantime
+     * would store the object again and lose it with the batch. Claimed once more after the
+     * pause, the claim only succeeds while nothing references the content.
+     * */
+    private void deleteContent(final String contentHash) {
+        final String key = ContentStore.objectKeyOf(contentHash);
+        try {
+            pace(1);
+            if (!claim(contentHash)) {
+                return;
+            }
+            imageCache.evict(key);
+            objectStorage.delete(key);
+            count("object", "deleted", 1);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Reconciliation is interrupted", ex);
+        } catch (RuntimeException ex) {
+            LOGGER.error("Error= {} while deleting orphan object {}.", ex.getMessage(), key);
+            count("object", "failed", 1);
+        }
+    }
+
+    private void deleteObjects(final List<String> keys) {
+        if (keys.isEmpty()) {
+            return;
+        }
+        try {
+            pace(keys.size());
+            keys.forEach(imageCache::evict);
+            objectStorage.deleteAll(keys);
+            count("object", "deleted", keys.size());
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Reconciliation is interrupted", ex);
+        } catch (RuntimeException ex) {
+            LOGGER.error("Error= {} while deleting {} orphan objects.", ex.getMessage(), keys.size());
+            count("object", "failed", keys.size());
+        }
+        keys.clear();
+    }
+
+    private void deleteRecord(final Image image) {
+        try {
+            pace(1);
+            LOGGER.info("Object of image {} is missing, the record is deleted.", image.getImageId());
+            service.deleteImage(UUID.fromString(image.getImageId()));
+            count("record", "deleted", 1);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Reconciliation is interrupted", ex);
+        } catch (RuntimeException ex) {
+            LOGGER.error("Error= {} while deleting orphan record {}.", ex.getMessage(), image.getImageId());
+            count("record", "failed", 1);
+        }
+    }
+
+    // Shared by both sides, at most deletesPerSecond deletes are started per second
+    private void pace(final int deletes) throws InterruptedException {
+        if (deletesPerSecond <= 0) {
+            return;
+        }
+        final long wait;
+        synchronized (this) {
+            final long now = System.nanoTime();
+            final long start = nextDelete - now > 0 ? nextDelete : now;
+            nextDelete = start + (long) (deletes * TimeUnit.SECONDS.toNanos(1) / deletesPerSecond);
+            wait = start - now;
+        }
+        if (wait > 0) {
+            TimeUnit.NANOSECONDS.sleep(wait);
+        }
+    }
+
+    private void count(final String kind, final String outcome, final long orphans) {
+        registry.counter("image.reconciliation.orphans", "kind", kind, "outcome", outcome).increment(orphans);
+    }
+}
@@ -0,0 +1,12 @@
+package com.mrg.aws.service;
+
+import com.mrg.aws.model.Image;
+import com.mrg.aws.model.ImagePage;
+import org.springframework.web.multipart.MultipartFile;
+
+import java.util.concurrent.CompletableFuture;
+
+public interface AWSAsyncService {
+	CompletableFuture<Image> uploadImage(MultipartFile multipartFile, String description, String tags);
+	CompletableFuture<ImagePage> findPage(int pageSize, String cursor);
+}
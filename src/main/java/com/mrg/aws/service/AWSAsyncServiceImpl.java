@@ -0,0 +1,251 @@
+package com.mrg.aws.service;
+
+import com.mrg.aws.cache.MetadataCache;
+import com.mrg.aws.index.TagIndex;
+import com.mrg.aws.metrics.StorageMetrics;
+import com.mrg.aws.model.Image;
+import com.mrg.aws.model.ImagePage;
+import com.mrg.aws.storage.ImageTableSchema;
+import com.mrg.aws.util.CursorUtils;
+import com.mrg.aws.util.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Service;
+import org.springframework.web.multipart.MultipartFile;
+import software.amazon.awssdk.core.async.AsyncRequestBody;
+import software.amazon.awssdk.enhanced.dynamodb.DynamoDbAsyncTable;
+import software.amazon.awssdk.enhanced.dynamodb.DynamoDbEnhancedAsyncClient;
+import software.amazon.awssdk.enhanced.dynamodb.Key;
+import software.amazon.awssdk.services.dynamodb.DynamoDbAsyncClient;
+import software.amazon.awssdk.services.dynamodb.model.ScanRequest;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+import software.amazon.awssdk.services.s3.model.PutObjectResponse;
+
+import javax.annotation.PostConstruct;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
+
+/*
+ * Non-blocking variant of AWSService for uploads and listing (downloads, searches and
+ * deletes are only served by AWSService). No thread waits on AWS: the DynamoDB put and
+ * the S3 put of an upload are started together so the upload takes as long as the
+ * slower of the two, and whichever leg succeeded is compensated if the other fails.
+ * The local work before them (moving the part to a temp file, hashing it) runs on
+ * asyncPrepareExecutor, so the servlet thread returns right away.
+ * Only available on AWS storage, local storage has no non-blocking client.
+ * */
+@Service
+@ConditionalOnProperty(name = "storage.type", havingValue = "aws", matchIfMissing = true)
+public class AWSAsyncServiceImpl implements AWSAsyncService {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(AWSAsyncServiceImpl.class);
+
+    @Value("${aws.s3.bucket}")
+    private String bucketName;
+    @Value("${aws.dynamodb.table}")
+    private String tableName;
+
+    private S3AsyncClient s3AsyncClient;
+    private DynamoDbAsyncClient dynamoDbAsyncClient;
+    private DynamoDbEnhancedAsyncClient enhancedAsyncClient;
+    private DynamoDbAsyncTable<Image> imageTable;
+    private TagIndex tagIndex;
+    private MetadataCache metadataCache;
+    private DerivativeService derivativeService;
+    private AsyncContentStore contentStore;
+    private StorageMetrics metrics;
+    private ExecutorService prepareExecutor;
+
+    @Autowired
+    public AWSAsyncServiceImpl(S3AsyncClient s3AsyncClient, DynamoDbAsyncClient dynamoDbAsyncClient, TagIndex tagIndex,
+                               MetadataCache metadataCache, DerivativeService derivativeService, AsyncContentStore contentStore,
+                               StorageMetrics metrics, @Qualifier("asyncPrepareExecutor") ExecutorService prepareExecutor) {
+        this.s3AsyncClient = s3AsyncClient;
+        this.dynamoDbAsyncClient = dynamoDbAsyncClient;
+        this.tagIndex = tagIndex;
+        this.metadataCache = metadataCache;
+        this.derivativeService = derivativeService;
+        this.contentStore = contentStore;
+        this.metrics = metrics;
+        this.prepareExecutor = prepareExecutor;
+        this.enhancedAsyncClient = DynamoDbEnhancedAsyncClient.builder()
+                .dynamoDbClient(dynamoDbAsyncClient)
+                .build();
+    }
+
+    @PostConstruct
+    public void init() {
+        imageTable = enhancedAsyncClient.table(tableName, ImageTableSchema.SCHEMA);
+    }
+
+    @Override
+    public CompletableFuture<Image> uploadImage(final MultipartFile multipartFile, final String description, final String tags) {
+        FileUtils.isFileNotEmpty(multipartFile);
+        LOGGER.info("Async file upload in progress.");
+        // Primary key for S3 & DynamoDB records
+        final String uniqueFileId = UUID.randomUUID().toString();
+
+        /*
+         * The request body must outlive the servlet request, it is written to a uniquely named
+         * temp file on a prepare thread and the SDK then streams it from disk. A part the container
+         * spooled to disk is renamed when both files are on the same file system and copied
+         * otherwise, a part held in memory is written out. The part stays valid until the returned
+         * future completes, the request is kept open until then.
+         * */
+        final CompletableFuture<Path> prepared = new CompletableFuture<>();
+        try {
+            prepareExecutor.execute(() -> {
+                try {
+                    final Path file = Files.createTempFile("upload-", ".tmp");
+                    try {
+                        multipartFile.transferTo(file.toFile());
+                    } catch (IOException | RuntimeException ex) {
+                        deleteQuietly(file);
+                        throw ex;
+                    }
+                    prepared.complete(file);
+                } catch (IOException | RuntimeException ex) {
+                    LOGGER.error("Error= {} while preparing async upload.", ex.getMessage());
+                    prepared.completeExceptionally(ex);
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            return failed(ex);
+        }
+        return prepared.thenCompose(file -> {
+            final String contentHash;
+            try (InputStream inputStream = Files.newInputStream(file)) {
+                contentHash = FileUtils.sha256Hex(inputStream);
+            } catch (IOException ex) {
+                LOGGER.error("Error= {} while hashing async upload.", ex.getMessage());
+                deleteQuietly(file);
+                return AWSAsyncServiceImpl.<Image>failed(ex);
+            }
+            return upload(uniqueFileId, file, contentHash, multipartFile, description, tags);
+        });
+    }
+
+    // Runs on a prepare thread, everything after the two puts runs on SDK completion threads
+    private CompletableFuture<Image> upload(final String uniqueFileId, final Path file, final String contentHash,
+                                            final MultipartFile multipartFile, final String description,
+                                            final String tags) {
+        final Image image = AWSServiceImpl.buildImage(uniqueFileId, contentHash, multipartFile, description, tags);
+
+        final CompletableFuture<Void> metadata = metrics.recordAsync("dynamodb", "put_item", () -> imageTable.putItem(image));
+        // Duplicate content is only referenced, the S3 put is skipped
+        final AtomicBoolean referenced = new AtomicBoolean();
+        final CompletableFuture<PutObjectResponse> object = contentStore.acquire(contentHash)
+                .thenCompose(upload -> {
+                    referenced.set(true);
+                    return upload
+                            ? metrics.recordAsync("s3", "put_object", () -> s3AsyncClient.putObject(PutObjectRequest.builder()
+                                .bucket(bucketName)
+                                .key(ContentStore.objectKeyOf(contentHash))
+                                .build(), AsyncRequestBody.fromFile(file)))
+                            : CompletableFuture.<PutObjectResponse>completedFuture(null);
+                });
+
+        return CompletableFuture.allOf(metadata, object)
+                .handle((ignored, failure) -> {
+                    deleteQuietly(file);
+                    if (failure == null) {
+                        metadataCache.put(image);
+                        tagIndex.add(image);
+                        derivativeService.generateAsync(image);
+                        metrics.uploaded(multipartFile.getSize());
+                        LOGGER.info("Async file upload is completed successfully.");
+                        return CompletableFuture.completedFuture(image);
+                    }
+                    LOGGER.error("Error= {} while uploading file asynchronously.", failure.getMessage());
+                    return compensate(uniqueFileId, contentHash, metadata, referenced.get(), unwrap(failure));
+                })
+                .thenCompose(result -> result);
+    }
+
+    @Override
+    public CompletableFuture<ImagePage> findPage(final int pageSize, final String cursor) {
+        final ScanRequest request = ScanRequest.builder()
+                .tableName(tableName)
+                .limit(pageSize)
+                .exclusiveStartKey(CursorUtils.decode(cursor))
+                .build();
+        return metrics.recordAsync("dynamodb", "scan_page", () -> dynamoDbAsyncClient.scan(request))
+                .thenApply(page -> new ImagePage(
+                        page.items().stream().map(ImageTableSchema.SCHEMA::mapToItem).collect(Collectors.toList()),
+                        CursorUtils.encode(page.lastEvaluatedKey())));
+    }
+
+    /*
+     * Undoes the leg(s) that succeeded, then fails with the original error. A failed
+     * compensation is only logged, the caller still sees the upload failure.
+     * Releasing the content reference also removes the object if nothing else uses it.
+     * */
+    private CompletableFuture<Image> compensate(String uniqueFileId, String contentHash,
+                                                CompletableFuture<Void> metadata, boolean referenced,
+                                                Throwable failure) {
+        final List<CompletableFuture<?>> rollbacks = new ArrayList<>();
+        if (!metadata.isCompletedExceptionally()) {
+            LOGGER.info("Rollback started for DynamoDB record.");
+            rollbacks.add(counted("record", metrics.recordAsync("dynamodb", "delete_item",
+                    () -> imageTable.deleteItem(Key.builder().partitionValue(uniqueFileId).build()))));
+        }
+        if (referenced) {
+            LOGGER.info("Rollback started for content reference.");
+            rollbacks.add(counted("content", contentStore.release(contentHash)));
+        }
+        final CompletableFuture<Image> result = new CompletableFuture<>();
+        CompletableFuture.allOf(rollbacks.toArray(new CompletableFuture[0]))
+                .whenComplete((ignored, rollbackFailure) -> {
+                    if (rollbackFailure != null) {
+                        LOGGER.error("Rollback operation failed. Error = {}", rollbackFailure.getMessage());
+                    } else {
+                        LOGGER.info("Rollback is succeeded.");
+                    }
+                    result.completeExceptionally(failure);
+                });
+        return result;
+    }
+
+    private <T> CompletableFuture<T> counted(String target, CompletableFuture<T> rollback) {
+        metrics.rollback(target);
+        return rollback.whenComplete((ignored, failure) -> {
+            if (failure != null) {
+                metrics.rollbackFailed(target);
+            }
+        });
+    }
+
+    private static Throwable unwrap(Throwable failure) {
+        return failure instanceof CompletionException && failure.getCause() != null ? failure.getCause() : failure;
+    }
+
+    private static <T> CompletableFuture<T> failed(Throwable failure) {
+        final CompletableFuture<T> result = new CompletableFuture<>();
+        result.completeExceptionally(failure);
+        return result;
+    }
+
+    private static void deleteQuietly(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException ex) {
+            LOGGER.error("Error= {} while deleting upload file {}", ex.getMessage(), file);
+        }
+    }
+}
@@ -1,14 +1,38 @@
 package com.mrg.aws.service;
 
+import com.mrg.aws.index.TagIndex;
 import com.mrg.aws.model.Image;
+import com.mrg.aws.model.ImagePage;
+import com.mrg.aws.model.ImageStream;
+import com.mrg.aws.model.ImageVersion;
+import com.mrg.aws.model.UploadResult;
+import org.springframework.http.HttpRange;
 import org.springframework.web.multipart.MultipartFile;
 
+import java.io.IOException;
+import java.io.OutputStream;
 import java.util.List;
 import java.util.UUID;
+import java.util.stream.Stream;
 
 public interface AWSService {
 	void uploadImage(MultipartFile multipartFile, String description, String tags) throws Exception;
-	byte[] downloadImage(UUID imageId);
-	List<Image> findAll();
-	List<Image> findBySearchTerm(String searchTerm);
+	List<UploadResult> uploadImages(List<MultipartFile> multipartFiles, List<String> descriptions, List<String> tags);
+	// Records an image whose object is already stored under its id (direct uploads)
+	void recordUpload(Image image, long size);
+	ImageStream downloadImage(UUID imageId, HttpRange range);
+	ImageStream downloadVariant(UUID imageId, int width, HttpRange range);
+	// From the metadata and the configured widths only, variants are not generated
+	ImageVersion describe(UUID imageId, Integer width);
+	// Generates a pending variant, the result names the object to read
+	ImageVersion resolve(ImageVersion version);
+	ImageStream download(ImageVersion version, HttpRange range);
+	// Null when unknown without generating the variant
+	Long contentLength(ImageVersion version);
+	Image findImage(UUID imageId);
+	void exportImages(List<UUID> imageIds, OutputStream outputStream) throws IOException;
+	Stream<Image> findAll();
+	ImagePage findPage(int pageSize, String cursor);
+	List<Image> findBySearchTerm(String searchTerm, TagIndex.Match match, boolean prefix, boolean consistent);
+	void deleteImage(UUID imageId);
 }
@@ -1,112 +1,427 @@
 package com.mrg.aws.service;
 
+import com.mrg.aws.cache.ImageCache;
+import com.mrg.aws.cache.MetadataCache;
+import com.mrg.aws.index.TagIndex;
+import com.mrg.aws.metrics.StorageMetrics;
 import com.mrg.aws.model.Image;
+import com.mrg.aws.model.ImagePage;
+import com.mrg.aws.model.ImageStream;
+import com.mrg.aws.model.ImageVersion;
+import com.mrg.aws.model.UploadResult;
+import com.mrg.aws.storage.MetadataStorage;
+import com.mrg.aws.storage.ObjectStorage;
 import com.mrg.aws.util.FileUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.annotation.Value;
-import org.springframework.scheduling.annotation.Async;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.http.HttpRange;
+import org.springframework.http.HttpStatus;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
+import org.springframework.util.StringUtils;
 import org.springframework.web.multipart.MultipartFile;
-import software.amazon.awssdk.core.ResponseBytes;
-import software.amazon.awssdk.core.sync.RequestBody;
-import software.amazon.awssdk.core.sync.ResponseTransformer;
-import software.amazon.awssdk.enhanced.dynamodb.*;
-import software.amazon.awssdk.enhanced.dynamodb.model.QueryConditional;
-import software.amazon.awssdk.enhanced.dynamodb.model.ScanEnhancedRequest;
-import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
-import software.amazon.awssdk.services.dynamodb.model.*;
-import software.amazon.awssdk.services.s3.S3Client;
-import software.amazon.awssdk.services.s3.model.GetObjectRequest;
-import software.amazon.awssdk.services.s3.model.GetObjectResponse;
-import software.amazon.awssdk.services.s3.model.PutObjectRequest;
-import software.amazon.awssdk.services.s3.model.S3Object;
-import software.amazon.awssdk.utils.IoUtils;
-
-import java.io.File;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
 
+/*
+ * Image operations on top of the configured storage backend (storage.type): objects
+ * go to an ObjectStorage, records and content references to a MetadataStorage.
+ * */
 @Service
 public class AWSServiceImpl implements AWSService {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(AWSServiceImpl.class);
 
-    @Value("${aws.s3.bucket}")
-    private String bucketName;
-    @Value("${aws.dynamodb.table}")
-    private String tableName;
+    private static final String EXPORT_ERRORS_ENTRY = "export-errors.txt";
+
+    private ObjectStorage objectStorage;
+    private MetadataStorage metadataStorage;
+    private TagIndex tagIndex;
+    private ImageCache imageCache;
+    private MetadataCache metadataCache;
+    private ExecutorService batchUploadExecutor;
+    private ExecutorService exportReadAheadExecutor;
+    private DerivativeService derivativeService;
+    private ContentStore contentStore;
+    private MetadataOutbox outbox;
+    private StorageMetrics metrics;
 
-    private S3Client s3Client;
-    private DynamoDbClient dynamoDbClient;
-    private DynamoDbEnhancedClient enhancedClient;
+    @Value("${image.export.read-ahead}")
+    private int exportReadAhead;
 
     @Autowired
-    public AWSServiceImpl(S3Client s3Client, DynamoDbClient dynamoDbClient) {
-        this.s3Client = s3Client;
-        this.dynamoDbClient = dynamoDbClient;
-        this.enhancedClient = DynamoDbEnhancedClient.builder()
-                .dynamoDbClient(dynamoDbClient)
-                .build();
+    public AWSServiceImpl(ObjectStorage objectStorage, MetadataStorage metadataStorage, TagIndex tagIndex,
+                          ImageCache imageCache, MetadataCache metadataCache,
+                          @Qualifier("batchUploadExecutor") ExecutorService batchUploadExecutor,
+                          @Qualifier("exportReadAheadExecutor") ExecutorService exportReadAheadExecutor,
+                          DerivativeService derivativeService, ContentStore contentStore, MetadataOutbox outbox,
+                          StorageMetrics metrics) {
+        this.objectStorage = objectStorage;
+        this.metadataStorage = metadataStorage;
+        this.tagIndex = tagIndex;
+        this.imageCache = imageCache;
+        this.metadataCache = metadataCache;
+        this.batchUploadExecutor = batchUploadExecutor;
+        this.exportReadAheadExecutor = exportReadAheadExecutor;
+        this.derivativeService = derivativeService;
+        this.contentStore = contentStore;
+        this.outbox = outbox;
+        this.metrics = metrics;
+    }
+
+
+    /*
+     * Records still in the outbox are not in the metadata storage yet, they are merged in.
+     * A record flushed while the scan runs is skipped there, it is already in the snapshot.
+     * */
+    @Override
+    public Stream<Image> findAll() {
+        final List<Image> pending = outbox.pendingImages();
+        final Set<String> pendingIds = imageIds(pending);
+        return Stream.concat(pending.stream(),
+                metadataStorage.findAll().filter(image -> !pendingIds.contains(image.getImageId())));
     }
 
+    /*
+     * The first page also carries the records still in the outbox, so it can be longer than
+     * pageSize; later pages skip them. A record flushed between two page requests may show
+     * up a second time in a later page.
+     * */
+    @Override
+    public ImagePage findPage(int pageSize, String cursor) {
+        final List<Image> pending = outbox.pendingImages();
+        final Set<String> pendingIds = imageIds(pending);
+        final ImagePage page = metadataStorage.findPage(pageSize, cursor);
+        final List<Image> items = new ArrayList<>();
+        if (cursor == null) {
+            items.addAll(pending);
+        }
+        page.getItems().stream()
+                .filter(image -> !pendingIds.contains(image.getImageId()))
+                .forEach(items::add);
+        return new ImagePage(items, page.getNextCursor());
+    }
+
+    private static Set<String> imageIds(final List<Image> images) {
+        final Set<String> imageIds = new HashSet<>();
+        images.forEach(image -> imageIds.add(image.getImageId()));
+        return imageIds;
+    }
 
     @Override
-    public List<Image> findAll() {
-        List<Image> imageList = new ArrayList<>();
+    public List<Image> findBySearchTerm(String searchTerm, TagIndex.Match match, boolean prefix, boolean consistent) {
+        if (match == TagIndex.Match.SUBSTRING) {
+            if (!consistent && tagIndex.isReady()) {
+                return tagIndex.searchSubstring(searchTerm);
+            }
+            try (Stream<Image> images = findAll()) {
+                return images.filter(image -> TagIndex.containsSubstring(image, searchTerm))
+                        .collect(Collectors.toList());
+            }
+        }
+        final Set<String> tokens = TagIndex.tokenize(searchTerm);
+        if (!consistent && tagIndex.isReady()) {
+            return tagIndex.search(tokens, match, prefix);
+        }
+        /*
+         * Consistent read (or index not built yet): the whole table is scanned. A filter
+         * expression with limit would only cap the items evaluated, not the items matched,
+         * so matching is done here with the same rules the index uses.
+         * */
+        try (Stream<Image> images = findAll()) {
+            return images.filter(image -> TagIndex.matches(image, tokens, match, prefix))
+                    .collect(Collectors.toList());
+        }
+    }
+
+    /*
+     * The index is built once at startup. On multi-node deployments every node only sees
+     * its own writes, image.tag-index.rebuild-cron re-reads the table periodically to pick
+     * up the others (clients needing read-after-write across nodes pass consistent=true).
+     * */
+    @EventListener(ApplicationReadyEvent.class)
+    @Scheduled(cron = "${image.tag-index.rebuild-cron}")
+    public void rebuildTagIndex() {
         try {
-            // Create a DynamoDbTable object
-            DynamoDbTable<Image> imageTable = enhancedClient.table(tableName,TableSchema.fromBean(Image.class));
-            imageTable.scan().items().forEach(imageList::add);
-            return imageList;
+            LOGGER.info("Tag index rebuild started.");
+            // with the outbox, a rebuild must not drop uploads not flushed yet
+            try (Stream<Image> images = findAll()) {
+                tagIndex.rebuild(images::iterator);
+            }
+        } catch (Exception e) {
+            LOGGER.error("Error= {} while rebuilding tag index, searches fall back to the metadata storage.", e.getMessage());
+        }
+    }
+
+    @Override
+    public ImageStream downloadImage(UUID uniqueFileId, HttpRange range) {
+        return download(describe(uniqueFileId, null), range);
+    }
 
-        } catch (DynamoDbException e) {
-            LOGGER.error("Error= {} while searching DynamoDB.", e.getMessage());
-            throw e;
+    @Override
+    public ImageStream downloadVariant(UUID uniqueFileId, int width, HttpRange range) {
+        return download(describe(uniqueFileId, width), range);
+    }
+
+    /*
+     * Resolves a download from the metadata and the configured widths only, so validators,
+     * 304s and HEADs never decode an image. With a width, the planned variant is served
+     * (see DerivativeService.plannedWidth), or the original when no width is wide enough or the
+     * original is not wider than the planned one. The ETag is the content hash (the image id
+     * for images stored before deduplication, with the S3 ETag for direct uploads), suffixed
+     * with the planned width: the bytes
+     * served for it depend on the content and that width only.
+     * */
+    @Override
+    public ImageVersion describe(UUID uniqueFileId, Integer width) {
+        final Image image = findImage(uniqueFileId.toString());
+        final String version = version(image);
+        final Integer planned = width == null ? null : derivativeService.plannedWidth(width);
+        if (planned == null) {
+            return original(image, "\"" + version + "\"");
         }
+        final String entityTag = "\"" + version + "-w" + planned + "\"";
+        if (image.getVariants() == null) {
+            // not generated yet, resolve generates it when the content is actually read
+            return new ImageVersion(DerivativeService.variantKey(image.getImageId(), planned), entityTag,
+                    DerivativeService.variantContentType(image), null, image.getImageId(), planned);
+        }
+        return variant(image, image.getVariants(), planned, entityTag);
     }
 
     @Override
-    public List<Image> findBySearchTerm(String searchTerm) {
-        List<Image> imageList = new ArrayList<>();
+    public ImageVersion resolve(ImageVersion version) {
+        if (!version.isPending()) {
+            return version;
+        }
+        final Image image = findImage(version.getImageId());
+        final List<Integer> variants;
         try {
-            DynamoDbTable<Image> imageTable = enhancedClient.table(tableName,TableSchema.fromBean(Image.class));
-            AttributeValue attr = AttributeValue.builder()
-                    .s(searchTerm)
-                    .build();
-            Map<String, AttributeValue> myMap = new HashMap<>();
-            myMap.put(":tag", attr);
-            Expression expression = Expression.builder()
-                    .expressionValues(myMap)
-                    .expression("contains(Tags, :tag)")
-                    .build();
-            ScanEnhancedRequest enhancedRequest = ScanEnhancedRequest.builder()
-                    .filterExpression(expression)
-                    .limit(15)
-                    .build();
-
-            imageTable.scan(enhancedRequest).items().forEach(imageList::add);
-            return imageList;
-
-        } catch (DynamoDbException e) {
-            LOGGER.error("Error= {} while searching DynamoDB.", e.getMessage());
-            throw e;
+            variants = derivativeService.variants(image);
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to generate variant of +[" + version.getImageId() + "]", e);
+        }
+        return variant(image, variants, version.getPendingWidth(), version.getEntityTag());
+    }
+
+    private static ImageVersion variant(final Image image, final List<Integer> variants, final int width,
+                                        final String entityTag) {
+        if (!variants.contains(width)) {
+            return original(image, entityTag);
+        }
+        return new ImageVersion(DerivativeService.variantKey(image.getImageId(), width), entityTag,
+                DerivativeService.variantContentType(image), null);
+    }
+
+    private static ImageVersion original(final Image image, final String entityTag) {
+        return new ImageVersion(ContentStore.objectKey(image), entityTag,
+                StringUtils.hasText(image.getFileType()) ? image.getFileType() : null, image.getFileSize(),
+                image.getObjectETag());
+    }
+
+    // Direct uploads are not content addressed, the ETag S3 recorded identifies their bytes
+    private static String version(final Image image) {
+        if (image.getContentHash() != null) {
+            return image.getContentHash();
         }
+        if (image.getObjectETag() != null) {
+            return image.getImageId() + "-" + image.getObjectETag().replace("\"", "");
+        }
+        return image.getImageId();
+    }
+
+    @Override
+    public ImageStream download(ImageVersion version, HttpRange range) {
+        final ImageVersion resolved = resolve(version);
+        return downloadObject(resolved.getKey(), range, resolved.getObjectETag());
     }
 
+    // From the metadata when it is recorded, otherwise a HEAD request, the content is never read
     @Override
-    public byte[] downloadImage(UUID uniqueFileId) {
+    public Long contentLength(ImageVersion version) {
+        if (version.isPending()) {
+            return null;
+        }
+        return version.getContentLength() != null ? version.getContentLength() : objectStorage.size(version.getKey());
+    }
+
+    @Override
+    public Image findImage(UUID imageId) {
+        return findImage(imageId.toString());
+    }
+
+    // One cache probe, the metadata storage is only read on a miss
+    private Image findImage(final String uniqueFileId) {
+        final Image image = metadataCache.get(uniqueFileId, this::loadImage);
+        if (image == null) {
+            throw new ResponseStatusException(HttpStatus.NOT_FOUND, "Image not found [" + uniqueFileId + "]");
+        }
+        return image;
+    }
+
+    // Records still in the outbox are not in the metadata storage yet
+    private Image loadImage(final String uniqueFileId) {
+        final Image pending = outbox.pending(uniqueFileId);
+        return pending != null ? pending : metadataStorage.get(uniqueFileId);
+    }
+
+    /*
+     * Remote objects are served from ImageCache when possible and cached while a whole
+     * object streams to the client, local objects are already served from disk.
+     * */
+    private ImageStream downloadObject(final String key, final HttpRange range, final String expectedETag) {
+        if (!objectStorage.isRemote()) {
+            return served(objectStorage.get(key, range, expectedETag));
+        }
+        final ImageStream cached = imageCache.get(key, range);
+        if (cached != null) {
+            return served(cached);
+        }
+        // the cache only ever holds bytes read with the expected ETag
+        final ImageStream object = served(objectStorage.get(key, range, expectedETag));
+        // Only whole objects are cached, range reads go straight through
+        if (range != null) {
+            return object;
+        }
+        return new ImageStream(imageCache.tee(key, object.getContent(), object.getContentLength()),
+                object.getContentLength(), object.getContentType(), object.getContentRange());
+    }
+
+    // Bytes about to be sent, a range counts for its own length only
+    private ImageStream served(final ImageStream image) {
+        metrics.downloaded(image.getContentLength());
+        return image;
+    }
+
+    /*
+     * Writes the images as a ZIP archive in the given order. Up to image.export.read-ahead
+     * objects are requested ahead of the one being written; a request only opens the
+     * response stream, so the bodies wait on their connections and memory stays constant.
+     * The first entry reaches the client as soon as its own object arrives.
+     * Images that cannot be read are left out and listed, with the error, in a last
+     * entry named export-errors.txt, so a partial archive is recognizable as such.
+     * */
+    @Override
+    public void exportImages(final List<UUID> imageIds, final OutputStream outputStream) throws IOException {
+        LOGGER.info("Export of {} images in progress.", imageIds.size());
+        final List<Future<ImageStream>> readAhead = new ArrayList<>(imageIds.size());
+        final List<ExportSlot> slots = new ArrayList<>(imageIds.size());
+        final List<String> failures = new ArrayList<>();
+        // objects before this index belong to the writing loop
+        int consumed = 0;
+        final ZipOutputStream zipOutputStream = new ZipOutputStream(outputStream);
+        // Images are compressed formats already, deflating them again only costs CPU
+        zipOutputStream.setLevel(Deflater.NO_COMPRESSION);
         try {
-            GetObjectRequest getObjectRequest = GetObjectRequest.builder()
-                    .bucket(bucketName)
-                    .key(uniqueFileId.toString())
-                    .build();
-            ResponseBytes<GetObjectResponse> result = s3Client.getObject(getObjectRequest, ResponseTransformer.toBytes());
-            // to get the bytes
-            return result.asByteArray();
+            for (int i = 0; i < imageIds.size(); i++) {
+                while (readAhead.size() < Math.min(imageIds.size(), i + 1 + exportReadAhead)) {
+                    final UUID imageId = imageIds.get(readAhead.size());
+                    final ExportSlot slot = new ExportSlot();
+                    slots.add(slot);
+                    readAhead.add(exportReadAheadExecutor.submit(() -> slot.offer(downloadImage(imageId, null))));
+                }
+                final ImageStream image;
+                try {
+                    image = readAhead.get(i).get();
+                } catch (ExecutionException ex) {
+                    LOGGER.error("Error= {} while exporting image {}, it is skipped.", ex.getCause().getMessage(), imageIds.get(i));
+                    failures.add(imageIds.get(i) + ": " + ex.getCause().getMessage());
+                    continue;
+                } finally {
+                    consumed = i + 1;
+                }
+                try (ImageStream content = image) {
+                    zipOutputStream.putNextEntry(new ZipEntry(exportEntryName(imageIds.get(i))));
+                    content.writeTo(zipOutputStream);
+                    zipOutputStream.closeEntry();
+                }
+            }
+            if (!failures.isEmpty()) {
+                LOGGER.error("Export is completed with {} of {} images missing.", failures.size(), imageIds.size());
+                zipOutputStream.putNextEntry(new ZipEntry(EXPORT_ERRORS_ENTRY));
+                zipOutputStream.write((failures.size() + " of " + imageIds.size() + " images could not be exported\n"
+                        + String.join("\n", failures) + "\n").getBytes(StandardCharsets.UTF_8));
+                zipOutputStream.closeEntry();
+            }
+            zipOutputStream.finish();
+            LOGGER.info("Export is completed.");
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Export interrupted", ex);
+        } finally {
+            // Release the connections of objects fetched ahead but never written, including
+            // those of tasks still running: they close their own object when they finish
+            for (int i = consumed; i < readAhead.size(); i++) {
+                readAhead.get(i).cancel(true);
+                closeQuietly(slots.get(i).abandon());
+            }
+        }
+    }
 
-        } catch (Exception e) {
-            throw new IllegalStateException("Failed to download file from s3 +[" + uniqueFileId + "]", e);
+    /*
+     * Hands a read-ahead object either to the writing loop or, once the export is
+     * abandoned, back to the task that opened it so it gets closed.
+     * */
+    private static final class ExportSlot {
+
+        private ImageStream image;
+        private boolean abandoned;
+
+        ImageStream offer(final ImageStream opened) {
+            synchronized (this) {
+                if (!abandoned) {
+                    image = opened;
+                    return opened;
+                }
+            }
+            closeQuietly(opened);
+            return null;
+        }
+
+        synchronized ImageStream abandon() {
+            abandoned = true;
+            final ImageStream opened = image;
+            image = null;
+            return opened;
+        }
+    }
+
+    private String exportEntryName(final UUID imageId) {
+        final Image image = tagIndex.get(imageId.toString());
+        if (image == null || !StringUtils.hasText(image.getFileName())) {
+            return imageId.toString();
+        }
+        // Client supplied names must not create directories when the archive is extracted
+        final String fileName = image.getFileName();
+        return imageId + "_" + fileName.substring(Math.max(fileName.lastIndexOf('/'), fileName.lastIndexOf('\\')) + 1);
+    }
+
+    private static void closeQuietly(final ImageStream image) {
+        if (image == null) {
+            return;
+        }
+        try {
+            image.close();
+        } catch (IOException ex) {
+            LOGGER.error("Error= {} while closing an exported image.", ex.getMessage());
         }
     }
 
@@ -116,98 +431,232 @@ public class AWSServiceImpl implements AWSService {
             LOGGER.info("File upload in progress.");
             // Primary key for S3 & DynamoDB records
             final String uniqueFileId = UUID.randomUUID().toString();
-            // DynamoDB operation
-            addFileToDynamoDBTable(uniqueFileId, multipartFile, description, tags);
-            // S3 operation
-            uploadFileToS3Bucket(uniqueFileId, multipartFile);
+            // Content key, hashed from the container's local copy of the part before anything is sent
+            final String contentHash = hash(multipartFile);
+            // Object operation first, a record never points to content that is not stored
+            try {
+                storeContent(contentHash, multipartFile);
+            } catch (Exception ex) {
+                LOGGER.error("Error= {} while uploading file.", ex.getMessage());
+                throw ex;
+            }
+            // Metadata operation, journaled locally and written to the metadata storage in the background
+            final Image image = buildImage(uniqueFileId, contentHash, multipartFile, description, tags);
+            try {
+                outbox.append(Collections.singletonList(image));
+            } catch (RuntimeException ex) {
+                LOGGER.error("Error= {} while adding image record.", ex.getMessage());
+                releaseQuietly(contentHash);
+                throw ex;
+            }
+            metadataCache.put(image);
+            tagIndex.add(image);
+            derivativeService.generateAsync(image);
+            metrics.uploaded(multipartFile.getSize());
             LOGGER.info("File upload is completed successfully.");
         }
     }
 
+    /*
+     * Objects are uploaded first, concurrently on the batch pool, then the metadata of
+     * the ones that made it goes to the outbox in one journal write, see MetadataOutbox.
+     * When the journal cannot be written the content references are released again.
+     * */
+    @Override
+    public List<UploadResult> uploadImages(final List<MultipartFile> multipartFiles, final List<String> descriptions,
+                                           final List<String> tags) {
+        LOGGER.info("Batch upload of {} files in progress.", multipartFiles.size());
+        final List<UploadResult> results = new ArrayList<>(multipartFiles.size());
+        final List<Image> images = new ArrayList<>(multipartFiles.size());
+        final List<Future<?>> uploads = new ArrayList<>(multipartFiles.size());
+        for (int i = 0; i < multipartFiles.size(); i++) {
+            final MultipartFile multipartFile = multipartFiles.get(i);
+            final UploadResult result = new UploadResult(multipartFile.getOriginalFilename());
+            results.add(result);
+            try {
+                FileUtils.isFileNotEmpty(multipartFile);
+            } catch (IllegalStateException ex) {
+                result.failed(ex.getMessage());
+                images.add(null);
+                uploads.add(null);
+                continue;
+            }
+            final Image image = buildImage(UUID.randomUUID().toString(), null, multipartFile,
+                    valueAt(descriptions, i), valueAt(tags, i));
+            images.add(image);
+            uploads.add(batchUploadExecutor.submit(() -> {
+                final String contentHash = hash(multipartFile);
+                storeContent(contentHash, multipartFile);
+                image.setContentHash(contentHash);
+                image.setObjectKey(ContentStore.objectKeyOf(contentHash));
+                return null;
+            }));
+        }
+
+        final Map<String, UploadResult> uploaded = new LinkedHashMap<>();
+        final Map<String, Long> sizes = new HashMap<>();
+        final List<Image> toWrite = new ArrayList<>();
+        for (int i = 0; i < uploads.size(); i++) {
+            if (uploads.get(i) == null) {
+                continue;
+            }
+            try {
+                uploads.get(i).get();
+                uploaded.put(images.get(i).getImageId(), results.get(i));
+                sizes.put(images.get(i).getImageId(), multipartFiles.get(i).getSize());
+                toWrite.add(images.get(i));
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                results.get(i).failed("Interrupted");
+            } catch (ExecutionException ex) {
+                LOGGER.error("Error= {} while uploading file.", ex.getCause().getMessage());
+                results.get(i).failed(ex.getCause().getMessage());
+            }
+        }
+
+        try {
+            outbox.append(toWrite);
+        } catch (RuntimeException ex) {
+            LOGGER.error("Error= {} while adding image records.", ex.getMessage());
+            for (Image image : toWrite) {
+                uploaded.remove(image.getImageId()).failed("Metadata could not be written");
+                releaseQuietly(image.getContentHash());
+            }
+        }
+        for (Image image : toWrite) {
+            final UploadResult result = uploaded.get(image.getImageId());
+            if (result != null) {
+                result.created(image.getImageId());
+                metadataCache.put(image);
+                tagIndex.add(image);
+                derivativeService.generateAsync(image);
+                metrics.uploaded(sizes.get(image.getImageId()));
+            }
+        }
+        LOGGER.info("Batch upload is completed, {} of {} files uploaded.", uploaded.size(), multipartFiles.size());
+        return results;
+    }
 
-    private void addFileToDynamoDBTable(String uniqueId, MultipartFile multipartFile, String description, String tags) {
+    /*
+     * The object was uploaded by the client itself (see DirectTransferService), only the
+     * record is written. It is stored under the image id, without deduplication.
+     * */
+    @Override
+    public void recordUpload(final Image image, final long size) {
         try {
-            LOGGER.info("Adding DynamoDB record with name= " + uniqueId);
-            DynamoDbTable<Image> imageTable = enhancedClient.table(tableName,
-                    TableSchema.fromBean(Image.class));
-            Image image = new Image();
-            image.setImageId(uniqueId);
-            image.setFileName(multipartFile.getOriginalFilename());
-            image.setFileDesc(description);
-            image.setFileType(multipartFile.getContentType());
-            image.setFileSize(String.valueOf(multipartFile.getSize()));
-            image.setTags(tags);
-            // Put the customer data into a DynamoDB table
-            imageTable.putItem(image);
-            LOGGER.info("File upload DynamoDB is completed.");
-
-            /*
-            LOGGER.info("Adding DynamoDB record with name= " + uniqueId);
-            HashMap<String, AttributeValue> itemValues = new HashMap<String, AttributeValue>();
-            itemValues.put("ImageId", AttributeValue.builder().s(uniqueId).build());
-            itemValues.put("FileName", AttributeValue.builder().s(multipartFile.getOriginalFilename()).build());
-            itemValues.put("FileType", AttributeValue.builder().s(multipartFile.getContentType()).build());
-            itemValues.put("FileSize", AttributeValue.builder().s(String.valueOf(multipartFile.getSize())).build());
-            itemValues.put("FileDesc", AttributeValue.builder().s(description).build());
-            itemValues.put("Tags", AttributeValue.builder().s(tags).build());
-            PutItemRequest request = PutItemRequest.builder()
-                    .tableName(tableName)
-                    .item(itemValues)
-                    .build();
-            PutItemResponse response = dynamoDbClient.putItem(request);
-            */
-        } catch (DynamoDbException ex) {
-            LOGGER.error("Error= {} while adding new file to DynamoDB.", ex.getMessage());
+            outbox.append(Collections.singletonList(image));
+        } catch (RuntimeException ex) {
+            LOGGER.error("Error= {} while adding image record.", ex.getMessage());
             throw ex;
         }
+        metadataCache.put(image);
+        tagIndex.add(image);
+        derivativeService.generateAsync(image);
+        metrics.uploaded(size);
+        LOGGER.info("Direct upload of image {} is recorded.", image.getImageId());
     }
 
-    private void uploadFileToS3Bucket(final String uniqueFileId, final MultipartFile multipartFile) throws Exception {
+    // One value applies to every file, otherwise values are matched to files by position
+    private static String valueAt(final List<String> values, final int index) {
+        if (values == null || values.isEmpty()) {
+            return null;
+        }
+        return values.size() == 1 ? values.get(0) : index < values.size() ? values.get(index) : null;
+    }
 
-        LOGGER.info("Uploading file with name= " + uniqueFileId);
-        final File file = FileUtils.convertMultiPartFileToFile(multipartFile);
+    @Override
+    public void deleteImage(final UUID imageId) {
+        final String uniqueFileId = imageId.toString();
         try {
-            PutObjectRequest objectRequest = PutObjectRequest.builder()
-                    .bucket(bucketName)
-                    .key(uniqueFileId)
-                    .build();
-            s3Client.putObject(objectRequest, RequestBody.fromFile(file));
-            LOGGER.info("File upload S3 is completed.");
-
+            LOGGER.info("Deleting image with name= " + uniqueFileId);
+            // Metadata goes first, an object without a record is invisible to clients
+            final Image pending = outbox.remove(uniqueFileId);
+            final Image stored = metadataStorage.delete(uniqueFileId);
+            final Image image = stored != null ? stored : pending;
+            metadataCache.evict(uniqueFileId);
+            tagIndex.remove(uniqueFileId);
+            final List<String> keys = new ArrayList<>();
+            if (image != null && image.getContentHash() != null) {
+                // shared content, only removed with its last reference
+                contentStore.release(image.getContentHash());
+            } else {
+                keys.add(uniqueFileId);
+            }
+            if (image != null && image.getVariants() != null) {
+                image.getVariants().forEach(width -> keys.add(DerivativeService.variantKey(uniqueFileId, width)));
+            }
+            for (String key : keys) {
+                imageCache.evict(key);
+                objectStorage.delete(key);
+            }
+            LOGGER.info("Image delete is completed.");
         } catch (Exception ex) {
-            LOGGER.error("Error= {} while uploading file to S3.", ex.getMessage());
-            // Rollback operation for logical data consistency
-            rollBackFromDynamoDBTable(uniqueFileId);
+            LOGGER.error("Error= {} while deleting image.", ex.getMessage());
             throw ex;
-        } finally {
-            FileUtils.deleteIfExist(file);
         }
     }
 
 
+    static Image buildImage(String uniqueId, String contentHash, MultipartFile multipartFile, String description,
+                            String tags) {
+        Image image = new Image();
+        image.setImageId(uniqueId);
+        if (contentHash != null) {
+            image.setContentHash(contentHash);
+            image.setObjectKey(ContentStore.objectKeyOf(contentHash));
+        }
+        image.setFileName(multipartFile.getOriginalFilename());
+        image.setFileDesc(description);
+        image.setFileType(multipartFile.getContentType());
+        image.setFileSize(multipartFile.getSize());
+        image.setTags(TagIndex.canonicalTags(tags));
+        image.setCreatedAt(System.currentTimeMillis());
+        return image;
+    }
+
     /*
-     * TR : S3 operasyonu başarısız olursa mantıksal veri bütünlüğünü korumak
-     *      adına ilgili DynamoDB kaydı silinmeli/geri alınmalı.
-     * -------------------------------------------------------------------------------
-     * EN : If S3 operation fails ensures the remaining DynamoDB record is rolled back
-     *      for logical data consistency.
+     * References the content and uploads it unless identical bytes are stored already.
+     * The reference is dropped again when the upload fails.
      * */
-    private void rollBackFromDynamoDBTable(String uniqueFileId) {
+    private void storeContent(final String contentHash, final MultipartFile multipartFile) throws Exception {
+        if (!contentStore.acquire(contentHash)) {
+            LOGGER.info("Duplicate content, object upload is skipped.");
+            return;
+        }
         try {
+            putObject(ContentStore.objectKeyOf(contentHash), multipartFile);
+        } catch (Exception ex) {
+            releaseQuietly(contentHash);
+            throw ex;
+        }
+    }
 
-            LOGGER.info("Rollback started for DynamoDB record.");
-            HashMap<String, AttributeValue> keyToGet = new HashMap<String, AttributeValue>();
-            keyToGet.put("id", AttributeValue.builder()
-                    .s(uniqueFileId)
-                    .build());
-            DeleteItemRequest deleteReq = DeleteItemRequest.builder()
-                    .tableName(tableName)
-                    .key(keyToGet)
-                    .build();
-            dynamoDbClient.deleteItem(deleteReq);
+    private static String hash(final MultipartFile multipartFile) throws IOException {
+        try (final InputStream inputStream = multipartFile.getInputStream()) {
+            return FileUtils.sha256Hex(inputStream);
+        }
+    }
+
+    private void putObject(final String key, final MultipartFile multipartFile) throws Exception {
+
+        LOGGER.info("Uploading file with name= " + key);
+        // Streamed straight from the multipart request, no heap copy and no temp file
+        try (final InputStream inputStream = multipartFile.getInputStream()) {
+            objectStorage.put(key, inputStream, multipartFile.getSize(), null);
+            LOGGER.info("File upload is completed.");
+        }
+    }
+
+    private void releaseQuietly(final String contentHash) {
+        try {
+            LOGGER.info("Rollback started for content reference.");
+            metrics.rollback("content");
+            contentStore.release(contentHash);
             LOGGER.info("Rollback is succeeded.");
         } catch (Exception ex) {
+            metrics.rollbackFailed("content");
             LOGGER.error("Rollback operation failed. Error = {}", ex.getMessage());
         }
     }
+
 }
@@ -0,0 +1,91 @@
+package com.mrg.aws.service;
+
+import com.mrg.aws.cache.ImageCache;
+import com.mrg.aws.metrics.StorageMetrics;
+import com.mrg.aws.storage.DynamoDbMetadataStorage;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+import software.amazon.awssdk.services.dynamodb.DynamoDbAsyncClient;
+import software.amazon.awssdk.services.dynamodb.model.ConditionalCheckFailedException;
+import software.amazon.awssdk.services.dynamodb.model.UpdateItemResponse;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
+import software.amazon.awssdk.services.s3.model.DeleteObjectRequest;
+import software.amazon.awssdk.services.s3.model.HeadObjectRequest;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/*
+ * ContentStore on the non-blocking clients, for AWSAsyncService. Same records and
+ * rules as the DynamoDB metadata storage, see ContentStore.
+ * */
+@Component
+@ConditionalOnProperty(name = "storage.type", havingValue = "aws", matchIfMissing = true)
+public class AsyncContentStore {
+
+    @Value("${aws.s3.bucket}")
+    private String bucketName;
+    @Value("${aws.dynamodb.content-table}")
+    private String contentTableName;
+
+    private S3AsyncClient s3AsyncClient;
+    private DynamoDbAsyncClient dynamoDbAsyncClient;
+    private ImageCache imageCache;
+    private StorageMetrics metrics;
+
+    @Autowired
+    public AsyncContentStore(S3AsyncClient s3AsyncClient, DynamoDbAsyncClient dynamoDbAsyncClient,
+                             ImageCache imageCache, StorageMetrics metrics) {
+        this.s3AsyncClient = s3AsyncClient;
+        this.dynamoDbAsyncClient = dynamoDbAsyncClient;
+        this.imageCache = imageCache;
+        this.metrics = metrics;
+    }
+
+    public CompletableFuture<Boolean> acquire(final String contentHash) {
+        return updateReferences(contentHash, 1)
+                .thenCompose(response -> DynamoDbMetadataStorage.referenceCount(response) > 1
+                        ? metrics.recordAsync("s3", "head_object", () -> s3AsyncClient.headObject(HeadObjectRequest.builder()
+                            .bucket(bucketName)
+                            .key(ContentStore.objectKeyOf(contentHash))
+                            .build()))
+                            .handle((head, failure) -> failure != null)
+                        : CompletableFuture.completedFuture(true));
+    }
+
+    public CompletableFuture<Void> release(final String contentHash) {
+        return updateReferences(contentHash, -1)
+                .thenCompose(response -> {
+                    if (DynamoDbMetadataStorage.referenceCount(response) > 0) {
+                        return CompletableFuture.<Void>completedFuture(null);
+                    }
+                    return metrics.recordAsync("dynamodb", "remove_references",
+                            () -> dynamoDbAsyncClient.deleteItem(DynamoDbMetadataStorage.releaseRequest(contentTableName, contentHash)))
+                            .thenCompose(deleted -> {
+                                imageCache.evict(ContentStore.objectKeyOf(contentHash));
+                                return metrics.recordAsync("s3", "delete_object",
+                                        () -> s3AsyncClient.deleteObject(DeleteObjectRequest.builder()
+                                                .bucket(bucketName)
+                                                .key(ContentStore.objectKeyOf(contentHash))
+                                                .build()));
+                            })
+                            .<Void>handle((deleted, failure) -> {
+                                if (failure != null && !(unwrap(failure) instanceof ConditionalCheckFailedException)) {
+                                    throw new CompletionException(unwrap(failure));
+                                }
+                                return null;
+                            });
+                });
+    }
+
+    private CompletableFuture<UpdateItemResponse> updateReferences(final String contentHash, final long delta) {
+        return metrics.recordAsync("dynamodb", "add_references", () -> dynamoDbAsyncClient.updateItem(
+                DynamoDbMetadataStorage.referenceCountRequest(contentTableName, contentHash, delta)));
+    }
+
+    private static Throwable unwrap(final Throwable failure) {
+        return failure instanceof CompletionException && failure.getCause() != null ? failure.getCause() : failure;
+    }
+}
@@ -0,0 +1,100 @@
+package com.mrg.aws.service;
+
+import com.mrg.aws.cache.ImageCache;
+import com.mrg.aws.model.Image;
+import com.mrg.aws.storage.MetadataStorage;
+import com.mrg.aws.storage.ObjectStorage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+/*
+ * Content addressable storage of image bytes. Objects are keyed by the SHA-256 of their
+ * content and every image referencing one is counted in the metadata storage, so a
+ * duplicate upload skips the object put and a delete only removes the object with its
+ * last reference.
+ * A delete racing with a new upload of the same bytes can still remove the object
+ * between the upload's reference and its existence check being answered; the window
+ * is a single round trip.
+ * */
+@Component
+public class ContentStore {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ContentStore.class);
+
+    private static final String KEY_PREFIX = "sha256-";
+
+    private ObjectStorage objectStorage;
+    private MetadataStorage metadataStorage;
+    private ImageCache imageCache;
+
+    @Autowired
+    public ContentStore(ObjectStorage objectStorage, MetadataStorage metadataStorage, ImageCache imageCache) {
+        this.objectStorage = objectStorage;
+        this.metadataStorage = metadataStorage;
+        this.imageCache = imageCache;
+    }
+
+    public static String objectKeyOf(final String contentHash) {
+        return KEY_PREFIX + contentHash;
+    }
+
+    // Images uploaded before deduplication keep their bytes under their own id
+    public static String objectKey(final Image image) {
+        return image.getObjectKey() != null ? image.getObjectKey() : image.getImageId();
+    }
+
+    /*
+     * Adds a reference to the content. Returns true when the bytes still have to be
+     * uploaded, false when an identical object is already stored.
+     * */
+    public boolean acquire(final String contentHash) {
+        final long references = metadataStorage.addReferences(contentHash, 1);
+        // otherwise the first upload failed or was released meanwhile
+        if (references > 1 && objectStorage.exists(objectKeyOf(contentHash))) {
+            LOGGER.info("Content {} is already stored, {} references.", contentHash, references);
+            return false;
+        }
+        return true;
+    }
+
+    /*
+     * Drops a reference, the object is deleted when it was the last one. The count
+     * record is deleted first and only if nobody referenced the content meanwhile.
+     * */
+    public void release(final String contentHash) {
+        final long references = metadataStorage.addReferences(contentHash, -1);
+        if (references > 0) {
+            return;
+        }
+        if (!metadataStorage.removeReferences(contentHash)) {
+            LOGGER.info("Content {} was referenced again, it is kept.", contentHash);
+            return;
+        }
+        imageCache.evict(objectKeyOf(contentHash));
+        objectStorage.delete(objectKeyOf(contentHash));
+        LOGGER.info("Content {} has no references left, object is deleted.", contentHash);
+    }
+
+    /*
+     * For objects no image record points to (see ReconciliationSweeper). Removes the
+     * count record when the content has no references and returns true, the caller then
+     * deletes the object. An upload referencing the content from now on stores it again.
+     * */
+    public boolean claimUnreferenced(final String contentHash) {
+        if (metadataStorage.addReferences(contentHash, 0) > 0) {
+            return false;
+        }
+        if (!metadataStorage.removeReferences(contentHash)) {
+            return false;
+        }
+        imageCache.evict(objectKeyOf(contentHash));
+        return true;
+    }
+
+    // The content hash of a deduplicated object key, null for any other key
+    public static String contentHashOf(final String objectKey) {
+        return objectKey.startsWith(KEY_PREFIX) ? objectKey.substring(KEY_PREFIX.length()) : null;
+    }
+}
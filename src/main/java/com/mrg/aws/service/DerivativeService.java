@@ -0,0 +1,285 @@
+package com.mrg.aws.service;
+
+import com.mrg.aws.cache.MetadataCache;
+import com.mrg.aws.index.TagIndex;
+import com.mrg.aws.model.Image;
+import com.mrg.aws.model.ImageStream;
+import com.mrg.aws.storage.MetadataStorage;
+import com.mrg.aws.storage.ObjectStorage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+
+/*
+ * Resized variants (thumbnails) of uploaded images. Variants are generated in the
+ * background after an upload, on a bounded pool since decoding a large image takes
+ * a lot of heap, and stored in the object storage under "<imageId>_w<width>". Images uploaded before
+ * variants existed get theirs generated on first use, on the requesting thread.
+ * At most one generation per image runs at a time, concurrent requests wait for it.
+ * An image deleted while its variants were generated is not recorded again, the
+ * variants just stored are deleted instead.
+ * The original is decoded from the object stream (ImageIO caches it on disk, not in the
+ * heap). Images above image.derivatives.max-source-bytes, or whose header declares more than
+ * max-source-pixels, are not decoded at all: they are recorded without variants and always
+ * served as originals, so neither uploads nor first reads can exhaust the heap with them.
+ * */
+@Component
+public class DerivativeService {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(DerivativeService.class);
+
+    @Value("${image.derivatives.widths}")
+    private int[] widths;
+    @Value("${image.derivatives.max-source-bytes}")
+    private long maxSourceBytes;
+    @Value("${image.derivatives.max-source-pixels}")
+    private long maxSourcePixels;
+
+    private ObjectStorage objectStorage;
+    private MetadataStorage metadataStorage;
+    private TagIndex tagIndex;
+    private MetadataCache metadataCache;
+    private MetadataOutbox outbox;
+    private ExecutorService derivativeExecutor;
+
+    // generations running, by image id
+    private final ConcurrentHashMap<String, CompletableFuture<List<Integer>>> inFlight = new ConcurrentHashMap<>();
+
+    @Autowired
+    public DerivativeService(ObjectStorage objectStorage, MetadataStorage metadataStorage, TagIndex tagIndex,
+                             MetadataCache metadataCache, MetadataOutbox outbox,
+                             @Qualifier("derivativeExecutor") ExecutorService derivativeExecutor) {
+        this.objectStorage = objectStorage;
+        this.metadataStorage = metadataStorage;
+        this.tagIndex = tagIndex;
+        this.metadataCache = metadataCache;
+        this.outbox = outbox;
+        this.derivativeExecutor = derivativeExecutor;
+    }
+
+    public static String variantKey(final String imageId, final int width) {
+        return imageId + "_w" + width;
+    }
+
+    // PNG stays PNG (transparency), everything else is encoded as JPEG
+    public static String variantContentType(final Image image) {
+        return "image/png".equalsIgnoreCase(image.getFileType()) ? "image/png" : "image/jpeg";
+    }
+
+    public void generateAsync(final Image image) {
+        if (widths.length == 0) {
+            // variants are disabled, originals are always served
+            return;
+        }
+        generate(image, false);
+    }
+
+    /*
+     * Returns the variant width a requested width is served with: the smallest configured
+     * width at least as wide, null when the original itself is served. Decided from the
+     * configuration alone, the ETag and a 304 need no decoding. The variant exists once
+     * generated unless the original is not wider, the original is served for it then.
+     * */
+    public Integer plannedWidth(final int requestedWidth) {
+        return Arrays.stream(widths)
+                .filter(width -> width >= requestedWidth)
+                .boxed()
+                .min(Integer::compare)
+                .orElse(null);
+    }
+
+    /*
+     * The widths of the image's stored variants. Not processed yet: every width is generated
+     * now, once. The original is decoded either way and resizing it down is cheap next to
+     * that, so one decode serves the request and the widths later requests ask for.
+     * */
+    public List<Integer> variants(final Image image) throws IOException {
+        if (image.getVariants() != null) {
+            return image.getVariants();
+        }
+        try {
+            return generate(image, true).get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while generating variants of [" + image.getImageId() + "]", ex);
+        } catch (ExecutionException ex) {
+            throw ex.getCause() instanceof IOException ? (IOException) ex.getCause()
+                    : new IOException("Failed to generate variants of [" + image.getImageId() + "]", ex.getCause());
+        }
+    }
+
+    /*
+     * Starts a generation of the image's variants unless one is running already, in which
+     * case that one is returned. Runs it on the calling thread or on the derivative pool.
+     * */
+    private CompletableFuture<List<Integer>> generate(final Image image, final boolean onThisThread) {
+        final CompletableFuture<List<Integer>> generation = new CompletableFuture<>();
+        final CompletableFuture<List<Integer>> running = inFlight.putIfAbsent(image.getImageId(), generation);
+        if (running != null) {
+            return running;
+        }
+        final Runnable task = () -> {
+            try {
+                generation.complete(generateAll(image));
+            } catch (Exception | OutOfMemoryError ex) {
+                // the decoded image is unreachable now, the heap it took is free again
+                LOGGER.error("Error= {} while generating variants of image {}", ex.getMessage(), image.getImageId());
+                generation.completeExceptionally(ex);
+            } finally {
+                inFlight.remove(image.getImageId(), generation);
+                // any other Error, requests waiting for the generation must not wait forever
+                if (!generation.isDone()) {
+                    generation.completeExceptionally(
+                            new IllegalStateException("Failed to generate variants of +[" + image.getImageId() + "]"));
+                }
+            }
+        };
+        if (onThisThread) {
+            task.run();
+        } else {
+            try {
+                derivativeExecutor.execute(task);
+            } catch (RejectedExecutionException ex) {
+                inFlight.remove(image.getImageId(), generation);
+                generation.completeExceptionally(ex);
+            }
+        }
+        return generation;
+    }
+
+    private List<Integer> generateAll(final Image image) throws IOException {
+        if (maxSourceBytes > 0 && image.getFileSize() != null && image.getFileSize() > maxSourceBytes) {
+            LOGGER.info("Image {} has {} bytes, above the variant source limit, no variants are generated.",
+                    image.getImageId(), image.getFileSize());
+            recordVariants(image, Collections.emptyList());
+            return Collections.emptyList();
+        }
+        final BufferedImage original = readOriginal(image);
+        if (original == null) {
+            LOGGER.info("Image {} cannot be decoded or is too large, no variants are generated.", image.getImageId());
+            recordVariants(image, Collections.emptyList());
+            return Collections.emptyList();
+        }
+        final List<Integer> variants = new ArrayList<>();
+        for (int width : widths) {
+            // Variants are only ever smaller than the original
+            if (width < original.getWidth()) {
+                storeVariant(image, original, width);
+                variants.add(width);
+            }
+        }
+        if (!recordVariants(image, variants)) {
+            return Collections.emptyList();
+        }
+        LOGGER.info("Generated variants {} of image {}", variants, image.getImageId());
+        return variants;
+    }
+
+    // Null when the object is no decodable image or declares more pixels than allowed
+    private BufferedImage readOriginal(final Image image) throws IOException {
+        try (ImageStream content = objectStorage.get(ContentStore.objectKey(image), null, image.getObjectETag());
+             ImageInputStream input = ImageIO.createImageInputStream(content.getContent())) {
+            final Iterator<ImageReader> readers = input == null ? null : ImageIO.getImageReaders(input);
+            if (readers == null || !readers.hasNext()) {
+                return null;
+            }
+            final ImageReader reader = readers.next();
+            try {
+                reader.setInput(input, true, true);
+                // from the header, before a single pixel is decoded
+                final long pixels = (long) reader.getWidth(0) * reader.getHeight(0);
+                if (maxSourcePixels > 0 && pixels > maxSourcePixels) {
+                    LOGGER.info("Image {} has {} pixels, above the variant source limit.", image.getImageId(), pixels);
+                    return null;
+                }
+                return reader.read(0);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    private void storeVariant(final Image image, final BufferedImage original, final int width) throws IOException {
+        final String format = "image/png".equalsIgnoreCase(image.getFileType()) ? "png" : "jpg";
+        final ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+        ImageIO.write(resize(original, width, format.equals("png")), format, encoded);
+        try {
+            objectStorage.put(variantKey(image.getImageId(), width), new ByteArrayInputStream(encoded.toByteArray()),
+                    encoded.size(), variantContentType(image));
+        } catch (IOException ex) {
+            throw ex;
+        } catch (Exception ex) {
+            throw new IOException("Failed to store variant of [" + image.getImageId() + "]", ex);
+        }
+    }
+
+    private static BufferedImage resize(final BufferedImage original, final int width, final boolean keepAlpha) {
+        final int height = Math.max(1, (int) Math.round((double) original.getHeight() * width / original.getWidth()));
+        final BufferedImage resized = new BufferedImage(width, height,
+                keepAlpha ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+        final Graphics2D graphics = resized.createGraphics();
+        try {
+            graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            graphics.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+            graphics.drawImage(original, 0, 0, width, height, null);
+        } finally {
+            graphics.dispose();
+        }
+        return resized;
+    }
+
+    /*
+     * Only the Variants attribute is written, the rest of the record is left as it is.
+     * A record still in the outbox is replaced there by a version with the variants, which the
+     * outbox writes. One no longer pending was written before it left the outbox, the conditional
+     * update finds it then. Returns false when the image no longer exists; its variants are deleted then.
+     * */
+    private boolean recordVariants(final Image image, final List<Integer> variants) {
+        final Image update = new Image();
+        update.setImageId(image.getImageId());
+        update.setVariants(variants);
+        final boolean recorded = outbox.updateVariants(image.getImageId(), variants) || metadataStorage.update(update);
+        if (!recorded) {
+            LOGGER.info("Image {} was deleted while its variants were generated, they are deleted.", image.getImageId());
+            for (Integer width : variants) {
+                try {
+                    objectStorage.delete(variantKey(image.getImageId(), width));
+                } catch (Exception ex) {
+                    LOGGER.error("Error= {} while deleting variant {} of deleted image {}", ex.getMessage(), width, image.getImageId());
+                }
+            }
+            return false;
+        }
+        // image may be the cached instance read by other requests, it is replaced rather than changed
+        final Image updated = new Image(image);
+        updated.setVariants(variants);
+        metadataCache.put(updated);
+        if (tagIndex.get(image.getImageId()) != null) {
+            tagIndex.add(updated);
+        }
+        return true;
+    }
+}
@@ -0,0 +1,242 @@
+package com.mrg.aws.service;
+
+import com.mrg.aws.index.TagIndex;
+import com.mrg.aws.metrics.StorageMetrics;
+import com.mrg.aws.model.DirectUpload;
+import com.mrg.aws.model.Image;
+import com.mrg.aws.model.ImageVersion;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Service;
+import org.springframework.util.StringUtils;
+import org.springframework.web.server.ResponseStatusException;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.DeleteObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.HeadObjectRequest;
+import software.amazon.awssdk.services.s3.model.HeadObjectResponse;
+import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+import software.amazon.awssdk.services.s3.model.S3Exception;
+import software.amazon.awssdk.services.s3.presigner.S3Presigner;
+import software.amazon.awssdk.services.s3.presigner.model.GetObjectPresignRequest;
+import software.amazon.awssdk.services.s3.presigner.model.PresignedPutObjectRequest;
+import software.amazon.awssdk.services.s3.presigner.model.PutObjectPresignRequest;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/*
+ * Transfers that bypass this service: clients get presigned S3 URLs and move the bytes
+ * themselves, only metadata goes through here. Signing is local (S3Presigner), so the
+ * cost of a transfer no longer depends on its size.
+ * Uploads: initiateUpload signs a PUT of the declared size and type under a new image
+ * id, with name, description and tags as object metadata (x-amz-meta-*, URL encoded).
+ * completeUpload reads them back with a HEAD request and records the image with the
+ * object's S3 ETag. The signed PUT stays valid until it expires, so the bytes could be
+ * replaced after completion: the S3 ETag is part of the image's ETag and reads require it, a
+ * replaced object is refused instead of served under the recorded validators. A presigned GET
+ * cannot require it, a client following the redirect sends no If-Match and a signed header it
+ * does not send fails the signature; the object is checked with a HEAD request before signing,
+ * so only a replacement within the URL's lifetime is served. An upload that is never completed leaves an object without record,
+ * the reconciliation sweep removes it after its grace period.
+ * Downloads are presigned GETs of the object a download would serve.
+ * */
+@Service
+@ConditionalOnProperty(name = "storage.type", havingValue = "aws", matchIfMissing = true)
+public class DirectTransferService {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(DirectTransferService.class);
+
+    private static final String FILE_NAME = "file-name";
+    private static final String DESCRIPTION = "description";
+    private static final String TAGS = "tags";
+    // S3 limit of user-defined metadata: UTF-8 bytes of every name and value
+    private static final int MAX_METADATA_BYTES = 2048;
+
+    @Value("${aws.s3.bucket}")
+    private String bucketName;
+    @Value("${image.direct.url-ttl-seconds}")
+    private long urlTtlSeconds;
+    @Value("${image.direct.max-bytes}")
+    private long maxBytes;
+
+    private S3Presigner presigner;
+    private S3Client s3Client;
+    private AWSService service;
+    private StorageMetrics metrics;
+
+    @Autowired
+    public DirectTransferService(S3Presigner presigner, S3Client s3Client, AWSService service, StorageMetrics metrics) {
+        this.presigner = presigner;
+        this.s3Client = s3Client;
+        this.service = service;
+        this.metrics = metrics;
+    }
+
+    public DirectUpload initiateUpload(final String fileName, final String contentType, final long contentLength,
+                                       final String description, final String tags) {
+        if (contentLength < 1 || contentLength > maxBytes) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "contentLength must be between 1 and " + maxBytes);
+        }
+        final String uniqueFileId = UUID.randomUUID().toString();
+        final Map<String, String> metadata = new HashMap<>();
+        putEncoded(metadata, FILE_NAME, fileName);
+        putEncoded(metadata, DESCRIPTION, description);
+        putEncoded(metadata, TAGS, tags);
+        // S3 would reject the PUT only once the client sent the bytes
+        if (metadataBytes(metadata) > MAX_METADATA_BYTES) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST,
+                    "fileName, description and tags exceed " + MAX_METADATA_BYTES + " bytes of object metadata once URL encoded");
+        }
+        final PresignedPutObjectRequest presigned = presigner.presignPutObject(PutObjectPresignRequest.builder()
+                .signatureDuration(Duration.ofSeconds(urlTtlSeconds))
+                .putObjectRequest(PutObjectRequest.builder()
+                        .bucket(bucketName)
+                        .key(uniqueFileId)
+                        .contentType(contentType)
+                        .contentLength(contentLength)
+                        .metadata(metadata)
+                        .build())
+                .build());
+        // the client's HTTP library sets Host from the URL
+        final Map<String, String> headers = new LinkedHashMap<>();
+        presigned.signedHeaders().forEach((name, values) -> {
+            if (!"host".equalsIgnoreCase(name)) {
+                headers.put(name, String.join(",", values));
+            }
+        });
+        LOGGER.info("Direct upload of image {} is initiated.", uniqueFileId);
+        return new DirectUpload(uniqueFileId, presigned.url().toString(), presigned.httpRequest().method().name(),
+                headers, presigned.expiration());
+    }
+
+    /*
+     * Called once the PUT succeeded. Completing twice returns the recorded image, an
+     * object above image.direct.max-bytes is deleted instead of recorded.
+     * */
+    public Image completeUpload(final UUID imageId) {
+        final String uniqueFileId = imageId.toString();
+        try {
+            return service.findImage(imageId);
+        } catch (ResponseStatusException ex) {
+            if (ex.getStatus() != HttpStatus.NOT_FOUND) {
+                throw ex;
+            }
+        }
+        final HeadObjectResponse object;
+        try {
+            object = metrics.record("s3", "head_object", () -> s3Client.headObject(HeadObjectRequest.builder()
+                    .bucket(bucketName)
+                    .key(uniqueFileId)
+                    .build()));
+        } catch (NoSuchKeyException e) {
+            throw new ResponseStatusException(HttpStatus.NOT_FOUND, "Upload not found [" + uniqueFileId + "]", e);
+        }
+        if (object.contentLength() > maxBytes) {
+            metrics.record("s3", "delete_object", () -> s3Client.deleteObject(DeleteObjectRequest.builder()
+                    .bucket(bucketName)
+                    .key(uniqueFileId)
+                    .build()));
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Upload exceeds " + maxBytes + " bytes [" + uniqueFileId + "]");
+        }
+        final Image image = new Image();
+        image.setImageId(uniqueFileId);
+        image.setFileName(decoded(object.metadata(), FILE_NAME));
+        image.setFileDesc(decoded(object.metadata(), DESCRIPTION));
+        image.setTags(TagIndex.canonicalTags(decoded(object.metadata(), TAGS)));
+        image.setFileType(object.contentType());
+        image.setFileSize(object.contentLength());
+        image.setCreatedAt(System.currentTimeMillis());
+        image.setObjectETag(object.eTag());
+        service.recordUpload(image, object.contentLength());
+        return image;
+    }
+
+    // The object a download of the image (and width) would stream
+    public URI downloadUrl(final UUID imageId, final Integer width) {
+        // the URL is used right away, a pending variant is generated now
+        final ImageVersion version = service.resolve(service.describe(imageId, width));
+        if (version.getObjectETag() != null) {
+            verifyObject(version);
+        }
+        final GetObjectRequest.Builder request = GetObjectRequest.builder()
+                .bucket(bucketName)
+                .key(version.getKey());
+        if (version.getContentType() != null) {
+            request.responseContentType(version.getContentType());
+        }
+        return URI.create(presigner.presignGetObject(GetObjectPresignRequest.builder()
+                .signatureDuration(Duration.ofSeconds(urlTtlSeconds))
+                .getObjectRequest(request.build())
+                .build())
+                .url()
+                .toString());
+    }
+
+    // The object is still the one recorded, 409 once it was replaced through the signed PUT
+    private void verifyObject(final ImageVersion version) {
+        try {
+            metrics.record("s3", "head_object", () -> s3Client.headObject(HeadObjectRequest.builder()
+                    .bucket(bucketName)
+                    .key(version.getKey())
+                    .ifMatch(version.getObjectETag())
+                    .build()));
+        } catch (NoSuchKeyException e) {
+            throw new ResponseStatusException(HttpStatus.NOT_FOUND, "Image not found [" + version.getKey() + "]", e);
+        } catch (S3Exception e) {
+            if (e.statusCode() != HttpStatus.PRECONDITION_FAILED.value()) {
+                throw e;
+            }
+            LOGGER.error("Error= object {} was overwritten after it was recorded, it is not served.", version.getKey());
+            throw new ResponseStatusException(HttpStatus.CONFLICT,
+                    "Image was overwritten after it was recorded [" + version.getKey() + "]", e);
+        }
+    }
+
+    public long getUrlTtlSeconds() {
+        return urlTtlSeconds;
+    }
+
+    // Metadata travels in HTTP headers, which only carry ASCII reliably
+    private static void putEncoded(final Map<String, String> metadata, final String name, final String value) {
+        if (!StringUtils.hasText(value)) {
+            return;
+        }
+        try {
+            metadata.put(name, URLEncoder.encode(value, "UTF-8"));
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static int metadataBytes(final Map<String, String> metadata) {
+        int bytes = 0;
+        for (Map.Entry<String, String> entry : metadata.entrySet()) {
+            bytes += entry.getKey().getBytes(StandardCharsets.UTF_8).length
+                    + entry.getValue().getBytes(StandardCharsets.UTF_8).length;
+        }
+        return bytes;
+    }
+
+    private static String decoded(final Map<String, String> metadata, final String name) {
+        final String value = metadata.get(name);
+        try {
+            return value == null ? null : URLDecoder.decode(value, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
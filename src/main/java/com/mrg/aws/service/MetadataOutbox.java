@@ -0,0 +1,434 @@
+package com.mrg.aws.service;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.mrg.aws.model.Image;
+import com.mrg.aws.storage.MetadataStorage;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Metadata of uploaded images waiting to be written to the metadata storage. An upload
+ * stores its object, appends the record to a local journal (one JSON line, synced) and
+ * returns; the flusher writes pending records in batches (BatchWriteItem on DynamoDB)
+ * and journals an ack for each one written. The records of a failed batch are retried
+ * one by one right away, so one bad record does not hold back the others; a record failing
+ * image.outbox.max-attempts single writes is moved to the dead-letter file (one JSON line with
+ * the record and the last error, counted by image.outbox.dead.letters) and acked. The rest is
+ * retried with exponential backoff. Attempts are counted in memory, a restart starts over.
+ * At startup the journal is replayed, records without an ack are written again (puts are
+ * idempotent) and the journal is compacted to the pending ones.
+ * Until flushed, a record is only visible on this node: by id (see pending) and merged into
+ * listings and scans by AWSServiceImpl (see pendingImages).
+ * Pending records are never changed in place, updateVariants journals and swaps in a new
+ * version. A batch acks only the versions it wrote, a record replaced while its batch was in
+ * flight stays pending and is written again.
+ * */
+@Component
+public class MetadataOutbox {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(MetadataOutbox.class);
+
+    private static final String JOURNAL_FILE = "outbox.journal";
+    private static final String DEAD_LETTER_FILE = "outbox.dead-letter";
+
+    @Value("${image.outbox.directory}")
+    private String directoryName;
+    @Value("${image.outbox.fsync}")
+    private boolean fsync;
+    @Value("${image.outbox.batch-size}")
+    private int batchSize;
+    @Value("${image.outbox.flush-interval-ms}")
+    private long flushIntervalMillis;
+    @Value("${image.outbox.backoff-ms}")
+    private long backoffMillis;
+    @Value("${image.outbox.max-backoff-ms}")
+    private long maxBackoffMillis;
+    @Value("${image.outbox.max-attempts}")
+    private int maxAttempts;
+
+    private MetadataStorage metadataStorage;
+    private ObjectMapper objectMapper;
+    private MeterRegistry registry;
+    private ScheduledExecutorService flushExecutor;
+
+    // oldest first, guarded by this like the journal
+    private final LinkedHashMap<String, Image> pending = new LinkedHashMap<>();
+    // failed single writes per pending record, guarded by this
+    private final Map<String, Integer> attempts = new HashMap<>();
+    private Path journalFile;
+    private FileChannel journal;
+    // held while a batch is written, so a removed record cannot be written after its removal
+    private final Object flushLock = new Object();
+    private int failedFlushes;
+    // a failed write could not be cut off again, appending after it would lose the records behind it
+    private boolean journalBroken;
+
+    @Autowired
+    public MetadataOutbox(MetadataStorage metadataStorage, ObjectMapper objectMapper, MeterRegistry registry,
+                          @Qualifier("outboxFlushExecutor") ScheduledExecutorService flushExecutor) {
+        this.metadataStorage = metadataStorage;
+        this.objectMapper = objectMapper;
+        this.registry = registry;
+        this.flushExecutor = flushExecutor;
+    }
+
+    @PostConstruct
+    public synchronized void init() throws IOException {
+        journalFile = Files.createDirectories(Paths.get(directoryName)).resolve(JOURNAL_FILE);
+        if (Files.exists(journalFile)) {
+            replay();
+        }
+        compact();
+        Gauge.builder("image.outbox.pending", this, MetadataOutbox::size).register(registry);
+        if (!pending.isEmpty()) {
+            LOGGER.info("Metadata outbox recovered {} unwritten records.", pending.size());
+        }
+        flushExecutor.schedule(this::flushPeriodically, flushIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    // Last attempt to empty the outbox, whatever is left is written after the restart
+    @PreDestroy
+    public void close() throws IOException {
+        flushExecutor.shutdownNow();
+        try {
+            flush();
+        } catch (RuntimeException ex) {
+            LOGGER.error("Error= {} while flushing metadata outbox.", ex.getMessage());
+        }
+        synchronized (this) {
+            journal.close();
+        }
+    }
+
+    /*
+     * Durable once this returns (with image.outbox.fsync). Fails when the journal
+     * cannot be written, nothing is pending then.
+     * */
+    public synchronized void append(final List<Image> images) {
+        final List<ObjectNode> records = new ArrayList<>(images.size());
+        for (Image image : images) {
+            final ObjectNode record = objectMapper.createObjectNode();
+            record.put("op", "put");
+            record.set("image", objectMapper.valueToTree(image));
+            records.add(record);
+        }
+        write(records);
+        images.forEach(image -> pending.put(image.getImageId(), image));
+    }
+
+    public synchronized Image pending(final String imageId) {
+        return pending.get(imageId);
+    }
+
+    /*
+     * Replaces a record that is not written yet with a copy carrying variants, the copy is
+     * journaled like an append. Returns false when the record is not pending: it was written
+     * to the metadata storage before it left the outbox, or it was removed.
+     * */
+    public synchronized boolean updateVariants(final String imageId, final List<Integer> variants) {
+        final Image image = pending.get(imageId);
+        if (image == null) {
+            return false;
+        }
+        final Image updated = new Image(image);
+        updated.setVariants(variants);
+        final ObjectNode record = objectMapper.createObjectNode();
+        record.put("op", "put");
+        record.set("image", objectMapper.valueToTree(updated));
+        write(Collections.singletonList(record));
+        pending.put(imageId, updated);
+        return true;
+    }
+
+    // Copies of the records not written yet, oldest first
+    public synchronized List<Image> pendingImages() {
+        final List<Image> images = new ArrayList<>(pending.size());
+        pending.values().forEach(image -> images.add(new Image(image)));
+        return images;
+    }
+
+    /*
+     * Drops a record that is not written yet, waits for a batch in flight first.
+     * Returns the dropped record, null when there was none.
+     * */
+    public Image remove(final String imageId) {
+        synchronized (flushLock) {
+            synchronized (this) {
+                final Image image = pending.get(imageId);
+                if (image != null) {
+                    write(acks(Collections.singleton(imageId)));
+                    pending.remove(imageId);
+                    attempts.remove(imageId);
+                }
+                return image;
+            }
+        }
+    }
+
+    public synchronized int size() {
+        return pending.size();
+    }
+
+    /*
+     * Writes pending records in batches until every one was tried once. Returns false
+     * when some records could not be written, they stay pending for the next flush.
+     * */
+    public boolean flush() {
+        synchronized (flushLock) {
+            final Set<String> failedNow = new HashSet<>();
+            while (true) {
+                final List<Image> batch;
+                synchronized (this) {
+                    if (pending.isEmpty()) {
+                        truncateIfIdle();
+                        return true;
+                    }
+                    batch = new ArrayList<>(Math.min(batchSize, pending.size()));
+                    for (Image image : pending.values()) {
+                        if (batch.size() == batchSize) {
+                            break;
+                        }
+                        if (!failedNow.contains(image.getImageId())) {
+                            batch.add(image);
+                        }
+                    }
+                }
+                if (batch.isEmpty()) {
+                    return false;
+                }
+                final Map<String, Image> written = new HashMap<>();
+                batch.forEach(image -> written.put(image.getImageId(), image));
+                List<Image> failed;
+                try {
+                    failed = metadataStorage.putAll(batch);
+                } catch (RuntimeException ex) {
+                    LOGGER.error("Error= {} while writing a batch of {} metadata records.", ex.getMessage(), batch.size());
+                    failed = batch;
+                }
+                failed.forEach(image -> written.remove(image.getImageId()));
+                synchronized (this) {
+                    // a record removed or replaced while the batch was in flight is not acked
+                    written.entrySet().removeIf(entry -> pending.get(entry.getKey()) != entry.getValue());
+                    if (!written.isEmpty()) {
+                        write(acks(written.keySet()));
+                        written.keySet().forEach(imageId -> {
+                            pending.remove(imageId);
+                            attempts.remove(imageId);
+                        });
+                    }
+                }
+                if (!failed.isEmpty()) {
+                    LOGGER.error("{} of {} metadata records could not be written in a batch, they are retried one by one.",
+                            failed.size(), batch.size());
+                    failed.forEach(image -> {
+                        if (!writeSingle(image)) {
+                            failedNow.add(image.getImageId());
+                        }
+                    });
+                }
+            }
+        }
+    }
+
+    // Called under flushLock, returns true when the record is no longer pending
+    private boolean writeSingle(final Image image) {
+        final String imageId = image.getImageId();
+        RuntimeException failure;
+        try {
+            metadataStorage.put(image);
+            failure = null;
+        } catch (RuntimeException ex) {
+            failure = ex;
+        }
+        synchronized (this) {
+            if (pending.get(imageId) != image) {
+                // removed meanwhile, or replaced and written with the next batch
+                return true;
+            }
+            if (failure == null) {
+                write(acks(Collections.singleton(imageId)));
+            } else {
+                final int failures = attempts.merge(imageId, 1, Integer::sum);
+                if (failures < maxAttempts) {
+                    LOGGER.error("Error= {} while writing metadata record [{}], attempt {} of {}.",
+                            failure.getMessage(), imageId, failures, maxAttempts);
+                    return false;
+                }
+                deadLetter(image, failure);
+                write(acks(Collections.singleton(imageId)));
+            }
+            pending.remove(imageId);
+            attempts.remove(imageId);
+            return true;
+        }
+    }
+
+    private void deadLetter(final Image image, final RuntimeException failure) {
+        final ObjectNode record = objectMapper.createObjectNode();
+        record.set("image", objectMapper.valueToTree(image));
+        record.put("error", String.valueOf(failure.getMessage()));
+        try {
+            Files.write(journalFile.resolveSibling(DEAD_LETTER_FILE),
+                    (objectMapper.writeValueAsString(record) + "\n").getBytes(StandardCharsets.UTF_8),
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND, StandardOpenOption.WRITE);
+        } catch (IOException ex) {
+            LOGGER.error("Error= {} while writing metadata outbox dead letter.", ex.getMessage());
+            throw new IllegalStateException("Failed to dead-letter metadata record [" + image.getImageId() + "]", ex);
+        }
+        registry.counter("image.outbox.dead.letters").increment();
+        LOGGER.error("Error= {} while writing metadata record [{}], gave up after {} attempts, moved to {}.",
+                failure.getMessage(), image.getImageId(), maxAttempts, DEAD_LETTER_FILE);
+    }
+
+    private void flushPeriodically() {
+        boolean flushed;
+        try {
+            flushed = flush();
+        } catch (RuntimeException ex) {
+            LOGGER.error("Error= {} while flushing metadata outbox.", ex.getMessage());
+            flushed = false;
+        }
+        failedFlushes = flushed ? 0 : failedFlushes + 1;
+        final long delay = failedFlushes == 0
+                ? flushIntervalMillis
+                : Math.min(maxBackoffMillis, backoffMillis << Math.min(failedFlushes - 1, 20));
+        if (!flushExecutor.isShutdown()) {
+            flushExecutor.schedule(this::flushPeriodically, delay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private List<ObjectNode> acks(final Set<String> imageIds) {
+        final List<ObjectNode> records = new ArrayList<>(imageIds.size());
+        for (String imageId : imageIds) {
+            final ObjectNode record = objectMapper.createObjectNode();
+            record.put("op", "ack");
+            record.put("imageId", imageId);
+            records.add(record);
+        }
+        return records;
+    }
+
+    private void replay() throws IOException {
+        int lineNumber = 0;
+        try (BufferedReader reader = Files.newBufferedReader(journalFile, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                try {
+                    final JsonNode record = objectMapper.readTree(line);
+                    if ("put".equals(record.get("op").asText())) {
+                        final Image image = objectMapper.treeToValue(record.get("image"), Image.class);
+                        pending.put(image.getImageId(), image);
+                    } else {
+                        pending.remove(record.get("imageId").asText());
+                    }
+                } catch (IOException | RuntimeException ex) {
+                    // a torn last line, the upload it belongs to never returned
+                    LOGGER.error("Error= {} while replaying metadata outbox, records after line {} are dropped.",
+                            ex.getMessage(), lineNumber - 1);
+                    return;
+                }
+            }
+        }
+    }
+
+    // Rewrites the journal with the pending records only, swapped in atomically
+    private void compact() throws IOException {
+        final Path compacted = journalFile.resolveSibling(JOURNAL_FILE + ".tmp");
+        try (FileChannel channel = FileChannel.open(compacted, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            journal = channel;
+            final List<Image> images = new ArrayList<>(pending.values());
+            pending.clear();
+            append(images);
+            channel.force(true);
+        }
+        Files.move(compacted, journalFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        journal = FileChannel.open(journalFile, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    // Nothing pending, every record in the journal is acked
+    private void truncateIfIdle() {
+        try {
+            if (journal.size() > 0) {
+                journal.truncate(0);
+            }
+        } catch (IOException ex) {
+            LOGGER.error("Error= {} while truncating metadata outbox.", ex.getMessage());
+        }
+    }
+
+    /*
+     * A failed write is cut off again: replay stops at the first unreadable line, a torn
+     * fragment would drop every record appended after it.
+     * */
+    private void write(final List<ObjectNode> records) {
+        if (journalBroken) {
+            throw new IllegalStateException("Failed to write metadata outbox, an earlier write could not be undone");
+        }
+        long size = -1;
+        try {
+            size = journal.size();
+            final StringBuilder lines = new StringBuilder();
+            for (ObjectNode record : records) {
+                // JSON strings escape line breaks, a record is always a single line
+                lines.append(objectMapper.writeValueAsString(record)).append('\n');
+            }
+            final ByteBuffer buffer = ByteBuffer.wrap(lines.toString().getBytes(StandardCharsets.UTF_8));
+            while (buffer.hasRemaining()) {
+                journal.write(buffer);
+            }
+            if (fsync) {
+                journal.force(false);
+            }
+        } catch (IOException ex) {
+            LOGGER.error("Error= {} while writing metadata outbox.", ex.getMessage());
+            truncate(size);
+            throw new IllegalStateException("Failed to write metadata outbox", ex);
+        }
+    }
+
+    private void truncate(final long size) {
+        if (size < 0) {
+            return;
+        }
+        try {
+            journal.truncate(size);
+        } catch (IOException ex) {
+            journalBroken = true;
+            LOGGER.error("Error= {} while undoing a failed metadata outbox write, the journal is not written to until restart.",
+                    ex.getMessage());
+        }
+    }
+}
@@ -0,0 +1,290 @@
+package com.mrg.aws.service;
+
+import com.mrg.aws.index.TagIndex;
+import com.mrg.aws.metrics.StorageMetrics;
+import com.mrg.aws.model.Image;
+import com.mrg.aws.model.ResumableUpload;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.http.HttpStatus;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.web.server.ResponseStatusException;
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.AbortMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.CompleteMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.CompletedMultipartUpload;
+import software.amazon.awssdk.services.s3.model.CompletedPart;
+import software.amazon.awssdk.services.s3.model.CreateMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.ListPartsRequest;
+import software.amazon.awssdk.services.s3.model.S3Exception;
+import software.amazon.awssdk.services.s3.model.UploadPartRequest;
+
+import javax.annotation.PostConstruct;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.Instant;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/*
+ * Resumable uploads: a session is one S3 multipart upload under a new image id, each
+ * chunk is one part. Chunks may arrive in any order and in parallel, a failed chunk is
+ * sent again on its own, so a retry costs at most one chunk and no request holds a
+ * servlet thread for longer than a chunk takes. completeUpload assembles the parts
+ * and records the image like a direct upload.
+ * Sessions live in this node's memory (sticky routing per image id is needed behind a
+ * load balancer). Idle sessions are aborted after image.resumable.session-ttl-minutes;
+ * the bucket's AbortIncompleteMultipartUpload lifecycle rule covers node restarts.
+ * */
+@Service
+@ConditionalOnProperty(name = "storage.type", havingValue = "aws", matchIfMissing = true)
+public class ResumableUploadService {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ResumableUploadService.class);
+
+    // S3 rejects parts smaller than 5 MB (except the last) and uploads of more than 10000 parts
+    private static final int MIN_CHUNK_SIZE = 5 * 1024 * 1024;
+    private static final int MAX_CHUNKS = 10000;
+
+    @Value("${aws.s3.bucket}")
+    private String bucketName;
+    @Value("${image.resumable.chunk-size}")
+    private int chunkSize;
+    @Value("${image.resumable.max-bytes}")
+    private long maxBytes;
+    @Value("${image.resumable.session-ttl-minutes}")
+    private long sessionTtlMinutes;
+
+    private final Map<String, UploadSession> sessions = new ConcurrentHashMap<>();
+
+    private S3Client s3Client;
+    private AWSService service;
+    private StorageMetrics metrics;
+
+    @Autowired
+    public ResumableUploadService(S3Client s3Client, AWSService service, StorageMetrics metrics) {
+        this.s3Client = s3Client;
+        this.service = service;
+        this.metrics = metrics;
+    }
+
+    @PostConstruct
+    public void validate() {
+        if (chunkSize < MIN_CHUNK_SIZE) {
+            throw new IllegalStateException("Resumable upload chunk size must be at least " + MIN_CHUNK_SIZE + " bytes");
+        }
+        if (UploadSession.chunkCount(maxBytes, chunkSize) > MAX_CHUNKS) {
+            throw new IllegalStateException("image.resumable.max-bytes needs more than " + MAX_CHUNKS + " chunks");
+        }
+    }
+
+    public ResumableUpload createUpload(final String fileName, final String contentType, final long contentLength,
+                                        final String description, final String tags) {
+        if (contentLength < 1 || contentLength > maxBytes) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "contentLength must be between 1 and " + maxBytes);
+        }
+        final String uniqueFileId = UUID.randomUUID().toString();
+        final String uploadId = metrics.record("s3", "create_multipart_upload",
+                () -> s3Client.createMultipartUpload(CreateMultipartUploadRequest.builder()
+                        .bucket(bucketName)
+                        .key(uniqueFileId)
+                        .contentType(contentType)
+                        .build())).uploadId();
+        final UploadSession session = new UploadSession(uniqueFileId, uploadId, fileName, contentType, description,
+                tags, contentLength, chunkSize);
+        sessions.put(uniqueFileId, session);
+        LOGGER.info("Resumable upload of image {} is created with {} chunks.", uniqueFileId, session.getChunkCount());
+        return describe(session);
+    }
+
+    public ResumableUpload getUpload(final UUID imageId) {
+        return describe(session(imageId));
+    }
+
+    /*
+     * Stores one chunk, the body must be exactly the chunk's size. Sending a chunk again
+     * replaces it. contentMd5 (base64, optional) is checked by S3.
+     * */
+    public void uploadChunk(final UUID imageId, final int chunkNumber, final InputStream inputStream,
+                            final long contentLength, final String contentMd5) {
+        final UploadSession session = session(imageId);
+        final long expectedLength = session.chunkLength(chunkNumber);
+        if (expectedLength < 0) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST,
+                    "chunk must be between 1 and " + session.getChunkCount() + " [" + imageId + "]");
+        }
+        if (contentLength != expectedLength) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST,
+                    "chunk " + chunkNumber + " must be " + expectedLength + " bytes [" + imageId + "]");
+        }
+        if (!session.beginChunk()) {
+            throw new ResponseStatusException(HttpStatus.CONFLICT, "Upload is being completed [" + imageId + "]");
+        }
+        boolean stored = false;
+        try {
+            // buffered, so the SDK can resend the part on a retry
+            final byte[] chunk = new byte[(int) expectedLength];
+            new DataInputStream(inputStream).readFully(chunk);
+            final UploadPartRequest uploadPartRequest = UploadPartRequest.builder()
+                    .bucket(bucketName)
+                    .key(session.getImageId())
+                    .uploadId(session.getUploadId())
+                    .partNumber(chunkNumber)
+                    .contentLength(expectedLength)
+                    .contentMD5(contentMd5)
+                    .build();
+            metrics.record("s3", "upload_part", () -> s3Client.uploadPart(uploadPartRequest,
+                    RequestBody.fromInputStream(new ByteArrayInputStream(chunk), chunk.length)));
+            stored = true;
+        } catch (EOFException ex) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "chunk " + chunkNumber + " is truncated [" + imageId + "]");
+        } catch (IOException ex) {
+            LOGGER.error("Error= {} while reading chunk {} of upload {}", ex.getMessage(), chunkNumber, imageId);
+            throw new IllegalStateException("Failed to read chunk " + chunkNumber + " +[" + imageId + "]", ex);
+        } catch (S3Exception ex) {
+            LOGGER.error("Error= {} while storing chunk {} of upload {}", ex.getMessage(), chunkNumber, imageId);
+            if (ex.statusCode() == 400) {
+                // BadDigest, InvalidDigest
+                throw new ResponseStatusException(HttpStatus.BAD_REQUEST, ex.awsErrorDetails().errorMessage());
+            }
+            throw new IllegalStateException("Failed to store chunk " + chunkNumber + " +[" + imageId + "]", ex);
+        } finally {
+            session.endChunk(chunkNumber, stored);
+        }
+    }
+
+    /*
+     * Assembles the chunks and records the image. Completing twice returns the recorded
+     * image; a session with missing chunks answers 409 and stays usable. The session is
+     * dropped only once the image is recorded, a completion whose record failed can be
+     * retried and records the assembled object without assembling it again.
+     * */
+    public Image completeUpload(final UUID imageId) {
+        final UploadSession session = sessions.get(imageId.toString());
+        if (session == null) {
+            // completed before, or unknown
+            return service.findImage(imageId);
+        }
+        if (!session.beginCompletion()) {
+            throw new ResponseStatusException(HttpStatus.CONFLICT, "Upload has " + session.missingChunks().size()
+                    + " missing chunks or chunks in flight [" + imageId + "]");
+        }
+        if (!session.isAssembled()) {
+            assemble(session);
+        }
+
+        final Image image = new Image();
+        image.setImageId(session.getImageId());
+        image.setFileName(session.getFileName());
+        image.setFileDesc(session.getDescription());
+        image.setTags(TagIndex.canonicalTags(session.getTags()));
+        image.setFileType(session.getContentType());
+        image.setFileSize(session.getContentLength());
+        image.setCreatedAt(System.currentTimeMillis());
+        try {
+            service.recordUpload(image, session.getContentLength());
+        } catch (RuntimeException ex) {
+            LOGGER.error("Error= {} while recording upload {}", ex.getMessage(), imageId);
+            session.cancelCompletion();
+            throw ex;
+        }
+        sessions.remove(session.getImageId(), session);
+        LOGGER.info("Resumable upload of image {} is completed with {} chunks.", imageId, session.getChunkCount());
+        return image;
+    }
+
+    private void assemble(final UploadSession session) {
+        try {
+            final ListPartsRequest listPartsRequest = ListPartsRequest.builder()
+                    .bucket(bucketName)
+                    .key(session.getImageId())
+                    .uploadId(session.getUploadId())
+                    .build();
+            final List<CompletedPart> parts = metrics.record("s3", "list_parts", () -> s3Client.listPartsPaginator(listPartsRequest)
+                    .parts()
+                    .stream()
+                    .map(part -> CompletedPart.builder().partNumber(part.partNumber()).eTag(part.eTag()).build())
+                    .sorted(Comparator.comparing(CompletedPart::partNumber))
+                    .collect(Collectors.toList()));
+            metrics.record("s3", "complete_multipart_upload", () -> s3Client.completeMultipartUpload(CompleteMultipartUploadRequest.builder()
+                    .bucket(bucketName)
+                    .key(session.getImageId())
+                    .uploadId(session.getUploadId())
+                    .multipartUpload(CompletedMultipartUpload.builder().parts(parts).build())
+                    .build()));
+        } catch (RuntimeException ex) {
+            LOGGER.error("Error= {} while completing upload {}", ex.getMessage(), session.getImageId());
+            session.cancelCompletion();
+            throw new IllegalStateException("Failed to complete upload +[" + session.getImageId() + "]", ex);
+        }
+        session.markAssembled();
+    }
+
+    public void abortUpload(final UUID imageId) {
+        final UploadSession session = session(imageId);
+        if (!session.isIdle()) {
+            throw new ResponseStatusException(HttpStatus.CONFLICT, "Upload has requests in flight [" + imageId + "]");
+        }
+        if (sessions.remove(session.getImageId(), session)) {
+            abort(session);
+        }
+    }
+
+    // Aborts sessions nothing was sent to for the session TTL, S3 keeps billing their parts otherwise
+    @Scheduled(fixedDelay = 60000)
+    public void expireSessions() {
+        final long cutoff = System.currentTimeMillis() - TimeUnit.MINUTES.toMillis(sessionTtlMinutes);
+        sessions.values().stream()
+                .filter(session -> session.getLastTouchedMillis() < cutoff && session.isIdle())
+                .filter(session -> sessions.remove(session.getImageId(), session))
+                .forEach(session -> {
+                    LOGGER.info("Resumable upload of image {} expired.", session.getImageId());
+                    abort(session);
+                });
+    }
+
+    private UploadSession session(final UUID imageId) {
+        final UploadSession session = sessions.get(imageId.toString());
+        if (session == null) {
+            throw new ResponseStatusException(HttpStatus.NOT_FOUND, "Upload not found [" + imageId + "]");
+        }
+        return session;
+    }
+
+    private ResumableUpload describe(final UploadSession session) {
+        return new ResumableUpload(session.getImageId(), session.getContentLength(), session.getChunkSize(),
+                session.getChunkCount(), session.missingChunks(),
+                Instant.ofEpochMilli(session.getLastTouchedMillis() + TimeUnit.MINUTES.toMillis(sessionTtlMinutes)));
+    }
+
+    private void abort(final UploadSession session) {
+        if (session.isAssembled()) {
+            // nothing left to abort, the unrecorded object is removed by the reconciliation sweep
+            LOGGER.info("Resumable upload of image {} was assembled but never recorded.", session.getImageId());
+            return;
+        }
+        try {
+            metrics.record("s3", "abort_multipart_upload", () -> s3Client.abortMultipartUpload(AbortMultipartUploadRequest.builder()
+                    .bucket(bucketName)
+                    .key(session.getImageId())
+                    .uploadId(session.getUploadId())
+                    .build()));
+            LOGGER.info("Resumable upload of image {} is aborted.", session.getImageId());
+        } catch (Exception ex) {
+            LOGGER.error("Resumable upload abort failed for image= {}. Error = {}", session.getImageId(), ex.getMessage());
+        }
+    }
+}
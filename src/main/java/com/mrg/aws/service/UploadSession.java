@@ -0,0 +1,152 @@
+package com.mrg.aws.service;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+/*
+ * Server side state of one resumable upload. Chunk n (1-based, the S3 part number)
+ * covers bytes [(n - 1) * chunkSize, n * chunkSize) and only the last one may be
+ * shorter. Received chunks are one bit each; part ETags are not kept, they are listed
+ * from S3 when the upload is completed. Once S3 assembled the object the session only
+ * waits for its image record; chunks are refused and a retried completion records again.
+ * */
+class UploadSession {
+
+    private final String imageId;
+    private final String uploadId;
+    private final String fileName;
+    private final String contentType;
+    private final String description;
+    private final String tags;
+    private final long contentLength;
+    private final int chunkSize;
+    private final int chunkCount;
+    private final BitSet received;
+    private int inFlight;
+    private boolean completing;
+    private boolean assembled;
+    private volatile long lastTouchedMillis = System.currentTimeMillis();
+
+    UploadSession(String imageId, String uploadId, String fileName, String contentType, String description,
+                  String tags, long contentLength, int chunkSize) {
+        this.imageId = imageId;
+        this.uploadId = uploadId;
+        this.fileName = fileName;
+        this.contentType = contentType;
+        this.description = description;
+        this.tags = tags;
+        this.contentLength = contentLength;
+        this.chunkSize = chunkSize;
+        this.chunkCount = chunkCount(contentLength, chunkSize);
+        this.received = new BitSet(chunkCount);
+    }
+
+    static int chunkCount(final long contentLength, final int chunkSize) {
+        return (int) ((contentLength + chunkSize - 1) / chunkSize);
+    }
+
+    // Expected size of the chunk, -1 for a chunk number outside the upload
+    long chunkLength(final int chunkNumber) {
+        if (chunkNumber < 1 || chunkNumber > chunkCount) {
+            return -1;
+        }
+        return chunkNumber < chunkCount ? chunkSize : contentLength - (long) (chunkCount - 1) * chunkSize;
+    }
+
+    // False once the upload is being completed or assembled, no chunk may change under it
+    synchronized boolean beginChunk() {
+        if (completing || assembled) {
+            return false;
+        }
+        inFlight++;
+        lastTouchedMillis = System.currentTimeMillis();
+        return true;
+    }
+
+    synchronized void endChunk(final int chunkNumber, final boolean stored) {
+        inFlight--;
+        if (stored) {
+            received.set(chunkNumber - 1);
+        }
+        lastTouchedMillis = System.currentTimeMillis();
+    }
+
+    // True when every chunk is present and none is being written
+    synchronized boolean beginCompletion() {
+        if (completing || inFlight > 0 || received.cardinality() < chunkCount) {
+            return false;
+        }
+        completing = true;
+        return true;
+    }
+
+    synchronized void cancelCompletion() {
+        completing = false;
+    }
+
+    // The multipart upload is completed in S3, the object exists under the image id
+    synchronized void markAssembled() {
+        assembled = true;
+    }
+
+    synchronized boolean isAssembled() {
+        return assembled;
+    }
+
+    synchronized boolean isIdle() {
+        return inFlight == 0 && !completing;
+    }
+
+    synchronized int receivedCount() {
+        return received.cardinality();
+    }
+
+    synchronized List<Integer> missingChunks() {
+        final List<Integer> missing = new ArrayList<>(chunkCount - received.cardinality());
+        for (int index = received.nextClearBit(0); index < chunkCount; index = received.nextClearBit(index + 1)) {
+            missing.add(index + 1);
+        }
+        return missing;
+    }
+
+    String getImageId() {
+        return imageId;
+    }
+
+    String getUploadId() {
+        return uploadId;
+    }
+
+    String getFileName() {
+        return fileName;
+    }
+
+    String getContentType() {
+        return contentType;
+    }
+
+    String getDescription() {
+        return description;
+    }
+
+    String getTags() {
+        return tags;
+    }
+
+    long getContentLength() {
+        return contentLength;
+    }
+
+    int getChunkSize() {
+        return chunkSize;
+    }
+
+    int getChunkCount() {
+        return chunkCount;
+    }
+
+    long getLastTouchedMillis() {
+        return lastTouchedMillis;
+    }
+}
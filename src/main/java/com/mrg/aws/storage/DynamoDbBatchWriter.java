@@ -0,0 +1,96 @@
+package com.mrg.aws.storage;
+
+import com.mrg.aws.metrics.StorageMetrics;
+import com.mrg.aws.model.Image;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+import software.amazon.awssdk.enhanced.dynamodb.DynamoDbEnhancedClient;
+import software.amazon.awssdk.enhanced.dynamodb.DynamoDbTable;
+import software.amazon.awssdk.enhanced.dynamodb.model.BatchWriteItemEnhancedRequest;
+import software.amazon.awssdk.enhanced.dynamodb.model.BatchWriteResult;
+import software.amazon.awssdk.enhanced.dynamodb.model.WriteBatch;
+import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
+import software.amazon.awssdk.services.dynamodb.model.DynamoDbException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/*
+ * Writes images with BatchWriteItem, 25 items per call. Items DynamoDB leaves
+ * unprocessed (throttling) are retried with exponential backoff and jitter.
+ * */
+@Component
+@ConditionalOnProperty(name = "storage.type", havingValue = "aws", matchIfMissing = true)
+public class DynamoDbBatchWriter {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(DynamoDbBatchWriter.class);
+
+    // BatchWriteItem accepts at most 25 put/delete requests per call
+    public static final int MAX_BATCH_SIZE = 25;
+
+    @Value("${aws.dynamodb.batch.max-attempts}")
+    private int maxAttempts;
+    @Value("${aws.dynamodb.batch.backoff-ms}")
+    private long backoffMs;
+
+    private DynamoDbEnhancedClient enhancedClient;
+    private StorageMetrics metrics;
+
+    @Autowired
+    public DynamoDbBatchWriter(DynamoDbClient dynamoDbClient, StorageMetrics metrics) {
+        this.metrics = metrics;
+        this.enhancedClient = DynamoDbEnhancedClient.builder()
+                .dynamoDbClient(dynamoDbClient)
+                .build();
+    }
+
+    /*
+     * Returns the images that could not be written after all attempts.
+     * */
+    public List<Image> putAll(final DynamoDbTable<Image> imageTable, final List<Image> images) {
+        final List<Image> failed = new ArrayList<>();
+        for (int from = 0; from < images.size(); from += MAX_BATCH_SIZE) {
+            List<Image> pending = images.subList(from, Math.min(from + MAX_BATCH_SIZE, images.size()));
+            for (int attempt = 1; !pending.isEmpty(); attempt++) {
+                try {
+                    WriteBatch.Builder<Image> writeBatch = WriteBatch.builder(Image.class).mappedTableResource(imageTable);
+                    for (Image image : pending) {
+                        writeBatch.addPutItem(image);
+                    }
+                    BatchWriteResult result = metrics.record("dynamodb", "batch_write_item",
+                            () -> enhancedClient.batchWriteItem(BatchWriteItemEnhancedRequest.builder()
+                                    .writeBatches(writeBatch.build())
+                                    .build()));
+                    pending = result.unprocessedPutItemsForTable(imageTable);
+                } catch (DynamoDbException ex) {
+                    LOGGER.error("Error= {} while writing batch to DynamoDB, attempt {}.", ex.getMessage(), attempt);
+                }
+                if (pending.isEmpty()) {
+                    break;
+                }
+                if (attempt >= maxAttempts || !backoff(attempt)) {
+                    LOGGER.error("{} items could not be written to DynamoDB.", pending.size());
+                    failed.addAll(pending);
+                    break;
+                }
+            }
+        }
+        return failed;
+    }
+
+    private boolean backoff(final int attempt) {
+        final long delay = backoffMs << Math.min(attempt - 1, 10);
+        try {
+            Thread.sleep(delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1));
+            return true;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+}
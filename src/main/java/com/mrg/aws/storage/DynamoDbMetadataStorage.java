@@ -0,0 +1,215 @@
+package com.mrg.aws.storage;
+
+import com.mrg.aws.metrics.StorageMetrics;
+import com.mrg.aws.model.Image;
+import com.mrg.aws.model.ImagePage;
+import com.mrg.aws.util.CursorUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+import software.amazon.awssdk.enhanced.dynamodb.DynamoDbEnhancedClient;
+import software.amazon.awssdk.enhanced.dynamodb.DynamoDbTable;
+import software.amazon.awssdk.enhanced.dynamodb.Expression;
+import software.amazon.awssdk.enhanced.dynamodb.Key;
+import software.amazon.awssdk.enhanced.dynamodb.model.UpdateItemEnhancedRequest;
+import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+import software.amazon.awssdk.services.dynamodb.model.ConditionalCheckFailedException;
+import software.amazon.awssdk.services.dynamodb.model.DeleteItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.DynamoDbException;
+import software.amazon.awssdk.services.dynamodb.model.ReturnValue;
+import software.amazon.awssdk.services.dynamodb.model.ScanRequest;
+import software.amazon.awssdk.services.dynamodb.model.ScanResponse;
+import software.amazon.awssdk.services.dynamodb.model.UpdateItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.UpdateItemResponse;
+
+import javax.annotation.PostConstruct;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/*
+ * Image records in aws.dynamodb.table (mapped by ImageTableSchema), reference counts of
+ * deduplicated content in aws.dynamodb.content-table (partition key "ContentHash"),
+ * updated with atomic ADD.
+ * */
+@Component
+@ConditionalOnProperty(name = "storage.type", havingValue = "aws", matchIfMissing = true)
+public class DynamoDbMetadataStorage implements MetadataStorage {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(DynamoDbMetadataStorage.class);
+
+    private static final String BACKEND = "dynamodb";
+    private static final String HASH_ATTRIBUTE = "ContentHash";
+    private static final String COUNT_ATTRIBUTE = "RefCount";
+
+    @Value("${aws.dynamodb.table}")
+    private String tableName;
+    @Value("${aws.dynamodb.content-table}")
+    private String contentTableName;
+    @Value("${aws.dynamodb.scan.segments}")
+    private int scanSegments;
+
+    private DynamoDbClient dynamoDbClient;
+    private DynamoDbEnhancedClient enhancedClient;
+    private DynamoDbBatchWriter batchWriter;
+    private DynamoDbParallelScanner parallelScanner;
+    private StorageMetrics metrics;
+    private DynamoDbTable<Image> imageTable;
+
+    @Autowired
+    public DynamoDbMetadataStorage(DynamoDbClient dynamoDbClient, DynamoDbBatchWriter batchWriter,
+                                   DynamoDbParallelScanner parallelScanner, StorageMetrics metrics) {
+        this.dynamoDbClient = dynamoDbClient;
+        this.batchWriter = batchWriter;
+        this.parallelScanner = parallelScanner;
+        this.metrics = metrics;
+        this.enhancedClient = DynamoDbEnhancedClient.builder()
+                .dynamoDbClient(dynamoDbClient)
+                .build();
+    }
+
+    @PostConstruct
+    public void init() {
+        imageTable = enhancedClient.table(tableName, ImageTableSchema.SCHEMA);
+    }
+
+    @Override
+    public void put(final Image image) {
+        try {
+            // Put the customer data into a DynamoDB table
+            metrics.run(BACKEND, "put_item", () -> imageTable.putItem(image));
+        } catch (DynamoDbException ex) {
+            LOGGER.error("Error= {} while adding new file to DynamoDB.", ex.getMessage());
+            throw ex;
+        }
+    }
+
+    @Override
+    public List<Image> putAll(final List<Image> images) {
+        return batchWriter.putAll(imageTable, images);
+    }
+
+    @Override
+    public Image get(final String imageId) {
+        return metrics.record(BACKEND, "get_item", () -> imageTable.getItem(Key.builder().partitionValue(imageId).build()));
+    }
+
+    @Override
+    public Image delete(final String imageId) {
+        return metrics.record(BACKEND, "delete_item",
+                () -> imageTable.deleteItem(Key.builder().partitionValue(imageId).build()));
+    }
+
+    @Override
+    public boolean update(final Image image) {
+        try {
+            metrics.record(BACKEND, "update_item", () -> imageTable.updateItem(UpdateItemEnhancedRequest.builder(Image.class)
+                    .item(image)
+                    .ignoreNulls(true)
+                    // an update item would otherwise create a partial record for a deleted image
+                    .conditionExpression(Expression.builder()
+                            .expression("attribute_exists(#id)")
+                            .putExpressionName("#id", "ImageId")
+                            .build())
+                    .build()));
+            return true;
+        } catch (ConditionalCheckFailedException ex) {
+            return false;
+        }
+    }
+
+    /*
+     * Pages are fetched from DynamoDB lazily while the returned stream is consumed,
+     * only the current page is held in memory. With aws.dynamodb.scan.segments > 1 the
+     * segments are scanned in parallel instead (see DynamoDbParallelScanner).
+     * */
+    @Override
+    public Stream<Image> findAll() {
+        try {
+            final ScanRequest request = ScanRequest.builder().tableName(tableName).build();
+            if (scanSegments > 1) {
+                return metrics.recordScan(BACKEND, parallelScanner.scan(request, ImageTableSchema.SCHEMA, scanSegments));
+            }
+            return metrics.recordScan(BACKEND, dynamoDbClient.scanPaginator(request).items().stream()
+                    .map(ImageTableSchema.SCHEMA::mapToItem));
+        } catch (DynamoDbException e) {
+            LOGGER.error("Error= {} while searching DynamoDB.", e.getMessage());
+            throw e;
+        }
+    }
+
+    @Override
+    public ImagePage findPage(final int pageSize, final String cursor) {
+        try {
+            ScanRequest request = ScanRequest.builder()
+                    .tableName(tableName)
+                    .limit(pageSize)
+                    .exclusiveStartKey(CursorUtils.decode(cursor))
+                    .build();
+            ScanResponse page = metrics.record(BACKEND, "scan_page", () -> dynamoDbClient.scan(request));
+            return new ImagePage(page.items().stream().map(ImageTableSchema.SCHEMA::mapToItem).collect(Collectors.toList()),
+                    CursorUtils.encode(page.lastEvaluatedKey()));
+
+        } catch (DynamoDbException e) {
+            LOGGER.error("Error= {} while searching DynamoDB.", e.getMessage());
+            throw e;
+        }
+    }
+
+    @Override
+    public long addReferences(final String contentHash, final long delta) {
+        return referenceCount(metrics.record(BACKEND, "add_references",
+                () -> dynamoDbClient.updateItem(referenceCountRequest(contentTableName, contentHash, delta))));
+    }
+
+    @Override
+    public boolean removeReferences(final String contentHash) {
+        return metrics.record(BACKEND, "remove_references", () -> {
+            try {
+                dynamoDbClient.deleteItem(releaseRequest(contentTableName, contentHash));
+                return true;
+            } catch (ConditionalCheckFailedException ex) {
+                return false;
+            }
+        });
+    }
+
+    // Shared with AsyncContentStore, which sends the same requests on the non-blocking client
+    public static UpdateItemRequest referenceCountRequest(final String contentTableName, final String contentHash,
+                                                          final long delta) {
+        return UpdateItemRequest.builder()
+                .tableName(contentTableName)
+                .key(contentKey(contentHash))
+                .updateExpression("ADD " + COUNT_ATTRIBUTE + " :delta")
+                .expressionAttributeValues(Collections.singletonMap(":delta",
+                        AttributeValue.builder().n(String.valueOf(delta)).build()))
+                .returnValues(ReturnValue.UPDATED_NEW)
+                .build();
+    }
+
+    public static DeleteItemRequest releaseRequest(final String contentTableName, final String contentHash) {
+        final Map<String, AttributeValue> values = new HashMap<>();
+        values.put(":zero", AttributeValue.builder().n("0").build());
+        return DeleteItemRequest.builder()
+                .tableName(contentTableName)
+                .key(contentKey(contentHash))
+                .conditionExpression(COUNT_ATTRIBUTE + " <= :zero")
+                .expressionAttributeValues(values)
+                .build();
+    }
+
+    public static long referenceCount(final UpdateItemResponse response) {
+        return Long.parseLong(response.attributes().get(COUNT_ATTRIBUTE).n());
+    }
+
+    private static Map<String, AttributeValue> contentKey(final String contentHash) {
+        return Collections.singletonMap(HASH_ATTRIBUTE, AttributeValue.builder().s(contentHash).build());
+    }
+}
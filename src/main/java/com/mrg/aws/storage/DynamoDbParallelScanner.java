@@ -0,0 +1,286 @@
+package com.mrg.aws.storage;
+
+import com.mrg.aws.metrics.StorageMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+import org.springframework.web.server.ResponseStatusException;
+import software.amazon.awssdk.enhanced.dynamodb.TableSchema;
+import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
+import software.amazon.awssdk.services.dynamodb.model.ScanRequest;
+import software.amazon.awssdk.services.dynamodb.model.ScanResponse;
+
+import javax.annotation.PostConstruct;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/*
+ * Full table reads split into totalSegments DynamoDB scan segments, fetched concurrently
+ * on the scan pool and merged into one stream in arrival order. At most
+ * aws.dynamodb.scan.buffer-pages pages wait for the consumer, a slow consumer pauses the
+ * segments instead of filling the heap. Each segment reads at most
+ * aws.dynamodb.scan.pages-per-second pages (a page is up to 1 MB, 128 read units
+ * eventually consistent), so a scan cannot take the table's whole provisioned capacity.
+ * The scan pool has room for aws.dynamodb.scan.concurrent-scans full scans; a scan starts
+ * only once every one of its segments has a thread, otherwise it waits up to max-wait-ms and
+ * is rejected with 503, so one stalled reader cannot keep the segments of another waiting.
+ * A reader that takes no page for stall-timeout-ms, or a segment whose pages are not taken
+ * for as long, fails the scan and frees its threads.
+ * */
+@Component
+@ConditionalOnProperty(name = "storage.type", havingValue = "aws", matchIfMissing = true)
+public class DynamoDbParallelScanner {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(DynamoDbParallelScanner.class);
+
+    private static final long OFFER_TIMEOUT_MS = 100;
+
+    @Value("${aws.dynamodb.scan.pages-per-second}")
+    private double pagesPerSecond;
+    @Value("${aws.dynamodb.scan.buffer-pages}")
+    private int bufferPages;
+    @Value("${aws.dynamodb.scan.segments}")
+    private int scanSegments;
+    @Value("${aws.dynamodb.scan.concurrent-scans}")
+    private int concurrentScans;
+    @Value("${aws.dynamodb.scan.max-wait-ms}")
+    private long maxWaitMs;
+    @Value("${aws.dynamodb.scan.stall-timeout-ms}")
+    private long stallTimeoutMs;
+
+    private DynamoDbClient dynamoDbClient;
+    private ExecutorService scanExecutor;
+    private StorageMetrics metrics;
+    // one permit per thread of the scan pool, a scan holds one for each of its segments
+    private Semaphore scanThreads;
+
+    @Autowired
+    public DynamoDbParallelScanner(DynamoDbClient dynamoDbClient,
+                                   @Qualifier("scanExecutor") ExecutorService scanExecutor,
+                                   StorageMetrics metrics) {
+        this.dynamoDbClient = dynamoDbClient;
+        this.scanExecutor = scanExecutor;
+        this.metrics = metrics;
+    }
+
+    @PostConstruct
+    public void init() {
+        // the pool is sized the same way in ExecutorConfig
+        scanThreads = new Semaphore(Math.max(1, scanSegments) * Math.max(1, concurrentScans));
+    }
+
+    /*
+     * Every segment sends the given request with its own segment set.
+     * The returned stream must be closed, closing it early stops the segments still running.
+     * */
+    public <T> Stream<T> scan(final ScanRequest scanRequest, final TableSchema<T> schema, final int totalSegments) {
+        acquire(totalSegments);
+        final MergedScan<T> merged = new MergedScan<>(bufferPages, totalSegments, stallTimeoutMs, scanThreads);
+        try {
+            for (int segment = 0; segment < totalSegments; segment++) {
+                final ScanRequest request = scanRequest.toBuilder()
+                        .segment(segment)
+                        .totalSegments(totalSegments)
+                        .build();
+                final AtomicBoolean started = new AtomicBoolean();
+                final Future<?> future = scanExecutor.submit(() -> {
+                    // a segment cancelled before it started is released by close
+                    if (started.compareAndSet(false, true)) {
+                        try {
+                            scanSegment(request, schema, merged);
+                        } finally {
+                            scanThreads.release();
+                        }
+                    }
+                });
+                merged.segments.add(new Segment(started, future));
+            }
+        } catch (RejectedExecutionException ex) {
+            // the pool is shutting down, the permits of the segments never submitted go back too
+            scanThreads.release(totalSegments - merged.segments.size());
+            merged.close();
+            throw ex;
+        }
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(merged, Spliterator.NONNULL), false)
+                .onClose(merged::close);
+    }
+
+    private void acquire(final int totalSegments) {
+        try {
+            if (scanThreads.tryAcquire(totalSegments, maxWaitMs, TimeUnit.MILLISECONDS)) {
+                return;
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        LOGGER.error("Error= no scan thread free for {} segments while scanning DynamoDB table.", totalSegments);
+        throw new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE, "Too many table scans running, retry later");
+    }
+
+    private <T> void scanSegment(final ScanRequest request, final TableSchema<T> schema, final MergedScan<T> merged) {
+        final long interval = pagesPerSecond > 0 ? (long) (TimeUnit.SECONDS.toNanos(1) / pagesPerSecond) : 0;
+        try {
+            final Iterator<ScanResponse> responses = dynamoDbClient.scanPaginator(request).iterator();
+            long nextPage = System.nanoTime();
+            while (!merged.closed) {
+                final long wait = nextPage - System.nanoTime();
+                if (wait > 0) {
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                }
+                nextPage = Math.max(System.nanoTime(), nextPage) + interval;
+                // the paginator sends the next request from hasNext
+                final ScanResponse response = metrics.record("dynamodb", "scan_segment_page",
+                        () -> responses.hasNext() ? responses.next() : null);
+                if (response == null) {
+                    break;
+                }
+                final List<T> page = new ArrayList<>(response.items().size());
+                response.items().forEach(item -> page.add(schema.mapToItem(item)));
+                merged.offer(page);
+            }
+        } catch (InterruptedException | CancellationException ex) {
+            // the stream was closed
+        } catch (RuntimeException ex) {
+            if (merged.closed) {
+                return;
+            }
+            LOGGER.error("Error= {} while scanning segment {} of DynamoDB table.", ex.getMessage(), request.segment());
+            merged.failure.compareAndSet(null, ex);
+        } finally {
+            merged.segmentDone();
+        }
+    }
+
+    private static final class Segment {
+
+        private final AtomicBoolean started;
+        private final Future<?> future;
+
+        private Segment(final AtomicBoolean started, final Future<?> future) {
+            this.started = started;
+            this.future = future;
+        }
+    }
+
+    private static final class MergedScan<T> implements Iterator<T> {
+
+        // marks the end of one segment, compared by identity
+        private final List<T> segmentEnd = new ArrayList<>(0);
+        private final BlockingQueue<List<T>> pages;
+        private final List<Segment> segments;
+        private final AtomicReference<RuntimeException> failure = new AtomicReference<>();
+        private final long stallTimeoutMs;
+        private final Semaphore scanThreads;
+        private volatile boolean closed;
+        private int remaining;
+        private Iterator<T> current = Collections.emptyIterator();
+
+        private MergedScan(final int bufferPages, final int totalSegments, final long stallTimeoutMs,
+                           final Semaphore scanThreads) {
+            this.pages = new ArrayBlockingQueue<>(Math.max(1, bufferPages));
+            this.segments = new ArrayList<>(totalSegments);
+            this.remaining = totalSegments;
+            this.stallTimeoutMs = stallTimeoutMs;
+            this.scanThreads = scanThreads;
+        }
+
+        private void offer(final List<T> page) throws InterruptedException {
+            final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(stallTimeoutMs);
+            while (!pages.offer(page, OFFER_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                if (closed) {
+                    throw new CancellationException();
+                }
+                if (System.nanoTime() - deadline > 0) {
+                    // the reader stopped taking pages without closing the stream
+                    LOGGER.error("Error= no page taken for {} ms while scanning DynamoDB table, scan aborted.", stallTimeoutMs);
+                    failure.compareAndSet(null, new IllegalStateException("Failed to scan DynamoDB table, reader stalled"));
+                    close();
+                    throw new CancellationException();
+                }
+            }
+        }
+
+        private void segmentDone() {
+            try {
+                offer(segmentEnd);
+            } catch (InterruptedException | CancellationException ex) {
+                // nobody is reading anymore
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (!current.hasNext()) {
+                if (remaining == 0) {
+                    return false;
+                }
+                if (closed) {
+                    throw failure.get() != null ? failure.get() : new IllegalStateException("Failed to scan DynamoDB table, scan closed");
+                }
+                final List<T> page;
+                try {
+                    page = pages.poll(stallTimeoutMs, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    close();
+                    throw new IllegalStateException("Interrupted while scanning DynamoDB table", ex);
+                }
+                if (page == null) {
+                    close();
+                    throw new IllegalStateException("Failed to scan DynamoDB table, no page for " + stallTimeoutMs + " ms");
+                }
+                if (page == segmentEnd) {
+                    remaining--;
+                    if (failure.get() != null) {
+                        close();
+                        throw failure.get();
+                    }
+                } else {
+                    current = page.iterator();
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public T next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return current.next();
+        }
+
+        private void close() {
+            closed = true;
+            for (Segment segment : segments) {
+                if (segment.started.compareAndSet(false, true)) {
+                    scanThreads.release();
+                }
+                segment.future.cancel(true);
+            }
+            pages.clear();
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package com.mrg.aws.storage;
+
+import com.mrg.aws.index.TagIndex;
+import com.mrg.aws.model.Image;
+import software.amazon.awssdk.enhanced.dynamodb.AttributeConverter;
+import software.amazon.awssdk.enhanced.dynamodb.AttributeValueType;
+import software.amazon.awssdk.enhanced.dynamodb.EnhancedType;
+import software.amazon.awssdk.enhanced.dynamodb.TableSchema;
+import software.amazon.awssdk.enhanced.dynamodb.mapper.StaticAttributeTags;
+import software.amazon.awssdk.enhanced.dynamodb.mapper.StaticTableSchema;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+
+/*
+ * DynamoDB mapping of Image, built once with explicit getters and setters instead of
+ * bean introspection per table. Typed attributes:
+ *  - FileSize : N, records written as S before are still read
+ *  - CreatedAt: N, epoch millis, missing on records written before it
+ *  - Tags     : SS of the tags, records with the original S string are still read.
+ *               Both are read back in the canonical form uploads store (TagIndex.canonicalTags)
+ * Listings (scans) read whole records without a projection: they rebuild the tag index,
+ * which keeps whole records, and feed /image/search/all, so FileDesc cannot be left out.
+ * */
+public final class ImageTableSchema {
+
+    public static final TableSchema<Image> SCHEMA = StaticTableSchema.builder(Image.class)
+            .newItemSupplier(Image::new)
+            .addAttribute(String.class, a -> a.name("ImageId")
+                    .getter(Image::getImageId)
+                    .setter(Image::setImageId)
+                    .tags(StaticAttributeTags.primaryPartitionKey()))
+            .addAttribute(String.class, a -> a.name("FileName")
+                    .getter(Image::getFileName)
+                    .setter(Image::setFileName))
+            .addAttribute(String.class, a -> a.name("FileDesc")
+                    .getter(Image::getFileDesc)
+                    .setter(Image::setFileDesc))
+            .addAttribute(Long.class, a -> a.name("FileSize")
+                    .getter(Image::getFileSize)
+                    .setter(Image::setFileSize)
+                    .attributeConverter(new FileSizeConverter()))
+            .addAttribute(String.class, a -> a.name("FileType")
+                    .getter(Image::getFileType)
+                    .setter(Image::setFileType))
+            .addAttribute(String.class, a -> a.name("Tags")
+                    .getter(Image::getTags)
+                    .setter(Image::setTags)
+                    .attributeConverter(new TagSetConverter()))
+            .addAttribute(String.class, a -> a.name("ContentHash")
+                    .getter(Image::getContentHash)
+                    .setter(Image::setContentHash))
+            .addAttribute(String.class, a -> a.name("ObjectKey")
+                    .getter(Image::getObjectKey)
+                    .setter(Image::setObjectKey))
+            .addAttribute(EnhancedType.listOf(Integer.class), a -> a.name("Variants")
+                    .getter(Image::getVariants)
+                    .setter(Image::setVariants))
+            .addAttribute(Long.class, a -> a.name("CreatedAt")
+                    .getter(Image::getCreatedAt)
+                    .setter(Image::setCreatedAt))
+            .addAttribute(String.class, a -> a.name("ObjectETag")
+                    .getter(Image::getObjectETag)
+                    .setter(Image::setObjectETag))
+            .build();
+
+    private ImageTableSchema() {
+    }
+
+    private static final class FileSizeConverter implements AttributeConverter<Long> {
+
+        @Override
+        public AttributeValue transformFrom(final Long input) {
+            return AttributeValue.builder().n(String.valueOf(input)).build();
+        }
+
+        @Override
+        public Long transformTo(final AttributeValue input) {
+            final String value = input.n() != null ? input.n() : input.s();
+            try {
+                return value == null ? null : Long.valueOf(value.trim());
+            } catch (NumberFormatException ex) {
+                return null;
+            }
+        }
+
+        @Override
+        public EnhancedType<Long> type() {
+            return EnhancedType.of(Long.class);
+        }
+
+        @Override
+        public AttributeValueType attributeValueType() {
+            return AttributeValueType.N;
+        }
+    }
+
+    /*
+     * Tags are entered as one string, split like TagIndex tokenizes them, they are stored as
+     * a set and read back in canonical form (sorted, joined with commas), whatever form was
+     * written. DynamoDB has no empty sets, no tags is null.
+     * */
+    private static final class TagSetConverter implements AttributeConverter<String> {
+
+        @Override
+        public AttributeValue transformFrom(final String input) {
+            final String tags = TagIndex.canonicalTags(input);
+            return tags == null
+                    ? AttributeValue.builder().nul(true).build()
+                    : AttributeValue.builder().ss(tags.split(",")).build();
+        }
+
+        @Override
+        public String transformTo(final AttributeValue input) {
+            if (!input.ss().isEmpty()) {
+                return TagIndex.canonicalTags(String.join(",", input.ss()));
+            }
+            return TagIndex.canonicalTags(input.s());
+        }
+
+        @Override
+        public EnhancedType<String> type() {
+            return EnhancedType.of(String.class);
+        }
+
+        @Override
+        public AttributeValueType attributeValueType() {
+            return AttributeValueType.SS;
+        }
+    }
+}
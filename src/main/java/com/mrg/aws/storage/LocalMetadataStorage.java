@@ -0,0 +1,353 @@
+package com.mrg.aws.storage;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.mrg.aws.metrics.StorageMetrics;
+import com.mrg.aws.model.Image;
+import com.mrg.aws.model.ImagePage;
+import com.mrg.aws.util.CursorUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.stream.Stream;
+
+/*
+ * Embedded metadata store for local storage. Every change is appended to a journal
+ * (one JSON record per line) before it is applied to the in-memory maps, reads never
+ * touch the disk. At startup the journal is replayed and compacted into one record per
+ * live image / reference count; a torn last line left by a crash is dropped. While running
+ * it is compacted again once the superseded lines outnumber both the live records and
+ * storage.local.compact-min-dead-records, so update and delete churn cannot grow it without bound.
+ * Records are copied in and out, callers cannot change stored state without a write.
+ * */
+@Component
+@ConditionalOnProperty(name = "storage.type", havingValue = "local")
+public class LocalMetadataStorage implements MetadataStorage {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(LocalMetadataStorage.class);
+
+    private static final String JOURNAL_FILE = "metadata.journal";
+
+    @Value("${storage.local.directory}")
+    private String directoryName;
+    @Value("${storage.local.fsync}")
+    private boolean fsync;
+    @Value("${storage.local.compact-min-dead-records}")
+    private long compactMinDeadRecords;
+
+    private ObjectMapper objectMapper;
+    private StorageMetrics metrics;
+
+    // sorted by id, pages continue after the id in the cursor
+    private final ConcurrentSkipListMap<String, Image> images = new ConcurrentSkipListMap<>();
+    // guarded by this, like the journal
+    private final Map<String, Long> references = new HashMap<>();
+    private Path journalFile;
+    private FileChannel journal;
+    // lines in the journal file, the ones beyond the live images and counts are superseded
+    private long journalRecords;
+    // a failed write could not be cut off again, appending after it would lose the records behind it
+    private boolean journalBroken;
+
+    @Autowired
+    public LocalMetadataStorage(ObjectMapper objectMapper, StorageMetrics metrics) {
+        this.objectMapper = objectMapper;
+        this.metrics = metrics;
+    }
+
+    @PostConstruct
+    public synchronized void init() throws IOException {
+        final Path directory = Files.createDirectories(Paths.get(directoryName));
+        journalFile = directory.resolve(JOURNAL_FILE);
+        if (Files.exists(journalFile)) {
+            replay(journalFile);
+        }
+        compact(journalFile);
+        journal = FileChannel.open(journalFile, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        journalRecords = images.size() + references.size();
+        LOGGER.info("Local metadata loaded with {} images, {} content references.", images.size(), references.size());
+    }
+
+    @PreDestroy
+    public synchronized void close() throws IOException {
+        if (journal != null) {
+            journal.close();
+        }
+    }
+
+    @Override
+    public synchronized void put(final Image image) {
+        append(Collections.singletonList(putRecord(image)));
+        images.put(image.getImageId(), copy(image));
+    }
+
+    @Override
+    public synchronized List<Image> putAll(final List<Image> batch) {
+        final List<ObjectNode> records = new ArrayList<>(batch.size());
+        batch.forEach(image -> records.add(putRecord(image)));
+        try {
+            // one write and one sync for the whole batch
+            append(records);
+        } catch (IllegalStateException ex) {
+            return new ArrayList<>(batch);
+        }
+        batch.forEach(image -> images.put(image.getImageId(), copy(image)));
+        return Collections.emptyList();
+    }
+
+    @Override
+    public Image get(final String imageId) {
+        final Image image = images.get(imageId);
+        return image == null ? null : copy(image);
+    }
+
+    @Override
+    public synchronized Image delete(final String imageId) {
+        if (!images.containsKey(imageId)) {
+            return null;
+        }
+        final ObjectNode record = objectMapper.createObjectNode();
+        record.put("op", "delete");
+        record.put("imageId", imageId);
+        append(Collections.singletonList(record));
+        return images.remove(imageId);
+    }
+
+    @Override
+    public synchronized boolean update(final Image image) {
+        final Image stored = images.get(image.getImageId());
+        if (stored == null) {
+            return false;
+        }
+        final Image merged = copy(stored);
+        final ObjectNode changes = objectMapper.valueToTree(image);
+        final Iterator<Map.Entry<String, JsonNode>> fields = changes.fields();
+        while (fields.hasNext()) {
+            if (fields.next().getValue().isNull()) {
+                fields.remove();
+            }
+        }
+        try {
+            objectMapper.readerForUpdating(merged).readValue(changes);
+        } catch (IOException ex) {
+            throw new IllegalStateException("Failed to update image [" + image.getImageId() + "]", ex);
+        }
+        put(merged);
+        return true;
+    }
+
+    @Override
+    public Stream<Image> findAll() {
+        return images.values().stream().map(this::copy);
+    }
+
+    @Override
+    public ImagePage findPage(final int pageSize, final String cursor) {
+        final String after = CursorUtils.decodeImageId(cursor);
+        final NavigableMap<String, Image> remaining = after == null ? images : images.tailMap(after, false);
+        final List<Image> items = new ArrayList<>(pageSize);
+        String last = null;
+        for (Image image : remaining.values()) {
+            if (items.size() == pageSize) {
+                return new ImagePage(items, CursorUtils.encode(last));
+            }
+            items.add(copy(image));
+            last = image.getImageId();
+        }
+        return new ImagePage(items, null);
+    }
+
+    @Override
+    public synchronized long addReferences(final String contentHash, final long delta) {
+        final long count = references.getOrDefault(contentHash, 0L) + delta;
+        // the resulting count is journaled, not the delta, so replaying a record twice is harmless
+        append(Collections.singletonList(countRecord(contentHash, count)));
+        references.put(contentHash, count);
+        return count;
+    }
+
+    @Override
+    public synchronized boolean removeReferences(final String contentHash) {
+        final Long count = references.get(contentHash);
+        if (count != null && count > 0) {
+            return false;
+        }
+        final ObjectNode record = objectMapper.createObjectNode();
+        record.put("op", "unref");
+        record.put("contentHash", contentHash);
+        append(Collections.singletonList(record));
+        references.remove(contentHash);
+        return true;
+    }
+
+    private void replay(final Path journalFile) throws IOException {
+        int lineNumber = 0;
+        try (BufferedReader reader = Files.newBufferedReader(journalFile, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                try {
+                    apply(objectMapper.readTree(line));
+                } catch (IOException | RuntimeException ex) {
+                    LOGGER.error("Error= {} while replaying metadata journal, records after line {} are dropped.",
+                            ex.getMessage(), lineNumber - 1);
+                    return;
+                }
+            }
+        }
+    }
+
+    private void apply(final JsonNode record) throws IOException {
+        final String op = record.get("op").asText();
+        switch (op) {
+            case "put":
+                final Image image = objectMapper.treeToValue(record.get("image"), Image.class);
+                images.put(image.getImageId(), image);
+                break;
+            case "delete":
+                images.remove(record.get("imageId").asText());
+                break;
+            case "ref":
+                references.put(record.get("contentHash").asText(), record.get("count").asLong());
+                break;
+            case "unref":
+                references.remove(record.get("contentHash").asText());
+                break;
+            default:
+                throw new IOException("Unknown journal record [" + op + "]");
+        }
+    }
+
+    // Rewrites the journal with the current state only, swapped in atomically
+    private void compact(final Path journalFile) throws IOException {
+        final Path compacted = journalFile.resolveSibling(JOURNAL_FILE + ".tmp");
+        try (FileChannel channel = FileChannel.open(compacted, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            for (Image image : images.values()) {
+                write(channel, Collections.singletonList(putRecord(image)));
+            }
+            for (Map.Entry<String, Long> reference : references.entrySet()) {
+                write(channel, Collections.singletonList(countRecord(reference.getKey(), reference.getValue())));
+            }
+            channel.force(true);
+        }
+        Files.move(compacted, journalFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /*
+     * Reads are served from memory, the journal write is the only storage call worth timing.
+     * A failed write is cut off again: replay stops at the first unreadable line, a torn
+     * fragment would drop every record appended after it.
+     * */
+    private void append(final List<ObjectNode> records) {
+        if (journalBroken) {
+            throw new IllegalStateException("Failed to write metadata journal, an earlier write could not be undone");
+        }
+        metrics.run("local", "journal_append", () -> {
+            long size = -1;
+            try {
+                size = journal.size();
+                write(journal, records);
+                if (fsync) {
+                    journal.force(false);
+                }
+            } catch (IOException ex) {
+                LOGGER.error("Error= {} while writing metadata journal.", ex.getMessage());
+                truncate(size);
+                throw new IllegalStateException("Failed to write metadata journal", ex);
+            }
+        });
+        journalRecords += records.size();
+        compactIfMostlyDead();
+    }
+
+    // Callers hold the lock, so nothing is appended while the file is swapped
+    private void compactIfMostlyDead() {
+        final long live = images.size() + references.size();
+        final long dead = journalRecords - live;
+        if (dead <= Math.max(compactMinDeadRecords, live)) {
+            return;
+        }
+        try {
+            compact(journalFile);
+            // the old channel still points at the replaced file, the next write goes to the compacted one
+            final FileChannel compacted = FileChannel.open(journalFile, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            journal.close();
+            journal = compacted;
+            journalRecords = live;
+            LOGGER.info("Metadata journal compacted, {} superseded records dropped.", dead);
+        } catch (IOException ex) {
+            // the old journal is complete, the next append tries again
+            LOGGER.error("Error= {} while compacting metadata journal.", ex.getMessage());
+        }
+    }
+
+    private void truncate(final long size) {
+        if (size < 0) {
+            return;
+        }
+        try {
+            journal.truncate(size);
+        } catch (IOException ex) {
+            journalBroken = true;
+            LOGGER.error("Error= {} while undoing a failed metadata journal write, the journal is not written to until restart.",
+                    ex.getMessage());
+        }
+    }
+
+    private void write(final FileChannel channel, final List<ObjectNode> records) throws IOException {
+        final StringBuilder lines = new StringBuilder();
+        for (ObjectNode record : records) {
+            // JSON strings escape line breaks, a record is always a single line
+            lines.append(objectMapper.writeValueAsString(record)).append('\n');
+        }
+        final ByteBuffer buffer = ByteBuffer.wrap(lines.toString().getBytes(StandardCharsets.UTF_8));
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private ObjectNode putRecord(final Image image) {
+        final ObjectNode record = objectMapper.createObjectNode();
+        record.put("op", "put");
+        record.set("image", objectMapper.valueToTree(image));
+        return record;
+    }
+
+    private ObjectNode countRecord(final String contentHash, final long count) {
+        final ObjectNode record = objectMapper.createObjectNode();
+        record.put("op", "ref");
+        record.put("contentHash", contentHash);
+        record.put("count", count);
+        return record;
+    }
+
+    private Image copy(final Image image) {
+        return objectMapper.convertValue(image, Image.class);
+    }
+}
@@ -0,0 +1,205 @@
+package com.mrg.aws.storage;
+
+import com.mrg.aws.metrics.StorageMetrics;
+import com.mrg.aws.model.FileImageStream;
+import com.mrg.aws.model.ImageStream;
+import com.mrg.aws.model.StoredObject;
+import com.mrg.aws.util.RangeUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.http.HttpRange;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+import org.springframework.web.server.ResponseStatusException;
+
+import javax.annotation.PostConstruct;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Objects;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/*
+ * Objects as files under storage.local.directory/objects, one file per key. Writes go
+ * to a temp file that is moved into place once complete, so a reader never sees a
+ * partial object. Reads are served with FileChannel.transferTo (see FileImageStream).
+ * */
+@Component
+@ConditionalOnProperty(name = "storage.type", havingValue = "local")
+public class LocalObjectStorage implements ObjectStorage {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(LocalObjectStorage.class);
+
+    private static final String BACKEND = "local";
+    private static final String TEMP_SUFFIX = ".tmp";
+    // ids, content hashes and variant keys; anything else could escape the directory
+    private static final Pattern KEY_PATTERN = Pattern.compile("[A-Za-z0-9_-][A-Za-z0-9._-]*");
+
+    @Value("${storage.local.directory}")
+    private String directoryName;
+
+    private Path directory;
+    private StorageMetrics metrics;
+
+    @Autowired
+    public LocalObjectStorage(StorageMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    @PostConstruct
+    public void init() throws IOException {
+        directory = Files.createDirectories(Paths.get(directoryName, "objects"));
+        // leftovers of writes interrupted by a crash
+        try (Stream<Path> files = Files.list(directory)) {
+            files.filter(file -> file.getFileName().toString().endsWith(TEMP_SUFFIX))
+                    .forEach(this::deleteQuietly);
+        }
+        LOGGER.info("Local object storage at {}", directory);
+    }
+
+    @Override
+    public void put(final String key, final InputStream content, final long contentLength,
+                    final String contentType) throws Exception {
+        metrics.recordChecked(BACKEND, "put_object", () -> {
+            write(key, content, contentLength);
+            return null;
+        });
+    }
+
+    private void write(final String key, final InputStream content, final long contentLength) throws IOException {
+        final Path target = path(key);
+        final Path tempFile = Files.createTempFile(directory, key, TEMP_SUFFIX);
+        try {
+            final long written = Files.copy(content, tempFile, StandardCopyOption.REPLACE_EXISTING);
+            if (written != contentLength) {
+                throw new IOException("Expected " + contentLength + " bytes for [" + key + "], got " + written);
+            }
+            Files.move(tempFile, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException ex) {
+            deleteQuietly(tempFile);
+            throw ex;
+        }
+    }
+
+    @Override
+    public ImageStream get(final String key, final HttpRange range) {
+        return metrics.record(BACKEND, "get_object", () -> open(key, range));
+    }
+
+    private ImageStream open(final String key, final HttpRange range) {
+        final FileChannel channel;
+        try {
+            channel = FileChannel.open(path(key), StandardOpenOption.READ);
+        } catch (NoSuchFileException e) {
+            throw new ResponseStatusException(HttpStatus.NOT_FOUND, "Image not found [" + key + "]", e);
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to read file +[" + key + "]", e);
+        }
+        try {
+            final long size = channel.size();
+            if (range == null) {
+                return new FileImageStream(channel, 0, size, null);
+            }
+            final long[] bounds = RangeUtils.resolve(key, range, size);
+            return new FileImageStream(channel, bounds[0], bounds[1] - bounds[0] + 1, RangeUtils.contentRange(bounds, size));
+        } catch (IOException e) {
+            closeQuietly(channel);
+            throw new IllegalStateException("Failed to read file +[" + key + "]", e);
+        } catch (RuntimeException e) {
+            closeQuietly(channel);
+            throw e;
+        }
+    }
+
+    @Override
+    public boolean exists(final String key) {
+        return Files.exists(path(key));
+    }
+
+    @Override
+    public long size(final String key) {
+        return metrics.record(BACKEND, "head_object", () -> {
+            try {
+                return Files.size(path(key));
+            } catch (NoSuchFileException e) {
+                throw new ResponseStatusException(HttpStatus.NOT_FOUND, "Image not found [" + key + "]", e);
+            } catch (IOException e) {
+                throw new IllegalStateException("Failed to read file +[" + key + "]", e);
+            }
+        });
+    }
+
+    @Override
+    public void delete(final String key) {
+        metrics.run(BACKEND, "delete_object", () -> {
+            try {
+                Files.deleteIfExists(path(key));
+            } catch (IOException e) {
+                throw new IllegalStateException("Failed to delete file +[" + key + "]", e);
+            }
+        });
+    }
+
+    // Objects being written (temp files) are not listed
+    @Override
+    public Stream<StoredObject> list() {
+        try {
+            return metrics.recordScan(BACKEND, Files.list(directory)
+                    .filter(file -> !file.getFileName().toString().endsWith(TEMP_SUFFIX))
+                    .map(this::storedObject)
+                    .filter(Objects::nonNull));
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to list files +[" + directory + "]", e);
+        }
+    }
+
+    private StoredObject storedObject(final Path file) {
+        try {
+            return new StoredObject(file.getFileName().toString(), Files.getLastModifiedTime(file).toInstant());
+        } catch (NoSuchFileException e) {
+            // deleted since it was listed
+            return null;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public boolean isRemote() {
+        return false;
+    }
+
+    private Path path(final String key) {
+        if (!KEY_PATTERN.matcher(key).matches()) {
+            throw new IllegalArgumentException("Invalid object key [" + key + "]");
+        }
+        return directory.resolve(key);
+    }
+
+    private void deleteQuietly(final Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException ex) {
+            LOGGER.error("Error= {} while deleting file {}", ex.getMessage(), file);
+        }
+    }
+
+    private static void closeQuietly(final FileChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException ex) {
+            // nothing was served from it
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package com.mrg.aws.storage;
+
+import com.mrg.aws.model.Image;
+import com.mrg.aws.model.ImagePage;
+
+import java.util.List;
+import java.util.stream.Stream;
+
+/*
+ * Where image records and the reference counts of deduplicated content live,
+ * selected with storage.type.
+ * */
+public interface MetadataStorage {
+	void put(Image image);
+
+	// Returns the images that could not be written
+	List<Image> putAll(List<Image> images);
+
+	Image get(String imageId);
+
+	// Returns the deleted image, null when there was none
+	Image delete(String imageId);
+
+	// Writes the non null attributes of an existing record only, the rest of it is left as it is.
+	// Returns false (and writes nothing) when there is no record, e.g. it was deleted meanwhile
+	boolean update(Image image);
+
+	// Lazy, records are read while the stream is consumed
+	Stream<Image> findAll();
+
+	ImagePage findPage(int pageSize, String cursor);
+
+	// Adds delta to the reference count of the content and returns the new count
+	long addReferences(String contentHash, long delta);
+
+	// Removes the count record unless the content was referenced again meanwhile
+	boolean removeReferences(String contentHash);
+}
@@ -0,0 +1,40 @@
+package com.mrg.aws.storage;
+
+import com.mrg.aws.model.ImageStream;
+import com.mrg.aws.model.StoredObject;
+import org.springframework.http.HttpRange;
+
+import java.io.InputStream;
+import java.util.List;
+import java.util.stream.Stream;
+
+/*
+ * Where image bytes (originals and variants) live, selected with storage.type.
+ * get and size throw ResponseStatusException 404 for a missing key, get throws 416
+ * for a range that cannot be served.
+ * */
+public interface ObjectStorage {
+	void put(String key, InputStream content, long contentLength, String contentType) throws Exception;
+	ImageStream get(String key, HttpRange range);
+	// Throws 409 when the object's ETag is no longer expectedETag (null accepts any content)
+	default ImageStream get(String key, HttpRange range, String expectedETag) {
+		return get(key, range);
+	}
+	boolean exists(String key);
+	// Without reading the content
+	long size(String key);
+	void delete(String key);
+
+	// Lazy, keys are listed while the stream is consumed; the stream must be closed
+	Stream<StoredObject> list();
+
+	// Backends with a bulk delete send the keys in one request (S3 takes at most 1000)
+	default void deleteAll(List<String> keys) {
+		keys.forEach(this::delete);
+	}
+
+	// Remote objects are worth keeping in ImageCache, local ones are served from disk already
+	default boolean isRemote() {
+		return true;
+	}
+}
@@ -0,0 +1,170 @@
+package com.mrg.aws.storage;
+
+import com.mrg.aws.metrics.StorageMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.AbortMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.CompleteMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.CompletedMultipartUpload;
+import software.amazon.awssdk.services.s3.model.CompletedPart;
+import software.amazon.awssdk.services.s3.model.CreateMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.UploadPartRequest;
+
+import javax.annotation.PostConstruct;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicReference;
+
+/*
+ * Uploads large images as S3 multipart uploads. Parts are read sequentially from the
+ * request stream and sent concurrently on a bounded pool; at most "concurrency" parts
+ * of one upload are buffered at a time so heap use per upload is capped at
+ * concurrency * partSize. Any failure aborts the upload so no parts are left billed.
+ * */
+@Component
+@ConditionalOnProperty(name = "storage.type", havingValue = "aws", matchIfMissing = true)
+public class S3MultipartUploader {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(S3MultipartUploader.class);
+
+    // S3 rejects parts smaller than 5 MB, except for the last one
+    private static final int MIN_PART_SIZE = 5 * 1024 * 1024;
+
+    @Value("${aws.s3.multipart.part-size}")
+    private int partSize;
+    @Value("${aws.s3.multipart.concurrency}")
+    private int concurrency;
+
+    private S3Client s3Client;
+    private ExecutorService executor;
+    private StorageMetrics metrics;
+
+    @Autowired
+    public S3MultipartUploader(S3Client s3Client, @Qualifier("multipartUploadExecutor") ExecutorService executor,
+                               StorageMetrics metrics) {
+        this.s3Client = s3Client;
+        this.executor = executor;
+        this.metrics = metrics;
+    }
+
+    @PostConstruct
+    public void validate() {
+        if (partSize < MIN_PART_SIZE) {
+            throw new IllegalStateException("Multipart part size must be at least " + MIN_PART_SIZE + " bytes");
+        }
+    }
+
+    public void upload(final String bucketName, final String key, final InputStream inputStream,
+                       final long contentLength) throws Exception {
+        LOGGER.info("Multipart upload started for key= {} size= {}", key, contentLength);
+        final String uploadId = metrics.record("s3", "create_multipart_upload",
+                () -> s3Client.createMultipartUpload(CreateMultipartUploadRequest.builder()
+                        .bucket(bucketName)
+                        .key(key)
+                        .build())).uploadId();
+
+        final List<Future<CompletedPart>> parts = new ArrayList<>();
+        final Semaphore inFlight = new Semaphore(concurrency);
+        final AtomicReference<Exception> failure = new AtomicReference<>();
+        try {
+            final DataInputStream dataInputStream = new DataInputStream(inputStream);
+            long remaining = contentLength;
+            int partNumber = 1;
+            while (remaining > 0) {
+                // a permit covers the part's buffer from allocation to upload, not only the upload
+                inFlight.acquire();
+                if (failure.get() != null) {
+                    inFlight.release();
+                    throw failure.get();
+                }
+                final byte[] part;
+                try {
+                    part = new byte[(int) Math.min(partSize, remaining)];
+                    dataInputStream.readFully(part);
+                } catch (IOException | RuntimeException | Error ex) {
+                    inFlight.release();
+                    throw ex;
+                }
+                remaining -= part.length;
+
+                final int number = partNumber++;
+                parts.add(executor.submit(() -> {
+                    try {
+                        return uploadPart(bucketName, key, uploadId, number, part);
+                    } catch (Exception ex) {
+                        failure.compareAndSet(null, ex);
+                        throw ex;
+                    } finally {
+                        inFlight.release();
+                    }
+                }));
+            }
+
+            final List<CompletedPart> completedParts = new ArrayList<>(parts.size());
+            for (Future<CompletedPart> part : parts) {
+                completedParts.add(part.get());
+            }
+            metrics.record("s3", "complete_multipart_upload", () -> s3Client.completeMultipartUpload(CompleteMultipartUploadRequest.builder()
+                    .bucket(bucketName)
+                    .key(key)
+                    .uploadId(uploadId)
+                    .multipartUpload(CompletedMultipartUpload.builder().parts(completedParts).build())
+                    .build()));
+            LOGGER.info("Multipart upload is completed for key= {} with {} parts.", key, completedParts.size());
+
+        } catch (Exception ex) {
+            LOGGER.error("Error= {} during multipart upload of key= {}", ex.getMessage(), key);
+            parts.forEach(part -> part.cancel(true));
+            abort(bucketName, key, uploadId);
+            if (ex instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+            throw ex instanceof ExecutionException && ex.getCause() instanceof Exception ? (Exception) ex.getCause() : ex;
+        }
+    }
+
+    private CompletedPart uploadPart(String bucketName, String key, String uploadId, int partNumber, byte[] part) {
+        UploadPartRequest uploadPartRequest = UploadPartRequest.builder()
+                .bucket(bucketName)
+                .key(key)
+                .uploadId(uploadId)
+                .partNumber(partNumber)
+                .contentLength((long) part.length)
+                .build();
+        // fromBytes would copy the part once more, a ByteArrayInputStream is markable for retries as it is
+        String eTag = metrics.record("s3", "upload_part", () -> s3Client.uploadPart(uploadPartRequest,
+                RequestBody.fromInputStream(new ByteArrayInputStream(part), part.length))).eTag();
+        return CompletedPart.builder()
+                .partNumber(partNumber)
+                .eTag(eTag)
+                .build();
+    }
+
+    private void abort(String bucketName, String key, String uploadId) {
+        try {
+            metrics.record("s3", "abort_multipart_upload", () -> s3Client.abortMultipartUpload(AbortMultipartUploadRequest.builder()
+                    .bucket(bucketName)
+                    .key(key)
+                    .uploadId(uploadId)
+                    .build()));
+            LOGGER.info("Multipart upload is aborted for key= {}", key);
+        } catch (Exception ex) {
+            LOGGER.error("Multipart upload abort failed for key= {}. Error = {}", key, ex.getMessage());
+        }
+    }
+}
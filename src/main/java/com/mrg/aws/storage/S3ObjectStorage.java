@@ -0,0 +1,197 @@
+package com.mrg.aws.storage;
+
+import com.mrg.aws.metrics.StorageMetrics;
+import com.mrg.aws.model.ImageStream;
+import com.mrg.aws.model.StoredObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.http.HttpRange;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+import org.springframework.web.server.ResponseStatusException;
+import software.amazon.awssdk.core.ResponseInputStream;
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.Delete;
+import software.amazon.awssdk.services.s3.model.DeleteObjectRequest;
+import software.amazon.awssdk.services.s3.model.DeleteObjectsRequest;
+import software.amazon.awssdk.services.s3.model.DeleteObjectsResponse;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+import software.amazon.awssdk.services.s3.model.HeadObjectRequest;
+import software.amazon.awssdk.services.s3.model.ListObjectsV2Request;
+import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
+import software.amazon.awssdk.services.s3.model.ObjectIdentifier;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+import software.amazon.awssdk.services.s3.model.S3Exception;
+
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+@Component
+@ConditionalOnProperty(name = "storage.type", havingValue = "aws", matchIfMissing = true)
+public class S3ObjectStorage implements ObjectStorage {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(S3ObjectStorage.class);
+
+    private static final String BACKEND = "s3";
+
+    @Value("${aws.s3.bucket}")
+    private String bucketName;
+    @Value("${aws.s3.multipart.threshold}")
+    private long multipartThreshold;
+
+    private S3Client s3Client;
+    private S3MultipartUploader multipartUploader;
+    private StorageMetrics metrics;
+
+    @Autowired
+    public S3ObjectStorage(S3Client s3Client, S3MultipartUploader multipartUploader, StorageMetrics metrics) {
+        this.s3Client = s3Client;
+        this.multipartUploader = multipartUploader;
+        this.metrics = metrics;
+    }
+
+    @Override
+    public void put(final String key, final InputStream content, final long contentLength,
+                    final String contentType) throws Exception {
+        if (contentLength > multipartThreshold) {
+            metrics.recordChecked(BACKEND, "multipart_upload", () -> {
+                multipartUploader.upload(bucketName, key, content, contentLength);
+                return null;
+            });
+        } else {
+            PutObjectRequest objectRequest = PutObjectRequest.builder()
+                    .bucket(bucketName)
+                    .key(key)
+                    .contentType(contentType)
+                    .build();
+            metrics.record(BACKEND, "put_object",
+                    () -> s3Client.putObject(objectRequest, RequestBody.fromInputStream(content, contentLength)));
+        }
+    }
+
+    // Times the request up to the response headers, the body is timed by the download it is streamed to
+    @Override
+    public ImageStream get(final String key, final HttpRange range) {
+        return get(key, range, null);
+    }
+
+    @Override
+    public ImageStream get(final String key, final HttpRange range, final String expectedETag) {
+        return metrics.record(BACKEND, "get_object", () -> getObject(key, range, expectedETag));
+    }
+
+    private ImageStream getObject(final String key, final HttpRange range, final String expectedETag) {
+        try {
+            GetObjectRequest.Builder getObjectRequest = GetObjectRequest.builder()
+                    .bucket(bucketName)
+                    .key(key)
+                    .ifMatch(expectedETag);
+            if (range != null) {
+                // S3 resolves open ended and suffix ranges against the object size itself
+                getObjectRequest.range(HttpRange.toString(Collections.singletonList(range)));
+            }
+            // Only the response headers are read here, the body stays on the connection until it is streamed
+            ResponseInputStream<GetObjectResponse> result = s3Client.getObject(getObjectRequest.build());
+            GetObjectResponse response = result.response();
+            return new ImageStream(result, response.contentLength(), response.contentType(), response.contentRange());
+
+        } catch (NoSuchKeyException e) {
+            throw new ResponseStatusException(HttpStatus.NOT_FOUND, "Image not found [" + key + "]", e);
+        } catch (S3Exception e) {
+            if (e.statusCode() == HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE.value()) {
+                throw new ResponseStatusException(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE,
+                        "Requested range cannot be served for [" + key + "]", e);
+            }
+            if (e.statusCode() == HttpStatus.PRECONDITION_FAILED.value()) {
+                LOGGER.error("Error= object {} was overwritten after it was recorded, it is not served.", key);
+                throw new ResponseStatusException(HttpStatus.CONFLICT,
+                        "Image was overwritten after it was recorded [" + key + "]", e);
+            }
+            throw new IllegalStateException("Failed to download file from s3 +[" + key + "]", e);
+        } catch (Exception e) {
+            throw new IllegalStateException("Failed to download file from s3 +[" + key + "]", e);
+        }
+    }
+
+    @Override
+    public boolean exists(final String key) {
+        return metrics.record(BACKEND, "head_object", () -> {
+            try {
+                s3Client.headObject(HeadObjectRequest.builder()
+                        .bucket(bucketName)
+                        .key(key)
+                        .build());
+                return true;
+            } catch (NoSuchKeyException ex) {
+                return false;
+            }
+        });
+    }
+
+    @Override
+    public long size(final String key) {
+        return metrics.record(BACKEND, "head_object", () -> {
+            try {
+                return s3Client.headObject(HeadObjectRequest.builder()
+                        .bucket(bucketName)
+                        .key(key)
+                        .build()).contentLength();
+            } catch (NoSuchKeyException e) {
+                throw new ResponseStatusException(HttpStatus.NOT_FOUND, "Image not found [" + key + "]", e);
+            }
+        });
+    }
+
+    @Override
+    public void delete(final String key) {
+        metrics.record(BACKEND, "delete_object", () -> s3Client.deleteObject(DeleteObjectRequest.builder()
+                .bucket(bucketName)
+                .key(key)
+                .build()));
+        LOGGER.info("Object {} is deleted from S3.", key);
+    }
+
+    // Listed 1000 keys per request while the stream is consumed
+    @Override
+    public Stream<StoredObject> list() {
+        return metrics.recordScan(BACKEND, s3Client.listObjectsV2Paginator(ListObjectsV2Request.builder()
+                .bucket(bucketName)
+                .build())
+                .contents()
+                .stream()
+                .map(object -> new StoredObject(object.key(), object.lastModified())));
+    }
+
+    @Override
+    public void deleteAll(final List<String> keys) {
+        if (keys.isEmpty()) {
+            return;
+        }
+        final DeleteObjectsRequest request = DeleteObjectsRequest.builder()
+                .bucket(bucketName)
+                .delete(Delete.builder()
+                        .objects(keys.stream()
+                                .map(key -> ObjectIdentifier.builder().key(key).build())
+                                .collect(Collectors.toList()))
+                        .quiet(true)
+                        .build())
+                .build();
+        final DeleteObjectsResponse response = metrics.record(BACKEND, "delete_objects", () -> s3Client.deleteObjects(request));
+        // quiet mode, only the keys that failed are reported
+        if (!response.errors().isEmpty()) {
+            response.errors().forEach(error -> LOGGER.error("Error= {} while deleting object {} from S3.",
+                    error.message(), error.key()));
+            throw new IllegalStateException("Failed to delete " + response.errors().size() + " of " + keys.size()
+                    + " objects from s3");
+        }
+        LOGGER.info("{} objects are deleted from S3.", keys.size());
+    }
+}
@@ -0,0 +1,47 @@
+package com.mrg.aws.util;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.server.ResponseStatusException;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Map;
+
+/*
+ * The page cursor is the partition key of the last evaluated item, url safe base64
+ * encoded so clients treat it as an opaque token.
+ * */
+public class CursorUtils {
+
+    private static final String KEY_ATTRIBUTE = "ImageId";
+
+    public static String encode(final Map<String, AttributeValue> lastEvaluatedKey) {
+        if (lastEvaluatedKey == null || !lastEvaluatedKey.containsKey(KEY_ATTRIBUTE)) {
+            return null;
+        }
+        return encode(lastEvaluatedKey.get(KEY_ATTRIBUTE).s());
+    }
+
+    public static Map<String, AttributeValue> decode(final String cursor) {
+        final String imageId = decodeImageId(cursor);
+        return imageId == null ? null : Collections.singletonMap(KEY_ATTRIBUTE, AttributeValue.builder().s(imageId).build());
+    }
+
+    // Local storage pages by image id as well and uses the same token
+    public static String encode(final String imageId) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(imageId.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public static String decodeImageId(final String cursor) {
+        if (cursor == null || cursor.isEmpty()) {
+            return null;
+        }
+        try {
+            return new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+        } catch (IllegalArgumentException ex) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Invalid cursor [" + cursor + "]", ex);
+        }
+    }
+}
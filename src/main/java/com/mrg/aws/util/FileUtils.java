@@ -3,30 +3,16 @@ package com.mrg.aws.util;
 import org.springframework.util.StringUtils;
 import org.springframework.web.multipart.MultipartFile;
 
-import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 
 public class FileUtils {
 
-    public static File convertMultiPartFileToFile(final MultipartFile multipartFile) throws Exception {
-        final File file = new File(multipartFile.getOriginalFilename());
-        try(final FileOutputStream outputStream = new FileOutputStream(file)) {
-            outputStream.write(multipartFile.getBytes());
-        } catch (final IOException ex) {
-            System.out.println("IO exception occurred");
-            throw ex;
-        }
-        return file;
-    }
-
-    public static void deleteIfExist(File file){
-        if(file!=null){
-            boolean isDeleted = file.delete();
-            if(isDeleted) System.out.print("File is deleted");
-            else System.out.print("File cannot be deleted");
-        }
-    }
+    // Fixed copy buffer, keeps heap use per request constant whatever the image size is
+    public static final int BUFFER_SIZE = 8 * 1024;
 
     public static boolean isFileNotEmpty(final MultipartFile file) {
         if (file==null || file.isEmpty() ) {
@@ -37,4 +23,34 @@ public class FileUtils {
         }
         return true;
     }
+
+    public static long copy(final InputStream inputStream, final OutputStream outputStream) throws IOException {
+        final byte[] buffer = new byte[BUFFER_SIZE];
+        long total = 0;
+        int read;
+        while ((read = inputStream.read(buffer)) != -1) {
+            outputStream.write(buffer, 0, read);
+            total += read;
+        }
+        return total;
+    }
+
+    public static String sha256Hex(final InputStream inputStream) throws IOException {
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException("SHA-256 is not available", ex);
+        }
+        final byte[] buffer = new byte[BUFFER_SIZE];
+        int read;
+        while ((read = inputStream.read(buffer)) != -1) {
+            digest.update(buffer, 0, read);
+        }
+        final StringBuilder hex = new StringBuilder(64);
+        for (byte b : digest.digest()) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
 }
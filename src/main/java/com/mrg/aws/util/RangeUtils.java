@@ -0,0 +1,26 @@
+package com.mrg.aws.util;
+
+import org.springframework.http.HttpRange;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.server.ResponseStatusException;
+
+/*
+ * Resolves a requested byte range against the length of content served locally
+ * (cache tiers, local storage). S3 resolves ranges itself.
+ * */
+public class RangeUtils {
+
+    // Returns the first and last byte position, both inclusive
+    public static long[] resolve(final String key, final HttpRange range, final long length) {
+        try {
+            return new long[]{range.getRangeStart(length), range.getRangeEnd(length)};
+        } catch (IllegalArgumentException ex) {
+            throw new ResponseStatusException(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE,
+                    "Requested range cannot be served for [" + key + "]", ex);
+        }
+    }
+
+    public static String contentRange(final long[] bounds, final long length) {
+        return "bytes " + bounds[0] + "-" + bounds[1] + "/" + length;
+    }
+}
@@ -0,0 +1,49 @@
+package com.mrg.aws.admission;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpHeaders;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class ByteBudgetTest {
+
+	@Test
+	void rejectsWithRetryAfterOnceTheBudgetIsTaken() {
+		SimpleMeterRegistry registry = new SimpleMeterRegistry();
+		ByteBudget budget = budget(registry, 10 * 1024);
+
+		ByteBudget.Permit first = budget.acquire(6 * 1024, "upload");
+		assertThat(budget.inFlightBytes()).isEqualTo(6 * 1024);
+		assertThatThrownBy(() -> budget.acquire(6 * 1024, "download"))
+				.isInstanceOfSatisfying(AdmissionRejectedException.class, ex ->
+						assertThat(ex.getResponseHeaders().getFirst(HttpHeaders.RETRY_AFTER)).isEqualTo("5"));
+		assertThat(registry.counter("image.admission.rejections", "direction", "download").count()).isEqualTo(1);
+
+		first.close();
+		first.close();
+		assertThat(budget.inFlightBytes()).isZero();
+	}
+
+	@Test
+	void admitsATransferLargerThanTheBudgetAlone() {
+		ByteBudget budget = budget(new SimpleMeterRegistry(), 10 * 1024);
+
+		try (ByteBudget.Permit large = budget.acquire(100 * 1024, "upload")) {
+			assertThat(budget.inFlightBytes()).isEqualTo(10 * 1024);
+			assertThatThrownBy(() -> budget.acquire(1, "upload")).isInstanceOf(AdmissionRejectedException.class);
+		}
+		budget.acquire(1, "upload").close();
+	}
+
+	private static ByteBudget budget(SimpleMeterRegistry registry, long maxBytes) {
+		ByteBudget budget = new ByteBudget(registry);
+		ReflectionTestUtils.setField(budget, "maxBytes", maxBytes);
+		ReflectionTestUtils.setField(budget, "maxWaitMillis", 10L);
+		ReflectionTestUtils.setField(budget, "retryAfterSeconds", 5L);
+		budget.init();
+		return budget;
+	}
+}
@@ -0,0 +1,97 @@
+package com.mrg.aws.cache;
+
+import com.mrg.aws.model.ImageStream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.http.HttpRange;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.util.StreamUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.file.Path;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class ImageCacheTest {
+
+	@TempDir
+	Path directory;
+
+	@Test
+	void servesWholeObjectsAndRangesFromBothTiers() throws Exception {
+		ImageCache cache = cache(1024, 16, 4096, 4096);
+		read(cache.tee("small", new ByteArrayInputStream("0123456789".getBytes()), 10));
+		read(cache.tee("large", new ByteArrayInputStream(new byte[100]), 100));
+
+		assertThat(write(cache.get("small", null))).isEqualTo("0123456789");
+		ImageStream range = cache.get("small", HttpRange.createByteRange(2, 4));
+		assertThat(range.getContentRange()).isEqualTo("bytes 2-4/10");
+		assertThat(write(range)).isEqualTo("234");
+
+		ImageStream file = cache.get("large", HttpRange.createSuffixRange(10));
+		assertThat(file.getContentLength()).isEqualTo(10);
+		assertThat(file.getContentRange()).isEqualTo("bytes 90-99/100");
+		assertThat(cache.stats()).containsEntry("heap.hits", 2L).containsEntry("disk.hits", 1L);
+	}
+
+	@Test
+	void evictsLeastRecentlyUsedAndSkipsAbortedDownloads() throws Exception {
+		ImageCache cache = cache(0, 0, 200, 200);
+		read(cache.tee("a", new ByteArrayInputStream(new byte[100]), 100));
+		read(cache.tee("b", new ByteArrayInputStream(new byte[100]), 100));
+		read(cache.tee("c", new ByteArrayInputStream(new byte[100]), 100));
+		cache.tee("d", new ByteArrayInputStream(new byte[100]), 100).close();
+
+		assertThat(cache.get("a", null)).isNull();
+		assertThat(cache.get("c", null)).isNotNull();
+		assertThat(cache.get("d", null)).isNull();
+		assertThat(cache.stats()).containsEntry("disk.evictions", 1L).containsEntry("disk.bytes", 200L);
+	}
+
+	@Test
+	void downloadStartedBeforeAnEvictionDoesNotCacheTheObject() throws Exception {
+		ImageCache cache = cache(1024, 16, 4096, 4096);
+		InputStream small = cache.tee("small", new ByteArrayInputStream("0123456789".getBytes()), 10);
+		InputStream large = cache.tee("large", new ByteArrayInputStream(new byte[100]), 100);
+		small.read(new byte[4]);
+		large.read(new byte[40]);
+
+		cache.evict("small");
+		cache.evict("large");
+		read(small);
+		read(large);
+
+		assertThat(cache.get("small", null)).isNull();
+		assertThat(cache.get("large", null)).isNull();
+		read(cache.tee("small", new ByteArrayInputStream("0123456789".getBytes()), 10));
+		assertThat(write(cache.get("small", null))).isEqualTo("0123456789");
+	}
+
+	private ImageCache cache(long heapMax, long heapEntryMax, long diskMax, long diskEntryMax) throws Exception {
+		ImageCache cache = new ImageCache();
+		ReflectionTestUtils.setField(cache, "heapMaxBytes", heapMax);
+		ReflectionTestUtils.setField(cache, "heapMaxEntryBytes", heapEntryMax);
+		ReflectionTestUtils.setField(cache, "diskDirectory", directory.toString());
+		ReflectionTestUtils.setField(cache, "diskMaxBytes", diskMax);
+		ReflectionTestUtils.setField(cache, "diskMaxEntryBytes", diskEntryMax);
+		cache.init();
+		return cache;
+	}
+
+	private static void read(InputStream inputStream) throws Exception {
+		try (InputStream content = inputStream) {
+			StreamUtils.drain(content);
+		}
+	}
+
+	private static String write(ImageStream image) throws Exception {
+		ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+		try (ImageStream content = image) {
+			content.writeTo(outputStream);
+		}
+		return outputStream.toString();
+	}
+
+}
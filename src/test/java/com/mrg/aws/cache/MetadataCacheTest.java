@@ -0,0 +1,61 @@
+package com.mrg.aws.cache;
+
+import com.mrg.aws.model.Image;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class MetadataCacheTest {
+
+	@Test
+	void cachesUnknownIdsUntilWrittenThrough() {
+		MetadataCache cache = cache(10);
+		AtomicInteger loads = new AtomicInteger();
+
+		assertThat(cache.get("a", id -> { loads.incrementAndGet(); return null; })).isNull();
+		assertThat(cache.get("a", id -> { loads.incrementAndGet(); return null; })).isNull();
+		assertThat(loads).hasValue(1);
+
+		cache.put(image("a"));
+		assertThat(cache.get("a", id -> null).getImageId()).isEqualTo("a");
+		cache.evict("a");
+		assertThat(cache.get("a", id -> null)).isNull();
+		assertThat(cache.stats()).containsEntry("hits", 2L).containsEntry("misses", 2L);
+	}
+
+	@Test
+	void evictsLeastRecentlyUsedAndSkipsLoadsOverlappingAWrite() {
+		MetadataCache cache = cache(2);
+		cache.get("a", MetadataCacheTest::image);
+		cache.get("b", MetadataCacheTest::image);
+		cache.get("a", MetadataCacheTest::image);
+		cache.get("c", MetadataCacheTest::image);
+
+		assertThat(cache.get("b", id -> null)).isNull();
+		assertThat(cache.stats()).containsEntry("evictions", 2L);
+
+		// deleted while it was being read, the stale record must not be cached
+		cache.get("d", id -> {
+			cache.evict(id);
+			return image(id);
+		});
+		assertThat(cache.get("d", id -> null)).isNull();
+	}
+
+	private static MetadataCache cache(int maxEntries) {
+		MetadataCache cache = new MetadataCache();
+		ReflectionTestUtils.setField(cache, "maxEntries", maxEntries);
+		ReflectionTestUtils.setField(cache, "ttlMillis", 60000L);
+		ReflectionTestUtils.setField(cache, "negativeTtlMillis", 60000L);
+		return cache;
+	}
+
+	private static Image image(String imageId) {
+		Image image = new Image();
+		image.setImageId(imageId);
+		return image;
+	}
+}
@@ -0,0 +1,91 @@
+package com.mrg.aws.controller;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.mrg.aws.admission.ByteBudget;
+import com.mrg.aws.cache.ImageCache;
+import com.mrg.aws.cache.MetadataCache;
+import com.mrg.aws.model.ImageStream;
+import com.mrg.aws.model.ImageVersion;
+import com.mrg.aws.service.AWSService;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpHeaders;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+
+import java.io.ByteArrayInputStream;
+import java.util.UUID;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.head;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+class ImageDownloadValidatorsTest {
+
+	private static final UUID IMAGE_ID = UUID.randomUUID();
+	private static final String ETAG = "\"sha256-abc-w128\"";
+
+	private final AWSService service = mock(AWSService.class);
+	// planned from the metadata, the variant is not generated yet
+	private final ImageVersion pending = new ImageVersion(IMAGE_ID + "_w128", ETAG, "image/jpeg", null, IMAGE_ID.toString(), 128);
+	private MockMvc mockMvc;
+
+	@BeforeEach
+	void setUp() {
+		ImageOperationsController controller = new ImageOperationsController(service, new ObjectMapper(), new ImageCache(),
+				new MetadataCache(), new ByteBudget(new SimpleMeterRegistry()));
+		ReflectionTestUtils.setField(controller, "cacheMaxAge", 60L);
+		mockMvc = MockMvcBuilders.standaloneSetup(controller).build();
+		when(service.describe(IMAGE_ID, 100)).thenReturn(pending);
+	}
+
+	@Test
+	void answersAMatchingIfNoneMatchWithoutGeneratingTheVariant() throws Exception {
+		mockMvc.perform(get("/image/download/{id}", IMAGE_ID).param("w", "100").header(HttpHeaders.IF_NONE_MATCH, "W/" + ETAG))
+				.andExpect(status().isNotModified())
+				.andExpect(header().string(HttpHeaders.ETAG, ETAG));
+
+		verify(service, never()).resolve(any());
+		verify(service, never()).download(any(), any());
+	}
+
+	@Test
+	void answersHeadWithoutGeneratingTheVariant() throws Exception {
+		mockMvc.perform(head("/image/download/{id}", IMAGE_ID).param("w", "100"))
+				.andExpect(status().isOk())
+				.andExpect(header().string(HttpHeaders.ETAG, ETAG))
+				.andExpect(header().string(HttpHeaders.CONTENT_TYPE, "image/jpeg"))
+				.andExpect(header().doesNotExist(HttpHeaders.CONTENT_LENGTH));
+
+		verify(service, never()).resolve(any());
+	}
+
+	@Test
+	void generatesTheVariantOnARealRead() throws Exception {
+		// the original was not wider than 128, it is served under the same ETag
+		ImageVersion original = new ImageVersion(IMAGE_ID.toString(), ETAG, "image/png", 3L);
+		when(service.resolve(pending)).thenReturn(original);
+		when(service.download(eq(original), any())).thenReturn(new ImageStream(new ByteArrayInputStream("png".getBytes()), 3, "image/png", null));
+
+		MvcResult result = mockMvc.perform(get("/image/download/{id}", IMAGE_ID).param("w", "100").header(HttpHeaders.IF_NONE_MATCH, "\"other\""))
+				.andReturn();
+		mockMvc.perform(asyncDispatch(result))
+				.andExpect(status().isOk())
+				.andExpect(header().string(HttpHeaders.ETAG, ETAG))
+				.andExpect(header().string(HttpHeaders.CONTENT_TYPE, "image/png"))
+				.andExpect(content().string("png"));
+	}
+
+}
@@ -0,0 +1,85 @@
+package com.mrg.aws.index;
+
+import com.mrg.aws.model.Image;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class TagIndexTest {
+
+	@Test
+	void searchesWithAnyAllAndPrefix() {
+		TagIndex index = new TagIndex();
+		index.rebuild(Arrays.asList(image("1", "cat, Kitten"), image("2", "cat dog"), image("3", "doge")));
+
+		assertThat(ids(index.search(TagIndex.tokenize("cat"), TagIndex.Match.ANY, false))).containsExactlyInAnyOrder("1", "2");
+		assertThat(ids(index.search(TagIndex.tokenize("cat,dog"), TagIndex.Match.ALL, false))).containsExactly("2");
+		assertThat(ids(index.search(TagIndex.tokenize("kitten;doge"), TagIndex.Match.ANY, false))).containsExactlyInAnyOrder("1", "3");
+		assertThat(ids(index.search(TagIndex.tokenize("dog"), TagIndex.Match.ANY, true))).containsExactlyInAnyOrder("2", "3");
+	}
+
+	@Test
+	void keepsIndexCurrentOnAddAndRemove() {
+		TagIndex index = new TagIndex();
+		index.add(image("1", "cat"));
+		index.add(image("1", "dog"));
+
+		assertThat(index.search(TagIndex.tokenize("cat"), TagIndex.Match.ANY, false)).isEmpty();
+		assertThat(ids(index.search(TagIndex.tokenize("dog"), TagIndex.Match.ANY, false))).containsExactly("1");
+
+		index.remove("1");
+		assertThat(index.search(TagIndex.tokenize("dog"), TagIndex.Match.ANY, false)).isEmpty();
+		assertThat(index.size()).isZero();
+	}
+
+	@Test
+	void substringMatchesTheStoredTagsCaseSensitively() {
+		TagIndex index = new TagIndex();
+		index.rebuild(Arrays.asList(image("1", "tomcat"), image("2", "Cat"), image("3", "dog")));
+
+		assertThat(ids(index.searchSubstring("cat"))).containsExactly("1");
+		assertThat(ids(index.searchSubstring("og mca"))).isEmpty();
+		assertThat(index.search(TagIndex.tokenize("cat"), TagIndex.Match.ANY, false)).extracting(Image::getImageId).containsExactly("2");
+	}
+
+	@Test
+	void substringMatchesEveryTermWithinTheCanonicalTags() {
+		TagIndex index = new TagIndex();
+		index.rebuild(Arrays.asList(image("1", TagIndex.canonicalTags("dog cat")), image("2", TagIndex.canonicalTags("tomcat;dog"))));
+
+		assertThat(index.get("1").getTags()).isEqualTo("cat,dog");
+		assertThat(index.get("2").getTags()).isEqualTo("dog,tomcat");
+		assertThat(ids(index.searchSubstring("dog cat"))).containsExactlyInAnyOrder("1", "2");
+		assertThat(ids(index.searchSubstring("mca#do"))).containsExactly("2");
+		assertThat(ids(index.searchSubstring("cat,bird"))).isEmpty();
+	}
+
+	@Test
+	void handsOutCopies() {
+		TagIndex index = new TagIndex();
+		Image added = image("1", "cat");
+		index.add(added);
+		added.setTags("dog");
+		index.get("1").setTags("bird");
+		index.search(TagIndex.tokenize("cat"), TagIndex.Match.ANY, false).get(0).setFileName("changed");
+
+		assertThat(index.get("1").getTags()).isEqualTo("cat");
+		assertThat(index.get("1").getFileName()).isNull();
+	}
+
+	private static Image image(String imageId, String tags) {
+		Image image = new Image();
+		image.setImageId(imageId);
+		image.setTags(tags);
+		return image;
+	}
+
+	private static List<String> ids(List<Image> images) {
+		return images.stream().map(Image::getImageId).collect(Collectors.toList());
+	}
+
+}
@@ -0,0 +1,47 @@
+package com.mrg.aws.metrics;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class StorageMetricsTest {
+
+	private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+	private final StorageMetrics metrics = new StorageMetrics(registry);
+
+	@Test
+	void recordsAScanReadToTheEndWithoutClosingIt() {
+		assertThat(metrics.recordScan("local", Stream.of("a", "b")).collect(Collectors.toList())).containsExactly("a", "b");
+
+		assertThat(scans("success")).isEqualTo(1);
+		assertThat(registry.get("image.scan.items").summary().totalAmount()).isEqualTo(2);
+	}
+
+	@Test
+	void tagsAScanFailingMidwayAsError() {
+		Stream<String> items = Arrays.asList("a", "b").stream().map(item -> {
+			if (item.equals("b")) {
+				throw new IllegalStateException("page read failed");
+			}
+			return item;
+		});
+
+		try (Stream<String> scan = metrics.recordScan("dynamodb", items)) {
+			assertThatThrownBy(() -> scan.forEach(item -> { })).isInstanceOf(IllegalStateException.class);
+		}
+
+		assertThat(scans("error")).isEqualTo(1);
+		assertThat(registry.find(StorageMetrics.REQUESTS).tag("outcome", "success").timer()).isNull();
+	}
+
+	private long scans(String outcome) {
+		return registry.get(StorageMetrics.REQUESTS).tag("operation", "scan").tag("outcome", outcome).timer().count();
+	}
+
+}
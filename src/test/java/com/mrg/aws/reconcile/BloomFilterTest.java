@@ -0,0 +1,29 @@
+package com.mrg.aws.reconcile;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.UUID;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class BloomFilterTest {
+
+	@Test
+	void neverMissesAnAddedKeyAndRarelyMatchesOthers() {
+		BloomFilter filter = new BloomFilter(10000, 0.01, 42);
+		for (int i = 0; i < 10000; i++) {
+			filter.add("sha256-" + i);
+		}
+		for (int i = 0; i < 10000; i++) {
+			assertThat(filter.mightContain("sha256-" + i)).isTrue();
+		}
+
+		int falsePositives = 0;
+		for (int i = 0; i < 10000; i++) {
+			if (filter.mightContain(UUID.randomUUID().toString())) {
+				falsePositives++;
+			}
+		}
+		assertThat(falsePositives).isLessThan(300);
+	}
+}
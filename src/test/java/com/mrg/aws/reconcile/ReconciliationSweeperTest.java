@@ -0,0 +1,131 @@
+package com.mrg.aws.reconcile;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.mrg.aws.cache.ImageCache;
+import com.mrg.aws.metrics.StorageMetrics;
+import com.mrg.aws.model.Image;
+import com.mrg.aws.service.AWSService;
+import com.mrg.aws.service.ContentStore;
+import com.mrg.aws.storage.LocalMetadataStorage;
+import com.mrg.aws.storage.LocalObjectStorage;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.ByteArrayInputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+class ReconciliationSweeperTest {
+
+	private static final Instant OLD = Instant.now().minus(Duration.ofHours(2));
+
+	@TempDir
+	Path directory;
+
+	private final ExecutorService executor = Executors.newFixedThreadPool(2);
+	private final AWSService service = mock(AWSService.class);
+	private LocalMetadataStorage metadataStorage;
+	private LocalObjectStorage objectStorage;
+	private ReconciliationSweeper sweeper;
+
+	@BeforeEach
+	void setUp() throws Exception {
+		StorageMetrics metrics = new StorageMetrics(new SimpleMeterRegistry());
+		metadataStorage = new LocalMetadataStorage(new ObjectMapper(), metrics);
+		ReflectionTestUtils.setField(metadataStorage, "directoryName", directory.toString());
+		metadataStorage.init();
+		objectStorage = new LocalObjectStorage(metrics);
+		ReflectionTestUtils.setField(objectStorage, "directoryName", directory.toString());
+		objectStorage.init();
+		ImageCache imageCache = new ImageCache();
+		ContentStore contentStore = new ContentStore(objectStorage, metadataStorage, imageCache);
+		sweeper = new ReconciliationSweeper(objectStorage, metadataStorage, contentStore, imageCache, service,
+				new SimpleMeterRegistry(), executor);
+		ReflectionTestUtils.setField(sweeper, "gracePeriodMinutes", 60L);
+		ReflectionTestUtils.setField(sweeper, "deletesPerSecond", 0.0);
+		ReflectionTestUtils.setField(sweeper, "batchSize", 2);
+		ReflectionTestUtils.setField(sweeper, "expectedKeys", 1000L);
+		ReflectionTestUtils.setField(sweeper, "falsePositiveRate", 0.001);
+	}
+
+	@AfterEach
+	void tearDown() {
+		executor.shutdownNow();
+	}
+
+	@Test
+	void deletesOnlyOldUnreferencedObjects() throws Exception {
+		String referenced = UUID.randomUUID().toString();
+		metadataStorage.put(record(referenced, OLD));
+		store(referenced, OLD);
+		store("orphan-1", OLD);
+		store("orphan-2", OLD);
+		store("orphan-3", OLD);
+		store("young", Instant.now());
+		store(ContentStore.objectKeyOf("unreferenced"), OLD);
+		store(ContentStore.objectKeyOf("referenced"), OLD);
+		// an upload of these bytes whose record is not written yet
+		metadataStorage.addReferences("referenced", 1);
+
+		assertThat(sweeper.sweep()).isTrue();
+
+		assertThat(objectStorage.exists(referenced)).isTrue();
+		assertThat(objectStorage.exists("orphan-1")).isFalse();
+		assertThat(objectStorage.exists("orphan-2")).isFalse();
+		assertThat(objectStorage.exists("orphan-3")).isFalse();
+		assertThat(objectStorage.exists("young")).isTrue();
+		assertThat(objectStorage.exists(ContentStore.objectKeyOf("unreferenced"))).isFalse();
+		assertThat(objectStorage.exists(ContentStore.objectKeyOf("referenced"))).isTrue();
+		assertThat(metadataStorage.addReferences("referenced", 0)).isEqualTo(1);
+	}
+
+	@Test
+	void deletesOnlyRecordsCreatedBeforeTheGracePeriodWhoseObjectIsMissing() throws Exception {
+		String old = UUID.randomUUID().toString();
+		String legacy = UUID.randomUUID().toString();
+		// an async upload still sending its object
+		String uploading = UUID.randomUUID().toString();
+		String complete = UUID.randomUUID().toString();
+		metadataStorage.put(record(old, OLD));
+		metadataStorage.put(record(legacy, null));
+		metadataStorage.put(record(uploading, Instant.now()));
+		metadataStorage.put(record(complete, OLD));
+		store(complete, OLD);
+
+		assertThat(sweeper.sweep()).isTrue();
+
+		verify(service).deleteImage(UUID.fromString(old));
+		verify(service).deleteImage(UUID.fromString(legacy));
+		verify(service, never()).deleteImage(UUID.fromString(uploading));
+		verify(service, never()).deleteImage(UUID.fromString(complete));
+	}
+
+	private void store(String key, Instant lastModified) throws Exception {
+		byte[] content = key.getBytes();
+		objectStorage.put(key, new ByteArrayInputStream(content), content.length, "image/jpeg");
+		Files.setLastModifiedTime(directory.resolve("objects").resolve(key), FileTime.from(lastModified));
+	}
+
+	private static Image record(String imageId, Instant createdAt) {
+		Image image = new Image();
+		image.setImageId(imageId);
+		image.setCreatedAt(createdAt == null ? null : createdAt.toEpochMilli());
+		return image;
+	}
+
+}
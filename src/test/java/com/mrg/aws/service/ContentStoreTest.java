@@ -0,0 +1,104 @@
+package com.mrg.aws.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.mrg.aws.cache.ImageCache;
+import com.mrg.aws.metrics.StorageMetrics;
+import com.mrg.aws.storage.LocalMetadataStorage;
+import com.mrg.aws.storage.LocalObjectStorage;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.ByteArrayInputStream;
+import java.nio.file.Path;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class ContentStoreTest {
+
+	private static final String HASH = "abc123";
+
+	@TempDir
+	Path directory;
+
+	private LocalMetadataStorage metadataStorage;
+	private LocalObjectStorage objectStorage;
+	private ContentStore contentStore;
+
+	@BeforeEach
+	void setUp() throws Exception {
+		StorageMetrics metrics = new StorageMetrics(new SimpleMeterRegistry());
+		metadataStorage = new LocalMetadataStorage(new ObjectMapper(), metrics);
+		ReflectionTestUtils.setField(metadataStorage, "directoryName", directory.toString());
+		metadataStorage.init();
+		objectStorage = new LocalObjectStorage(metrics);
+		ReflectionTestUtils.setField(objectStorage, "directoryName", directory.toString());
+		objectStorage.init();
+		contentStore = new ContentStore(objectStorage, metadataStorage, new ImageCache());
+	}
+
+	@Test
+	void storesIdenticalUploadsOnce() throws Exception {
+		assertThat(contentStore.acquire(HASH)).isTrue();
+		store();
+
+		assertThat(contentStore.acquire(HASH)).isFalse();
+		assertThat(contentStore.acquire(HASH)).isFalse();
+		assertThat(metadataStorage.addReferences(HASH, 0)).isEqualTo(3);
+	}
+
+	@Test
+	void uploadsAgainWhenTheFirstUploadLeftNoObject() {
+		assertThat(contentStore.acquire(HASH)).isTrue();
+		// the first put failed and was not released yet
+		assertThat(contentStore.acquire(HASH)).isTrue();
+	}
+
+	@Test
+	void deletesTheObjectWithItsLastReference() throws Exception {
+		contentStore.acquire(HASH);
+		store();
+		contentStore.acquire(HASH);
+
+		contentStore.release(HASH);
+		assertThat(objectStorage.exists(ContentStore.objectKeyOf(HASH))).isTrue();
+
+		contentStore.release(HASH);
+		assertThat(objectStorage.exists(ContentStore.objectKeyOf(HASH))).isFalse();
+		// the count record is gone, not left at zero
+		assertThat(metadataStorage.removeReferences(HASH)).isTrue();
+		assertThat(contentStore.acquire(HASH)).isTrue();
+	}
+
+	@Test
+	void keepsTheObjectWhenReferencedAgainBeforeTheCountIsRemoved() throws Exception {
+		contentStore.acquire(HASH);
+		store();
+		metadataStorage.addReferences(HASH, -1);
+		// an upload of the same bytes references them between the decrement and the removal
+		metadataStorage.addReferences(HASH, 1);
+
+		assertThat(metadataStorage.removeReferences(HASH)).isFalse();
+		assertThat(objectStorage.exists(ContentStore.objectKeyOf(HASH))).isTrue();
+	}
+
+	@Test
+	void claimsOnlyUnreferencedContent() throws Exception {
+		contentStore.acquire(HASH);
+		store();
+		assertThat(contentStore.claimUnreferenced(HASH)).isFalse();
+
+		metadataStorage.addReferences(HASH, -1);
+		assertThat(contentStore.claimUnreferenced(HASH)).isTrue();
+		assertThat(metadataStorage.addReferences(HASH, 0)).isZero();
+		assertThat(ContentStore.contentHashOf(ContentStore.objectKeyOf(HASH))).isEqualTo(HASH);
+		assertThat(ContentStore.contentHashOf("image-id")).isNull();
+	}
+
+	private void store() throws Exception {
+		byte[] content = "image".getBytes();
+		objectStorage.put(ContentStore.objectKeyOf(HASH), new ByteArrayInputStream(content), content.length, "image/jpeg");
+	}
+}
@@ -0,0 +1,137 @@
+package com.mrg.aws.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.mrg.aws.metrics.StorageMetrics;
+import com.mrg.aws.model.Image;
+import com.mrg.aws.storage.LocalMetadataStorage;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class MetadataOutboxTest {
+
+	@TempDir
+	Path directory;
+
+	@Test
+	void writesRecordsLeftByACrashAfterRestart() throws Exception {
+		LocalMetadataStorage storage = storage();
+		MetadataOutbox crashed = outbox(storage);
+		crashed.append(Arrays.asList(image("a"), image("b"), image("c")));
+		crashed.remove("b");
+		assertThat(crashed.pending("a")).isNotNull();
+		assertThat(storage.get("a")).isNull();
+
+		MetadataOutbox restarted = outbox(storage);
+		assertThat(restarted.size()).isEqualTo(2);
+		assertThat(restarted.flush()).isTrue();
+		assertThat(restarted.size()).isZero();
+		assertThat(storage.get("a")).isNotNull();
+		assertThat(storage.get("b")).isNull();
+		assertThat(storage.get("c")).isNotNull();
+
+		assertThat(outbox(storage).size()).isZero();
+	}
+
+	@Test
+	void movesARecordAsideAfterMaxAttemptsWithoutHoldingBackTheOthers() throws Exception {
+		LocalMetadataStorage storage = new LocalMetadataStorage(new ObjectMapper(), new StorageMetrics(new SimpleMeterRegistry())) {
+			@Override
+			public List<Image> putAll(List<Image> batch) {
+				return new ArrayList<>(batch);
+			}
+
+			@Override
+			public void put(Image image) {
+				if (image.getImageId().equals("poison")) {
+					throw new IllegalStateException("item too large");
+				}
+				super.put(image);
+			}
+		};
+		init(storage);
+		MetadataOutbox outbox = outbox(storage);
+		outbox.append(Arrays.asList(image("poison"), image("a"), image("b")));
+
+		assertThat(outbox.flush()).isFalse();
+		assertThat(storage.get("a")).isNotNull();
+		assertThat(storage.get("b")).isNotNull();
+		assertThat(outbox.pendingImages()).extracting(Image::getImageId).containsExactly("poison");
+
+		assertThat(outbox.flush()).isFalse();
+		assertThat(outbox.flush()).isTrue();
+		assertThat(outbox.size()).isZero();
+		List<String> deadLetters = Files.readAllLines(directory.resolve("outbox").resolve("outbox.dead-letter"));
+		assertThat(deadLetters).hasSize(1);
+		assertThat(deadLetters.get(0)).contains("poison", "item too large");
+		assertThat(outbox(storage).size()).isZero();
+	}
+
+	@Test
+	void writesVariantsSetWhileTheRecordsBatchWasInFlight() throws Exception {
+		MetadataOutbox[] outbox = new MetadataOutbox[1];
+		LocalMetadataStorage storage = new LocalMetadataStorage(new ObjectMapper(), new StorageMetrics(new SimpleMeterRegistry())) {
+			@Override
+			public List<Image> putAll(List<Image> batch) {
+				List<Image> failed = super.putAll(batch);
+				if (batch.get(0).getVariants() == null) {
+					assertThat(outbox[0].updateVariants("a", Collections.singletonList(128))).isTrue();
+				}
+				return failed;
+			}
+		};
+		init(storage);
+		outbox[0] = outbox(storage);
+		outbox[0].append(Collections.singletonList(image("a")));
+
+		assertThat(outbox[0].flush()).isTrue();
+		assertThat(outbox[0].size()).isZero();
+		assertThat(outbox[0].updateVariants("a", Collections.singletonList(256))).isFalse();
+		assertThat(storage.get("a").getVariants()).containsExactly(128);
+		assertThat(outbox(storage).size()).isZero();
+	}
+
+	private LocalMetadataStorage storage() throws Exception {
+		return init(new LocalMetadataStorage(new ObjectMapper(), new StorageMetrics(new SimpleMeterRegistry())));
+	}
+
+	private LocalMetadataStorage init(LocalMetadataStorage storage) throws Exception {
+		ReflectionTestUtils.setField(storage, "directoryName", directory.resolve("metadata").toString());
+		storage.init();
+		return storage;
+	}
+
+	// flushed by the test only, the periodic flush is an hour away
+	private MetadataOutbox outbox(LocalMetadataStorage storage) throws Exception {
+		ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+		MetadataOutbox outbox = new MetadataOutbox(storage, new ObjectMapper(), new SimpleMeterRegistry(), executor);
+		ReflectionTestUtils.setField(outbox, "directoryName", directory.resolve("outbox").toString());
+		ReflectionTestUtils.setField(outbox, "fsync", false);
+		ReflectionTestUtils.setField(outbox, "batchSize", 2);
+		ReflectionTestUtils.setField(outbox, "flushIntervalMillis", 3600000L);
+		ReflectionTestUtils.setField(outbox, "backoffMillis", 500L);
+		ReflectionTestUtils.setField(outbox, "maxBackoffMillis", 30000L);
+		ReflectionTestUtils.setField(outbox, "maxAttempts", 3);
+		outbox.init();
+		executor.shutdownNow();
+		return outbox;
+	}
+
+	private static Image image(String imageId) {
+		Image image = new Image();
+		image.setImageId(imageId);
+		return image;
+	}
+}
@@ -0,0 +1,65 @@
+package com.mrg.aws.service;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class UploadSessionTest {
+
+	private static final int CHUNK_SIZE = 5 * 1024 * 1024;
+
+	@Test
+	void onlyTheLastChunkIsShorter() {
+		UploadSession session = new UploadSession("id", "upload", "a.jpg", "image/jpeg", null, null,
+				2L * CHUNK_SIZE + 10, CHUNK_SIZE);
+
+		assertThat(session.getChunkCount()).isEqualTo(3);
+		assertThat(session.chunkLength(1)).isEqualTo(CHUNK_SIZE);
+		assertThat(session.chunkLength(2)).isEqualTo(CHUNK_SIZE);
+		assertThat(session.chunkLength(3)).isEqualTo(10);
+		assertThat(session.chunkLength(0)).isEqualTo(-1);
+		assertThat(session.chunkLength(4)).isEqualTo(-1);
+	}
+
+	@Test
+	void completesOnceEveryChunkArrivedInAnyOrder() {
+		UploadSession session = new UploadSession("id", "upload", "a.jpg", "image/jpeg", null, null,
+				3L * CHUNK_SIZE, CHUNK_SIZE);
+
+		assertThat(session.beginChunk()).isTrue();
+		session.endChunk(3, true);
+		assertThat(session.beginChunk()).isTrue();
+		session.endChunk(1, false);
+		assertThat(session.missingChunks()).containsExactly(1, 2);
+		assertThat(session.beginCompletion()).isFalse();
+
+		assertThat(session.beginChunk()).isTrue();
+		assertThat(session.beginChunk()).isTrue();
+		session.endChunk(2, true);
+		assertThat(session.beginCompletion()).isFalse();
+		session.endChunk(1, true);
+
+		assertThat(session.missingChunks()).isEmpty();
+		assertThat(session.beginCompletion()).isTrue();
+		assertThat(session.beginChunk()).isFalse();
+		session.cancelCompletion();
+		assertThat(session.isIdle()).isTrue();
+	}
+
+	@Test
+	void refusesChunksOnceAssembledButCompletesAgain() {
+		UploadSession session = new UploadSession("id", "upload", "a.jpg", "image/jpeg", null, null,
+				CHUNK_SIZE, CHUNK_SIZE);
+		session.beginChunk();
+		session.endChunk(1, true);
+
+		assertThat(session.beginCompletion()).isTrue();
+		session.markAssembled();
+		// recording the image failed
+		session.cancelCompletion();
+
+		assertThat(session.beginChunk()).isFalse();
+		assertThat(session.beginCompletion()).isTrue();
+		assertThat(session.isAssembled()).isTrue();
+	}
+}
@@ -0,0 +1,49 @@
+package com.mrg.aws.storage;
+
+import com.mrg.aws.index.TagIndex;
+import com.mrg.aws.model.Image;
+import org.junit.jupiter.api.Test;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class ImageTableSchemaTest {
+
+	@Test
+	void readsFileSizeWrittenAsStringOrNumber() {
+		assertThat(read("FileSize", AttributeValue.builder().s("42").build()).getFileSize()).isEqualTo(42L);
+		assertThat(read("FileSize", AttributeValue.builder().n("42").build()).getFileSize()).isEqualTo(42L);
+		assertThat(read("FileSize", AttributeValue.builder().s("unknown").build()).getFileSize()).isNull();
+
+		Image image = new Image();
+		image.setImageId("1");
+		image.setFileSize(42L);
+		assertThat(ImageTableSchema.SCHEMA.itemToMap(image, true).get("FileSize").n()).isEqualTo("42");
+	}
+
+	@Test
+	void readsTagsWrittenAsStringOrSetInTheCanonicalForm() {
+		assertThat(read("Tags", AttributeValue.builder().s("dog cat, dog").build()).getTags()).isEqualTo("cat,dog");
+		assertThat(read("Tags", AttributeValue.builder().s("#dog;cat").build()).getTags()).isEqualTo("cat,dog");
+		assertThat(read("Tags", AttributeValue.builder().ss("dog", "cat").build()).getTags()).isEqualTo("cat,dog");
+
+		Image image = new Image();
+		image.setImageId("1");
+		image.setTags(TagIndex.canonicalTags("dog, cat cat"));
+		assertThat(image.getTags()).isEqualTo("cat,dog");
+		AttributeValue written = ImageTableSchema.SCHEMA.itemToMap(image, true).get("Tags");
+		assertThat(written.ss()).containsExactlyInAnyOrder("cat", "dog");
+		assertThat(read("Tags", written).getTags()).isEqualTo(image.getTags());
+	}
+
+	private static Image read(String attribute, AttributeValue value) {
+		Map<String, AttributeValue> item = new HashMap<>();
+		item.put("ImageId", AttributeValue.builder().s("1").build());
+		item.put(attribute, value);
+		return ImageTableSchema.SCHEMA.mapToItem(item);
+	}
+
+}
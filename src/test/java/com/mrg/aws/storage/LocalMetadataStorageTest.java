@@ -0,0 +1,105 @@
+package com.mrg.aws.storage;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.mrg.aws.metrics.StorageMetrics;
+import com.mrg.aws.model.Image;
+import com.mrg.aws.model.ImagePage;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class LocalMetadataStorageTest {
+
+	@TempDir
+	Path directory;
+
+	@Test
+	void replaysJournalAfterRestart() throws Exception {
+		LocalMetadataStorage storage = storage();
+		storage.putAll(Arrays.asList(image("a", "cats"), image("b", "dogs"), image("c", "birds")));
+		storage.delete("b");
+		Image variants = new Image();
+		variants.setImageId("a");
+		variants.setVariants(Collections.singletonList(128));
+		storage.update(variants);
+		storage.addReferences("hash", 1);
+		storage.addReferences("hash", 1);
+		storage.close();
+		// a record torn by a crash
+		Files.write(directory.resolve("metadata.journal"), "{\"op\":\"put\",\"ima".getBytes(StandardCharsets.UTF_8),
+				StandardOpenOption.APPEND);
+
+		LocalMetadataStorage reopened = storage();
+		assertThat(reopened.get("b")).isNull();
+		assertThat(reopened.get("a").getTags()).isEqualTo("cats");
+		assertThat(reopened.get("a").getVariants()).containsExactly(128);
+		assertThat(reopened.addReferences("hash", -1)).isEqualTo(1);
+		assertThat(reopened.removeReferences("hash")).isFalse();
+	}
+
+	@Test
+	void doesNotUpdateMissingRecords() throws Exception {
+		LocalMetadataStorage storage = storage();
+		Image variants = new Image();
+		variants.setImageId("deleted");
+		variants.setVariants(Collections.singletonList(128));
+
+		assertThat(storage.update(variants)).isFalse();
+		assertThat(storage.get("deleted")).isNull();
+	}
+
+	@Test
+	void compactsTheJournalOnceMostRecordsAreSuperseded() throws Exception {
+		LocalMetadataStorage storage = storage();
+		ReflectionTestUtils.setField(storage, "compactMinDeadRecords", 10L);
+		storage.put(image("a", "cats"));
+		for (int i = 0; i < 50; i++) {
+			storage.addReferences("hash", 1);
+		}
+		storage.put(image("b", "dogs"));
+		storage.delete("b");
+
+		assertThat(Files.readAllLines(directory.resolve("metadata.journal"))).hasSizeLessThanOrEqualTo(13);
+		storage.close();
+		LocalMetadataStorage reopened = storage();
+		assertThat(reopened.get("a").getTags()).isEqualTo("cats");
+		assertThat(reopened.get("b")).isNull();
+		assertThat(reopened.addReferences("hash", 0)).isEqualTo(50);
+	}
+
+	@Test
+	void pagesInIdOrder() throws Exception {
+		LocalMetadataStorage storage = storage();
+		storage.putAll(Arrays.asList(image("c", null), image("a", null), image("b", null)));
+
+		ImagePage first = storage.findPage(2, null);
+		assertThat(first.getItems()).extracting(Image::getImageId).containsExactly("a", "b");
+		ImagePage second = storage.findPage(2, first.getNextCursor());
+		assertThat(second.getItems()).extracting(Image::getImageId).containsExactly("c");
+		assertThat(second.getNextCursor()).isNull();
+	}
+
+	private LocalMetadataStorage storage() throws Exception {
+		LocalMetadataStorage storage = new LocalMetadataStorage(new ObjectMapper(), new StorageMetrics(new SimpleMeterRegistry()));
+		ReflectionTestUtils.setField(storage, "directoryName", directory.toString());
+		storage.init();
+		return storage;
+	}
+
+	private static Image image(String imageId, String tags) {
+		Image image = new Image();
+		image.setImageId(imageId);
+		image.setTags(tags);
+		return image;
+	}
+}